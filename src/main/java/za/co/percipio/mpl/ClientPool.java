@@ -0,0 +1,302 @@
+package za.co.percipio.mpl;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import za.co.percipio.minlog.Log;
+import za.co.percipio.mpl.connection.Connection;
+import za.co.percipio.mpl.connection.ConnectionFactory;
+import za.co.percipio.mpl.connection.EventLoopGroup;
+import za.co.percipio.mpl.exception.ConnectionException;
+import za.co.percipio.mpl.listener.ConnectionListener;
+import za.co.percipio.mpl.rpc.ResponseFuture;
+
+/**
+ * Keeps a fixed number of connections to a server open, so that a burst of messages doesn't pay for
+ * connecting and for warming up the codec of a new connection. Every message or request goes to the
+ * connection with the least outstanding work.
+ * <p/>
+ * A background health check replaces clients whose connection was lost, that take too long to
+ * connect or that don't answer the health check request, see {@link #setHealthCheck}. All clients
+ * share the listener of the pool.
+ */
+public class ClientPool {
+    public static final long DEFAULT_HEALTH_CHECK_PERIOD_MILLIS = 1000;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS     = 10 * 1000;
+
+    private final String             hostname;
+    private final int                port;
+    private final ConnectionListener listener;
+    private final ConnectionFactory  factory;
+    private final EventLoopGroup     group;
+    /* True if the group was created by the pool and must be shut down with it */
+    private final boolean            ownGroup;
+
+    private final Slot[]        slots;
+    private final AtomicInteger nextSlot;
+    private final AtomicLong    replacements;
+
+    private          boolean            started;
+    private volatile boolean            closed;
+    private          ScheduledFuture<?> healthCheck;
+    private          long               healthCheckPeriodMillis = DEFAULT_HEALTH_CHECK_PERIOD_MILLIS;
+    private volatile Object             healthCheckRequest;
+    private volatile long               connectTimeoutMillis    = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+    /**
+     * Creates a pool whose clients share a handler of their own
+     *
+     * @param size the number of connections kept open
+     */
+    public ClientPool(String hostname, int port, int size, ConnectionListener listener) {
+        this(hostname, port, size, listener, ConnectionFactory.JAVA_CONNECTION_FACTORY, null);
+    }
+
+    /**
+     * @param size  the number of connections kept open
+     * @param group the group that manages the connections, or null to create a group with a single
+     *              handler that is shut down with the pool
+     */
+    public ClientPool(String hostname, int port, int size, ConnectionListener listener,
+            ConnectionFactory factory, EventLoopGroup group) {
+        if (size < 1) throw new IllegalArgumentException("A pool needs a connection");
+        this.hostname = hostname;
+        this.port = port;
+        this.listener = listener;
+        this.factory = factory;
+        this.ownGroup = group == null;
+        this.group = ownGroup ? new EventLoopGroup(1, factory) : group;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        nextSlot = new AtomicInteger();
+        replacements = new AtomicLong();
+    }
+
+    /**
+     * Sets how long a client may take to connect before it is replaced
+     */
+    public void setConnectTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) throw new IllegalArgumentException("Invalid timeout");
+        connectTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Sets how often the clients are checked. With a request, a connection that has read nothing for
+     * a period is probed by sending it, and replaced if it still hasn't read anything by the next
+     * check. The server doesn't have to handle the request, an error response proves the connection
+     * is alive too. Requests of the application are never taken as probes, so slow calls don't get
+     * their connection replaced.
+     *
+     * @param request the request quiet connections are probed with, or null to only replace
+     *                connections that were lost
+     * @param period  the time between checks
+     */
+    public synchronized void setHealthCheck(Object request, long period, TimeUnit unit) {
+        if (period <= 0) throw new IllegalArgumentException("Invalid period");
+        healthCheckRequest = request;
+        healthCheckPeriodMillis = unit.toMillis(period);
+        if (started && !closed) schedule();
+    }
+
+    /**
+     * Connects the clients of the pool and starts the health check. The clients connect
+     * asynchronously, use {@link #getConnectedCount()} to see how many are ready.
+     */
+    public synchronized void start() {
+        if (started) return;
+        if (closed) throw new IllegalStateException("Pool has been closed");
+        started = true;
+        for (Slot slot : slots) {
+            connect(slot);
+        }
+        schedule();
+    }
+
+    /**
+     * Disconnects every client and stops the health check
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (healthCheck != null) healthCheck.cancel(false);
+            for (Slot slot : slots) {
+                MPLClient client = slot.client;
+                if (client != null) client.disconnect();
+            }
+        }
+        if (ownGroup) group.shutdown();
+    }
+
+    /**
+     * @return the open connection with the fewest requests and messages waiting on it, ties are
+     * broken by the bytes waiting to be written
+     * @throws ConnectionException if none of the connections is open
+     */
+    public Connection acquire() throws ConnectionException {
+        if (closed) throw new ConnectionException("Pool has been closed");
+        Connection best = null;
+        /* Starts at a different slot every time, so that idle connections take turns */
+        int start = (nextSlot.getAndIncrement() & Integer.MAX_VALUE) % slots.length;
+        for (int i = 0; i < slots.length; i++) {
+            Connection c = slots[(start + i) % slots.length].connection();
+            if (c == null) continue;
+            if (best == null || isLessLoaded(c, best)) best = c;
+        }
+        if (best == null) throw new ConnectionException("No connection to " + hostname + ":" + port);
+        return best;
+    }
+
+    /**
+     * Queues the message on the least loaded connection
+     *
+     * @return false if the connection dropped the message, see {@link Connection#queueMessage}
+     * @throws ConnectionException if none of the connections is open
+     */
+    public boolean queueMessage(Object message) throws ConnectionException {
+        return acquire().queueMessage(message);
+    }
+
+    /**
+     * Sends the request on the least loaded connection, the future fails with a
+     * {@link ConnectionException} if none of the connections is open
+     *
+     * @see Connection#request(Object)
+     */
+    public <R> ResponseFuture<R> request(Object request) {
+        try {
+            return acquire().request(request);
+        } catch (ConnectionException e) {
+            ResponseFuture<R> future = new ResponseFuture<R>();
+            future.fail(e);
+            return future;
+        }
+    }
+
+    /**
+     * @return the number of connections kept open
+     */
+    public int getSize() {
+        return slots.length;
+    }
+
+    /**
+     * @return the number of clients that are connected
+     */
+    public int getConnectedCount() {
+        int count = 0;
+        for (Slot slot : slots) {
+            if (slot.connection() != null) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of clients the health check replaced
+     */
+    public long getReplacements() {
+        return replacements.get();
+    }
+
+    private static boolean isLessLoaded(Connection a, Connection b) {
+        if (a.isWritable() != b.isWritable()) return a.isWritable();
+        long aWaiting = a.getPendingRequestCount() + a.getQueuedMessageCount();
+        long bWaiting = b.getPendingRequestCount() + b.getQueuedMessageCount();
+        if (aWaiting != bWaiting) return aWaiting < bWaiting;
+        return a.getPendingByteCount() < b.getPendingByteCount();
+    }
+
+    private void schedule() {
+        if (healthCheck != null) healthCheck.cancel(false);
+        healthCheck = ConnectionFactory.getTimer().scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                try {
+                    checkHealth();
+                } catch (Exception e) {
+                    /* Keeps the check scheduled */
+                    Log.error("Client pool health check failed", e);
+                }
+            }
+        }, healthCheckPeriodMillis, healthCheckPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void checkHealth() {
+        if (closed) return;
+        long now = System.currentTimeMillis();
+        for (Slot slot : slots) {
+            MPLClient client = slot.client;
+            Connection c = client.getConnection();
+            boolean healthy;
+            if (!client.isActive()) {
+                healthy = false;
+            } else if (c == null) {
+                healthy = now - slot.connectStarted < connectTimeoutMillis;
+            } else {
+                healthy = c.checkIsConnected() && probe(slot, c, now);
+            }
+
+            if (!healthy) {
+                Log.debug("Replacing pooled connection to " + hostname + ":" + port);
+                client.disconnect();
+                replacements.incrementAndGet();
+                connect(slot);
+            }
+        }
+    }
+
+    /**
+     * A connection that read something during the last period is alive. Otherwise it is probed with
+     * the health check request, and it is unresponsive if it still hasn't read anything at the next
+     * check. Any answer counts, including an error response.
+     *
+     * @return false if the connection is unresponsive
+     */
+    private boolean probe(Slot slot, final Connection c, long now) {
+        long lastRead = c.getLastReadTime();
+        if (slot.probeSent > 0 && lastRead < slot.probeSent) return false;
+        slot.probeSent = 0;
+        if (now - lastRead < healthCheckPeriodMillis) return true;
+
+        final Object request = healthCheckRequest;
+        if (request != null) {
+            slot.probeSent = now;
+            final long timeout = healthCheckPeriodMillis;
+            /* Sent from the handler thread, where a full connection can't block the timer */
+            c.execute(new Runnable() {
+                @Override public void run() {
+                    c.request(request, timeout, TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+        return true;
+    }
+
+    private void connect(Slot slot) {
+        MPLClient client = new MPLClient(hostname, port, listener, factory, group);
+        slot.probeSent = 0;
+        slot.connectStarted = System.currentTimeMillis();
+        slot.client = client;
+        client.connect();
+    }
+
+    private static final class Slot {
+        volatile MPLClient client;
+        /* The fields below are only used by the health check */
+        long connectStarted;
+        /* When the connection was last probed, 0 if it isn't being probed */
+        long probeSent;
+
+        /**
+         * @return the connection of the client if it is open, otherwise null
+         */
+        Connection connection() {
+            MPLClient client = this.client;
+            if (client == null) return null;
+            Connection c = client.getConnection();
+            return c != null && c.checkIsConnected() ? c : null;
+        }
+    }
+}
@@ -2,36 +2,65 @@ package za.co.percipio.mpl;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import za.co.percipio.minlog.Log;
 import za.co.percipio.mpl.connection.Connection;
 import za.co.percipio.mpl.connection.ConnectionFactory;
 import za.co.percipio.mpl.connection.ConnectionHandler;
+import za.co.percipio.mpl.connection.EventLoopGroup;
+import za.co.percipio.mpl.exception.EncodeException;
 import za.co.percipio.mpl.impl.ConnectionListenerWrapper;
 import za.co.percipio.mpl.listener.ConnectionListener;
 
-public class MPLClient implements Runnable {
-
-    private final Thread thread;
+/**
+ * A single outbound connection. The connect is started on the calling thread and completed by a
+ * handler thread; the client either has a handler of its own or shares the handlers of an
+ * {@link EventLoopGroup} with other clients.
+ * <p/>
+ * By default the client disconnects for good once the connection is lost. With
+ * {@link #setReconnecting} it keeps reconnecting instead, and messages queued through
+ * {@link #queueMessage(Object)} while it isn't connected are buffered and sent once it is.
+ */
+public class MPLClient {
+    public static final int  DEFAULT_MAX_BUFFERED_MESSAGES = 1024;
+    public static final long DEFAULT_MAX_BUFFERED_BYTES    = 1024 * 1024;
 
     private final String hostname;
 
     private final int                port;
-    private       Selector           selector;
-    private       SocketChannel      channel;
     private final ConnectionListener listener;
+    private final ConnectionFactory  factory;
+    /* The group the handler is taken from, or null if the client has a handler of its own */
+    private final EventLoopGroup     group;
 
-    private InetSocketAddress serverAddress = null;
-
-    private          boolean connectionErrorOccured;
     private volatile boolean isActive;
     private final Object initializationLock = new Object();
 
-    private ConnectionHandler handler;
+    private          ConnectionHandler handler;
+    private          SocketChannel     channel;
+    private volatile Connection        connection;
+
+    /* Reconnecting, a maximum delay of 0 disables it */
+    private volatile long               initialDelayMillis;
+    private volatile long               maxDelayMillis;
+    private          int                failedAttempts;
+    private          ScheduledFuture<?> reconnect;
+    private final    AtomicLong         reconnectAttempts;
+    private volatile long               outageStart;
+    private final    AtomicLong         totalOutageMillis;
+
+    /* Messages queued while not connected, encoded if the connections share a codec */
+    private final    Object             bufferLock = new Object();
+    private final    ArrayDeque<Object> buffer;
+    private volatile long               bufferedBytes;
+    private volatile int                maxBufferedMessages = DEFAULT_MAX_BUFFERED_MESSAGES;
+    private volatile long               maxBufferedBytes    = DEFAULT_MAX_BUFFERED_BYTES;
 
     public MPLClient(String hostname, int port, ConnectionListener listener) {
         this(hostname, port, listener, ConnectionFactory.JAVA_CONNECTION_FACTORY);
@@ -39,138 +68,330 @@ public class MPLClient implements Runnable {
 
     public MPLClient(String hostname, int port, ConnectionListener listener,
             ConnectionFactory factory) {
+        this(hostname, port, listener, factory, null);
+    }
+
+    /**
+     * Creates a client whose connection is managed by a handler of the given group, so that it
+     * doesn't need a thread of its own
+     *
+     * @param group the group to take a handler from, or null to give the client its own handler
+     */
+    public MPLClient(String hostname, int port, ConnectionListener listener,
+            ConnectionFactory factory, EventLoopGroup group) {
 
         listener = new ConnectionListenerWrapper(listener) {
+            @Override public void onConnect(Connection connection) {
+                connected(connection);
+                super.onConnect(connection);
+            }
+
+            @Override public void onConnectionError(Connection connection, Throwable error) {
+                if (connection == null && !isActive) {
+                    /* This was disconnected externally, don't send out a notification */
+                    Log.trace("Was disconnected from an external source.", error);
+                    return;
+                }
+                try {
+                    super.onConnectionError(connection, error);
+                } finally {
+                    if (connection == null) connectionLost();
+                }
+            }
+
             @Override public void onDisconnect(Connection connection) {
                 try {
                     super.onDisconnect(connection);
                 } finally {
-                    MPLClient.this.disconnect();
+                    connectionLost();
                 }
             }
         };
 
-        this.thread = new Thread(this);
         this.listener = listener;
-        this.handler = new ConnectionHandler(listener, factory);
+        this.factory = factory;
+        this.group = group;
+        this.handler = group == null ? new ConnectionHandler(listener, factory) : null;
         this.hostname = hostname;
         this.port = port;
+        this.reconnectAttempts = new AtomicLong();
+        this.totalOutageMillis = new AtomicLong();
+        this.buffer = new ArrayDeque<Object>();
     }
 
-    private void initializeConnection() {
-        try {
-            selector = Selector.open();
-            channel = SocketChannel.open();
-            channel.configureBlocking(false);
-        } catch (IOException e) {
-            Log.error("Error occured while connecting", e);
-            internalOnErrorOccurred(null, e);
+    /**
+     * Makes the client reconnect whenever a connect fails or the connection is lost, until
+     * {@link #disconnect()} is called. The n-th consecutive attempt waits a random time between
+     * half and all of initialDelay * 2^n, capped at maxDelay, so that clients that lost the same
+     * server don't reconnect all at once. Reconnects are started from the timer of
+     * {@link ConnectionFactory#getTimer()}.
+     *
+     * @param initialDelay the delay before the first attempt
+     * @param maxDelay     the longest delay between attempts, or 0 to stop reconnecting
+     */
+    public void setReconnecting(long initialDelay, long maxDelay, TimeUnit unit) {
+        if (initialDelay <= 0 && maxDelay > 0) throw new IllegalArgumentException("Invalid delay");
+        if (maxDelay < initialDelay && maxDelay > 0) {
+            throw new IllegalArgumentException("Maximum delay is below the initial delay");
         }
+        initialDelayMillis = unit.toMillis(initialDelay);
+        maxDelayMillis = unit.toMillis(maxDelay);
     }
 
-    ;
+    /**
+     * Limits the messages buffered while the client isn't connected, further messages are dropped.
+     * If the connections of the factory share a codec, buffered messages are encoded right away and
+     * their size counts against the byte limit; otherwise only the message limit applies.
+     */
+    public void setBufferLimits(int maxMessages, long maxBytes) {
+        if (maxMessages < 0 || maxBytes < 0) throw new IllegalArgumentException("Invalid limit");
+        maxBufferedMessages = maxMessages;
+        maxBufferedBytes = maxBytes;
+    }
 
-    private void connectToServer() {
-        boolean connected = false;
-        try {
-            InetSocketAddress connectedAddress = new InetSocketAddress(hostname, port);
-            channel.connect(connectedAddress);
-            channel.register(selector, SelectionKey.OP_CONNECT);
-            while (!connected) {
-                selector.select();
-                Set<SelectionKey> selected = selector.selectedKeys();
-                Iterator<SelectionKey> iter = selected.iterator();
-
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
-                    SocketChannel socket = ((SocketChannel) key.channel());
-                    iter.remove();
-                    if (!key.isValid()) {
-                        continue;
-                    }
-                    if (key.isConnectable()) {
-                        if (socket.isConnectionPending()) {
-                            socket.finishConnect();
-                            connected = true;
-                        }
-                        break;
-                    }
-                }
+    /**
+     * Starts connecting to the server. The hostname is resolved on the calling thread, the
+     * listener's onConnect or onConnectionError is called from the handler thread.
+     */
+    public void connect() {
+        synchronized (initializationLock) {
+            if (isActive) return;
+            isActive = true;
+            failedAttempts = 0;
+            if (group == null) handler.start();
+            startConnect();
+        }
+    }
+
+    public void disconnect() {
+        /* Stop the handler and clean up*/
+        synchronized (initializationLock) {
+            if (isActive) {
+                isActive = false;
+                disconnectInternal();
             }
-            serverAddress = connectedAddress;
+        }
+    }
+
+    /**
+     * Queues the message on the connection. While the client is active but not connected, the
+     * message is buffered instead and queued in order once the client connects.
+     *
+     * @return false if the message was dropped, because the client isn't active, the buffer is full
+     * or the connection dropped it
+     * @see Connection#queueMessage(Object)
+     */
+    public boolean queueMessage(Object message) {
+        Connection c;
+        synchronized (bufferLock) {
+            c = connection;
+            if (c == null || !c.checkIsConnected()) return buffer(message);
+        }
+        return c.queueMessage(message);
+    }
+
+    /**
+     * @return the connection to the server, or null while connecting
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public boolean isActive() {
+        return isActive;
+    }
+
+    /**
+     * @return the number of reconnects that were started
+     */
+    public long getReconnectAttempts() {
+        return reconnectAttempts.get();
+    }
+
+    /**
+     * @return how long the client has been without a connection since it lost one, or 0 if it is
+     * connected
+     */
+    public long getCurrentOutageMillis() {
+        long start = outageStart;
+        return start == 0 ? 0 : System.currentTimeMillis() - start;
+    }
+
+    /**
+     * @return the total time the client spent reconnecting, including the current outage
+     */
+    public long getTotalOutageMillis() {
+        return totalOutageMillis.get() + getCurrentOutageMillis();
+    }
+
+    public int getBufferedMessageCount() {
+        synchronized (bufferLock) {
+            return buffer.size();
+        }
+    }
+
+    /**
+     * @return the encoded size of the buffered messages, only known if the connections of the
+     * factory share a codec
+     */
+    public long getBufferedByteCount() {
+        return bufferedBytes;
+    }
+
+    /**
+     * Called with the initialization lock held
+     */
+    private void startConnect() {
+        try {
+            if (group != null) handler = group.next();
+            channel = handler.connect(new InetSocketAddress(hostname, port), listener, factory);
         } catch (IOException e) {
             Log.error("Error occured while connecting", e);
-            if (!isActive) {
-                /* This was disconnected externally, don't send out a notification */
-                Log.trace("Was disconnected from an external source.");
-            } else {
-                internalOnErrorOccurred(null, e);
-            }
-            return;
-        } catch (Exception e) {
-            if (!isActive) {
-                /* This was disconnected externally, don't send out a notification */
-                Log.trace("Was disconnected from an external source.", e);
-            } else {
-                Log.error("This should never have happened!", e);
-                internalOnErrorOccurred(null, e);
-            }
+            internalOnErrorOccurred(e);
+        } catch (RuntimeException e) {
+            Log.error("Error occured while connecting", e);
+            internalOnErrorOccurred(e);
         }
-
     }
 
-    @Override public void run() {
-        initializeConnection();
-        if (connectionErrorOccured) return;
-        connectToServer();
-        if (connectionErrorOccured) return;
-        handler.manageSocketChannel(channel);
-        while (isActive) {
-            try {
-                Thread.sleep(Long.MAX_VALUE);
-            } catch (InterruptedException e) {}
+    private void reconnect() {
+        synchronized (initializationLock) {
+            if (!isActive || connection != null) return;
+            reconnect = null;
+            reconnectAttempts.incrementAndGet();
+            Log.debug("[Client] Reconnecting to " + hostname + ":" + port);
+            startConnect();
         }
-        disconnectInternal();
     }
 
-    public void connect() {
+    /**
+     * Called from the handler thread. Flushes the buffer before the connection is published, so
+     * that later messages are queued behind the buffered ones.
+     */
+    private void connected(Connection c) {
+        synchronized (bufferLock) {
+            Object m;
+            while ((m = buffer.poll()) != null) {
+                try {
+                    if (m instanceof ByteBuffer[]) {
+                        c.queueEncoded((ByteBuffer[]) m);
+                    } else {
+                        c.queueMessage(m);
+                    }
+                } catch (RuntimeException e) {
+                    Log.debug("[Client] Could not queue a buffered message", e);
+                }
+            }
+            bufferedBytes = 0;
+            connection = c;
+        }
         synchronized (initializationLock) {
             if (!isActive) {
-                isActive = true;
-                handler.start();
-                thread.start();
+                /* Disconnected while the connect completed */
+                c.disconnect();
+                return;
+            }
+            failedAttempts = 0;
+            long start = outageStart;
+            if (start != 0) {
+                totalOutageMillis.addAndGet(System.currentTimeMillis() - start);
+                outageStart = 0;
             }
         }
-
     }
 
-    public void disconnect() {
-        /* Stop the handler and clean up*/
+    /**
+     * Called when a connect failed or the connection was lost
+     */
+    private void connectionLost() {
         synchronized (initializationLock) {
-            if (isActive) {
-                isActive = false;
-                thread.interrupt();
+            if (!isActive) return;
+            if (maxDelayMillis <= 0 || (group != null && group.isShutdown())) {
+                disconnect();
+                return;
             }
+            synchronized (bufferLock) {
+                connection = null;
+            }
+            channel = null;
+            if (outageStart == 0) outageStart = System.currentTimeMillis();
+            if (reconnect != null) return;
+            long delay = backoff(failedAttempts++);
+            reconnect = ConnectionFactory.getTimer().schedule(new Runnable() {
+                @Override public void run() {
+                    reconnect();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
         }
+    }
 
+    private long backoff(int attempt) {
+        long delay = initialDelayMillis << Math.min(attempt, 30);
+        if (delay <= 0 || delay > maxDelayMillis) delay = maxDelayMillis;
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    /**
+     * Called with the buffer lock held
+     */
+    private boolean buffer(Object message) {
+        if (!isActive || buffer.size() >= maxBufferedMessages) return false;
+        if (!factory.isCodecShared()) {
+            buffer.add(message);
+            return true;
+        }
+        ByteBuffer[] frames;
+        try {
+            frames = factory.encode(message);
+        } catch (EncodeException e) {
+            Log.debug("[Client] Could not encode a buffered message", e);
+            return false;
+        }
+        long size = 0;
+        for (ByteBuffer b : frames) {
+            size += b.remaining();
+        }
+        if (bufferedBytes + size > maxBufferedBytes) return false;
+        buffer.add(frames);
+        bufferedBytes += size;
+        return true;
     }
 
     private void disconnectInternal() {
-        handler.stop();
-        if (selector != null) {
+        if (reconnect != null) {
+            reconnect.cancel(false);
+            reconnect = null;
+        }
+        long start = outageStart;
+        if (start != 0) {
+            totalOutageMillis.addAndGet(System.currentTimeMillis() - start);
+            outageStart = 0;
+        }
+        synchronized (bufferLock) {
+            buffer.clear();
+            bufferedBytes = 0;
+        }
+        Connection c = connection;
+        if (c != null) {
+            c.disconnect();
+        } else if (channel != null) {
+            /* Abandons the connect */
             try {
-                selector.close();
+                channel.close();
             } catch (IOException e) {
-                Log.debug("[Client] Exception while closing selector");
+                Log.debug("[Client] Exception while closing channel");
             }
-            selector = null;
+        }
+        if (group == null) {
+            /* The handler still reports the disconnect before it stops */
+            handler.stop();
         }
     }
 
-    private void internalOnErrorOccurred(Connection c, Throwable t) {
-        connectionErrorOccured = true;
-        listener.onConnectionError(c, t);
-        disconnectInternal();
+    private void internalOnErrorOccurred(Throwable t) {
+        /* The wrapped listener reports the error and then disconnects or reconnects */
+        listener.onConnectionError(null, t);
     }
 
 }
@@ -3,15 +3,23 @@ package za.co.percipio.mpl;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import za.co.percipio.minlog.Log;
 import za.co.percipio.mpl.connection.ConnectionFactory;
+import za.co.percipio.mpl.connection.ConnectionFilter;
 import za.co.percipio.mpl.connection.ConnectionHandler;
+import za.co.percipio.mpl.connection.ConnectionRebalancer;
+import za.co.percipio.mpl.connection.HandlerSelector;
+import za.co.percipio.mpl.connection.HandlerSelectors;
+import za.co.percipio.mpl.exception.EncodeException;
 import za.co.percipio.mpl.listener.ConnectionListener;
 import za.co.percipio.mpl.listener.ServerConnectionListener;
 
@@ -23,7 +31,9 @@ public class MPLServer implements Runnable {
     private ServerConnectionListener serverConnectionListener;
     private Thread                   thread;// this processing thread
     private ConnectionHandler[]      handlers;
-    private int                      nextHandler;
+    private ConnectionFactory        factory;
+    private volatile HandlerSelector handlerSelector = HandlerSelectors.leastConnections();
+    private ScheduledFuture<?>       rebalancing;
 
     private InetAddress connectedAddress;
 
@@ -49,6 +59,7 @@ public class MPLServer implements Runnable {
         this.hostname = hostname;
         this.serverPort = port;
         serverConnectionListener = serverListener;
+        this.factory = factory;
         handlers = new ConnectionHandler[handlerCount];
         for (int i = 0; i < handlerCount; i++) {
             handlers[i] = new ConnectionHandler(clientConnectionListener, factory);
@@ -112,8 +123,8 @@ public class MPLServer implements Runnable {
     }
 
     @Override public void run() {
-        if (!isConnected()) {
-            /* might have started on the creating thread */
+        if (serverChannel == null) {
+            /* might have started on the creating thread, and might already be disconnected */
             initializeConnection();
         }
         if (connectionErrorOccured) return;
@@ -140,7 +151,43 @@ public class MPLServer implements Runnable {
     }
 
     private ConnectionHandler getNextHandler() {
-        return handlers[(nextHandler++) % handlers.length];
+        return handlerSelector.select(handlers);
+    }
+
+    /**
+     * Sets how new connections are assigned to the handlers of this server, by default to the
+     * handler with the fewest connections. See {@link HandlerSelectors} for the built in strategies.
+     */
+    public void setHandlerSelector(HandlerSelector handlerSelector) {
+        if (handlerSelector == null) throw new NullPointerException();
+        this.handlerSelector = handlerSelector;
+    }
+
+    /**
+     * Periodically moves connections between the handlers of this server once their connection
+     * counts drift apart by more than the threshold, see {@link ConnectionRebalancer}. Replaces an
+     * earlier schedule; a period of 0 stops rebalancing. Stops when the server stops.
+     *
+     * @param threshold the imbalance relative to the mean connection count that triggers moves
+     * @param period    the time between checks
+     */
+    public synchronized void setRebalancing(double threshold, long period, TimeUnit unit) {
+        if (rebalancing != null) {
+            rebalancing.cancel(false);
+            rebalancing = null;
+        }
+        if (period > 0 && handlers.length > 1) {
+            ConnectionRebalancer rebalancer = new ConnectionRebalancer(handlers, threshold);
+            rebalancing = ConnectionFactory.getTimer().scheduleWithFixedDelay(rebalancer, period,
+                                                                             period, unit);
+        }
+    }
+
+    /**
+     * @return the handlers that manage the connections of this server
+     */
+    public ConnectionHandler[] getHandlers() {
+        return handlers.clone();
     }
 
     public void disconnect() {
@@ -152,12 +199,16 @@ public class MPLServer implements Runnable {
 
     private void disconnectInternal() {
         setConnected(false);
+        setRebalancing(0, 0, TimeUnit.MILLISECONDS);
         try {
             // stop all the handlers
             for (ConnectionHandler h : handlers) {
                 h.stop();
             }
             serverChannel.close();
+            /* The channel is only released once its key is deregistered, so that the port can be
+               bound again */
+            selector.close();
         } catch (IOException e) {
             Log.debug("Error while closing server connection", e);
         }
@@ -170,6 +221,30 @@ public class MPLServer implements Runnable {
         disconnect();
     }
 
+    /**
+     * Encodes the message once and queues it on every connection of this server accepted by the
+     * filter. All connections share the encoded bytes.
+     *
+     * @param message the message to send
+     * @param filter  selects the target connections, or null for all of them
+     * @return the number of connections the message was queued on
+     * @throws EncodeException if the message could not be encoded
+     */
+    public int broadcast(Object message, ConnectionFilter filter) throws EncodeException {
+        int count = 0;
+        if (!factory.isCodecShared()) {
+            for (ConnectionHandler h : handlers) {
+                count += h.broadcast(message, filter);
+            }
+            return count;
+        }
+        ByteBuffer[] frames = factory.encode(message);
+        for (ConnectionHandler h : handlers) {
+            count += h.broadcastEncoded(frames, filter);
+        }
+        return count;
+    }
+
     public InetAddress address() {
         InetAddress address = connectedAddress;
         if (!isConnected()) {
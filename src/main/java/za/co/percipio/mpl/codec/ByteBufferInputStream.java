@@ -0,0 +1,68 @@
+package za.co.percipio.mpl.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.InvalidMarkException;
+
+/**
+ * An InputStream that reads the bytes between the position and the limit of a ByteBuffer without
+ * copying them first. Works with heap, direct, sliced and read-only buffers; the position of the
+ * given buffer is not changed.
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    /**
+     * @return a view of the bytes that have not been read yet
+     */
+    public ByteBuffer remainingBuffer() {
+        return buffer.slice();
+    }
+
+    @Override public int read() {
+        if (!buffer.hasRemaining()) return -1;
+        return buffer.get() & 0xFF;
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+        int remaining = buffer.remaining();
+        if (remaining == 0) return -1;
+        int count = Math.min(len, remaining);
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override public long skip(long n) {
+        if (n <= 0) return 0;
+        int count = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override public int available() {
+        return buffer.remaining();
+    }
+
+    @Override public boolean markSupported() {
+        return true;
+    }
+
+    @Override public synchronized void mark(int readLimit) {
+        buffer.mark();
+    }
+
+    @Override public synchronized void reset() throws IOException {
+        try {
+            buffer.reset();
+        } catch (InvalidMarkException e) {
+            throw new IOException("Mark not set");
+        }
+    }
+}
@@ -7,8 +7,46 @@ public class Codec {
     public final Encoder encoder;
     public final Decoder decoder;
 
+    /**
+     * The stream based views of the codec, adapted from the encoder and decoder when they don't
+     * implement the stream interfaces themselves
+     */
+    public final StreamEncoder streamEncoder;
+    public final StreamDecoder streamDecoder;
+
     public Codec(Encoder encoder, Decoder decoder) {
+        this(encoder, decoder, false);
+    }
+
+    /**
+     * @param zeroCopyDecode true to hand the decoder a view of the receive buffer rather than a copy
+     *                       of every frame, see {@link Codecs#asStreamDecoder(Decoder, boolean)}
+     */
+    public Codec(Encoder encoder, Decoder decoder, boolean zeroCopyDecode) {
+        this(encoder, decoder, Codecs.asStreamEncoder(encoder),
+             Codecs.asStreamDecoder(decoder, zeroCopyDecode));
+    }
+
+    private Codec(Encoder encoder, Decoder decoder, StreamEncoder streamEncoder,
+            StreamDecoder streamDecoder) {
         this.encoder = encoder;
         this.decoder = decoder;
+        this.streamEncoder = streamEncoder;
+        this.streamDecoder = streamDecoder;
+    }
+
+    /**
+     * Creates a codec from stream encoders, the buffer based views are adapted from them
+     */
+    public static Codec fromStreams(StreamEncoder encoder, StreamDecoder decoder) {
+        return new Codec(Codecs.asEncoder(encoder), Codecs.asDecoder(decoder), encoder, decoder);
+    }
+
+    /**
+     * @return true if messages are encoded through {@link #streamEncoder} into buffers leased by the
+     * connection, false if the buffer based {@link #encoder} allocates them
+     */
+    public boolean hasStreamEncoder() {
+        return !Codecs.isLegacy(streamEncoder);
     }
 }
@@ -0,0 +1,12 @@
+package za.co.percipio.mpl.codec;
+
+/**
+ * Creates a codec for every connection, for codecs that keep state about the connection they are
+ * used on.
+ */
+public interface CodecFactory {
+    /**
+     * @return a new codec, used by a single connection only
+     */
+    public Codec newCodec();
+}
@@ -0,0 +1,147 @@
+package za.co.percipio.mpl.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Adapters between the buffer based {@link Encoder}/{@link Decoder} and the stream based
+ * {@link StreamEncoder}/{@link StreamDecoder} interfaces.
+ */
+public final class Codecs {
+    private Codecs() {}
+
+    /**
+     * Adapts a buffer based encoder. Such encoders write the 4 byte length prefix themselves, which the
+     * adapter leaves out since the connection frames stream encoded messages.
+     */
+    public static StreamEncoder asStreamEncoder(final Encoder encoder) {
+        if (encoder instanceof StreamEncoder) return (StreamEncoder) encoder;
+        return new LegacyStreamEncoder(encoder);
+    }
+
+    /**
+     * Adapts a buffer based decoder. Every frame is copied into an array of its own before it is
+     * decoded, as decoders written before the stream interfaces expect. A chunked message is read
+     * into an array of its full length, which the maximum message size of the connection bounds.
+     */
+    public static StreamDecoder asStreamDecoder(final Decoder decoder) {
+        return asStreamDecoder(decoder, false);
+    }
+
+    /**
+     * Adapts a buffer based decoder, see {@link #asStreamDecoder(Decoder)}
+     *
+     * @param zeroCopy true to hand the decoder a view of the receive buffer instead of a copy of
+     *                 the frame. Such a view has a non-zero array offset and is reused, so the
+     *                 decoder must read between the position and the limit and must not keep it.
+     */
+    public static StreamDecoder asStreamDecoder(final Decoder decoder, boolean zeroCopy) {
+        if (decoder instanceof StreamDecoder) return (StreamDecoder) decoder;
+        return new LegacyStreamDecoder(decoder, zeroCopy);
+    }
+
+    /**
+     * Adapts a stream encoder to produce a framed message in heap buffers
+     */
+    public static Encoder asEncoder(final StreamEncoder encoder) {
+        if (encoder instanceof Encoder) return (Encoder) encoder;
+        if (encoder instanceof LegacyStreamEncoder) return ((LegacyStreamEncoder) encoder).encoder;
+        return new Encoder() {
+            @Override public ByteBuffer[] encode(Object toWrite) throws IOException {
+                FrameOutputStream out = new FrameOutputStream();
+                encoder.encode(toWrite, out);
+                return new ByteBuffer[]{out.toFrame()};
+            }
+        };
+    }
+
+    public static Decoder asDecoder(final StreamDecoder decoder) {
+        if (decoder instanceof Decoder) return (Decoder) decoder;
+        if (decoder instanceof LegacyStreamDecoder) return ((LegacyStreamDecoder) decoder).decoder;
+        return new Decoder() {
+            @Override public Object decode(ByteBuffer buffer)
+                    throws IOException, ClassNotFoundException {
+                return decoder.decode(new ByteBufferInputStream(buffer), buffer.remaining());
+            }
+        };
+    }
+
+    /**
+     * @return true if the encoder is an adapter around a buffer based encoder
+     */
+    static boolean isLegacy(StreamEncoder encoder) {
+        return encoder instanceof LegacyStreamEncoder;
+    }
+
+    private static final class LegacyStreamEncoder implements StreamEncoder {
+        final Encoder encoder;
+
+        LegacyStreamEncoder(Encoder encoder) {
+            this.encoder = encoder;
+        }
+
+        @Override public void encode(Object toWrite, OutputStream out) throws IOException {
+            /* The first 4 bytes are the length prefix written by the encoder */
+            int skip = 4;
+            for (ByteBuffer b : encoder.encode(toWrite)) {
+                ByteBuffer view = b.duplicate();
+                int drop = Math.min(skip, view.remaining());
+                view.position(view.position() + drop);
+                skip -= drop;
+                if (view.hasArray()) {
+                    out.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+                } else {
+                    byte[] bytes = new byte[view.remaining()];
+                    view.get(bytes);
+                    out.write(bytes);
+                }
+            }
+        }
+    }
+
+    private static final class LegacyStreamDecoder implements StreamDecoder {
+        final Decoder decoder;
+        final boolean zeroCopy;
+
+        LegacyStreamDecoder(Decoder decoder, boolean zeroCopy) {
+            this.decoder = decoder;
+            this.zeroCopy = zeroCopy;
+        }
+
+        @Override public Object decode(InputStream in, int length)
+                throws IOException, ClassNotFoundException {
+            if (zeroCopy && in instanceof ByteBufferInputStream) {
+                /* The frame is already in a buffer, no need to copy it */
+                return decoder.decode(((ByteBufferInputStream) in).remainingBuffer());
+            }
+            /* The connection has checked the length against the maximum message size */
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int count = in.read(bytes, read, length - read);
+                if (count < 0) throw new IOException("Frame ended unexpectedly");
+                read += count;
+            }
+            return decoder.decode(ByteBuffer.wrap(bytes));
+        }
+    }
+
+    /**
+     * Collects a payload behind a reserved length prefix
+     */
+    private static final class FrameOutputStream extends ByteArrayOutputStream {
+        FrameOutputStream() {
+            super(256);
+            count = 4;
+        }
+
+        ByteBuffer toFrame() {
+            ByteBuffer frame = ByteBuffer.wrap(buf, 0, count);
+            frame.putInt(0, count - 4);
+            return frame;
+        }
+    }
+}
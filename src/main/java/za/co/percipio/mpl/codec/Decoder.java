@@ -7,5 +7,10 @@ import java.nio.ByteBuffer;
  * Created by Chris Coetzee on 2016/07/29.
  */
 public interface Decoder {
+    /**
+     * Decodes a single frame. The frame spans the buffer's position to its limit. By default it is a
+     * buffer of its own, but a codec created for zero-copy decoding passes a view on a larger,
+     * reused buffer, which must not be retained after this call returns.
+     */
     public Object decode(ByteBuffer buffer) throws IOException, ClassNotFoundException;
 }
@@ -0,0 +1,16 @@
+package za.co.percipio.mpl.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a message from a source provided by the connection, without requiring a particular
+ * buffer layout.
+ */
+public interface StreamDecoder {
+    /**
+     * @param in     yields the payload of exactly one frame, only valid for the duration of this call
+     * @param length the number of payload bytes in the frame
+     */
+    public Object decode(InputStream in, int length) throws IOException, ClassNotFoundException;
+}
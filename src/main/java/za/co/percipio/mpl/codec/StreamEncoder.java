@@ -0,0 +1,19 @@
+package za.co.percipio.mpl.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes a message into a sink provided by the connection, usually backed by pooled buffers. Only
+ * the payload is written; the connection adds the length prefix of the frame itself.
+ * <p/>
+ * Use {@link Codec#fromStreams(StreamEncoder, StreamDecoder)} to build a codec from stream encoders,
+ * or implement both this interface and {@link Encoder} on the same class.
+ */
+public interface StreamEncoder {
+    /**
+     * @param toWrite the message to encode
+     * @param out     the sink of the frame payload, only valid for the duration of this call
+     */
+    public void encode(Object toWrite, OutputStream out) throws IOException;
+}
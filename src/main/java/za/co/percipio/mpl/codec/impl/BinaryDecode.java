@@ -0,0 +1,24 @@
+package za.co.percipio.mpl.codec.impl;
+
+import za.co.percipio.mpl.codec.Decoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes frames written by {@link BinaryEncode} with the same {@link TypeRegistry}
+ */
+public class BinaryDecode implements Decoder {
+    private final TypeRegistry registry;
+
+    public BinaryDecode(TypeRegistry registry) {
+        this.registry = registry;
+    }
+
+    public Object decode(ByteBuffer buffer) throws IOException {
+        BinaryInput in = new BinaryInput(buffer);
+        Object message = registry.readObject(in);
+        if (in.hasRemaining()) throw new IOException("Trailing bytes after message");
+        return message;
+    }
+}
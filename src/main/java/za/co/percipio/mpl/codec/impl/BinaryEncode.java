@@ -0,0 +1,25 @@
+package za.co.percipio.mpl.codec.impl;
+
+import za.co.percipio.mpl.codec.Encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes registered message types in a compact binary form: the type ID followed by the fields,
+ * with no class descriptors. See {@link TypeRegistry} for the supported field types.
+ */
+public class BinaryEncode implements Encoder {
+    private final TypeRegistry registry;
+
+    public BinaryEncode(TypeRegistry registry) {
+        this.registry = registry;
+    }
+
+    public ByteBuffer[] encode(Object toWrite) throws IOException {
+        if (toWrite == null) throw new IOException("Cannot encode a null message");
+        BinaryOutput out = new BinaryOutput();
+        registry.writeObject(out, toWrite);
+        return new ByteBuffer[]{out.toFrame()};
+    }
+}
@@ -0,0 +1,107 @@
+package za.co.percipio.mpl.codec.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the values written by {@link BinaryOutput} from a frame
+ */
+class BinaryInput {
+    private final ByteBuffer buffer;
+    /* The number of registered objects being read, one inside the other */
+    int depth;
+
+    BinaryInput(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    int readByte() throws IOException {
+        try {
+            return buffer.get();
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Frame ended unexpectedly");
+        }
+    }
+
+    void readBytes(byte[] b, int off, int len) throws IOException {
+        if (buffer.remaining() < len) throw new EOFException("Frame ended unexpectedly");
+        buffer.get(b, off, len);
+    }
+
+    int readShort() throws IOException {
+        try {
+            return buffer.getShort();
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Frame ended unexpectedly");
+        }
+    }
+
+    int readFixedInt() throws IOException {
+        try {
+            return buffer.getInt();
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Frame ended unexpectedly");
+        }
+    }
+
+    long readFixedLong() throws IOException {
+        try {
+            return buffer.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Frame ended unexpectedly");
+        }
+    }
+
+    int readVarInt() throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    long readVarLong() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    int readSignedVarInt() throws IOException {
+        int v = readVarInt();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    long readSignedVarLong() throws IOException {
+        long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * @return the length written by {@link BinaryOutput#writeLength(int)}, or -1 for null
+     */
+    int readLength() throws IOException {
+        int length = readVarInt() - 1;
+        if (length > buffer.remaining()) throw new EOFException("Length exceeds frame: " + length);
+        return length;
+    }
+
+    String readString() throws IOException {
+        int length = readLength();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        readBytes(bytes, 0, length);
+        return new String(bytes, BinaryOutput.UTF8);
+    }
+
+    boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+}
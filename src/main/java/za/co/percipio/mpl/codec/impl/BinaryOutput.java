@@ -0,0 +1,120 @@
+package za.co.percipio.mpl.codec.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A growable byte array the binary codec writes a frame into. The first four bytes are reserved for
+ * the length prefix of the frame.
+ */
+class BinaryOutput {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] buf;
+    private int    count;
+    /* The number of registered objects being written, one inside the other */
+    int depth;
+
+    BinaryOutput() {
+        buf = new byte[64];
+        count = 4;
+    }
+
+    void writeByte(int b) {
+        ensure(1);
+        buf[count++] = (byte) b;
+    }
+
+    void writeBytes(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    void writeShort(int v) {
+        ensure(2);
+        buf[count++] = (byte) (v >>> 8);
+        buf[count++] = (byte) v;
+    }
+
+    void writeFixedInt(int v) {
+        ensure(4);
+        buf[count++] = (byte) (v >>> 24);
+        buf[count++] = (byte) (v >>> 16);
+        buf[count++] = (byte) (v >>> 8);
+        buf[count++] = (byte) v;
+    }
+
+    void writeFixedLong(long v) {
+        writeFixedInt((int) (v >>> 32));
+        writeFixedInt((int) v);
+    }
+
+    /**
+     * Writes an unsigned variable length integer, 7 bits per byte
+     */
+    void writeVarInt(int v) {
+        ensure(5);
+        while ((v & ~0x7F) != 0) {
+            buf[count++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[count++] = (byte) v;
+    }
+
+    void writeVarLong(long v) {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            buf[count++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[count++] = (byte) v;
+    }
+
+    /**
+     * Writes a signed integer so that small negative values stay small
+     */
+    void writeSignedVarInt(int v) {
+        writeVarInt((v << 1) ^ (v >> 31));
+    }
+
+    void writeSignedVarLong(long v) {
+        writeVarLong((v << 1) ^ (v >> 63));
+    }
+
+    /**
+     * Writes the length of a nullable value as length + 1, zero stands for null
+     */
+    void writeLength(int length) {
+        writeVarInt(length + 1);
+    }
+
+    void writeString(String s) {
+        if (s == null) {
+            writeLength(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        writeLength(bytes.length);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return the frame, with the length prefix filled in
+     */
+    ByteBuffer toFrame() {
+        int length = count - 4;
+        buf[0] = (byte) (length >>> 24);
+        buf[1] = (byte) (length >>> 16);
+        buf[2] = (byte) (length >>> 8);
+        buf[3] = (byte) length;
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    private void ensure(int extra) {
+        if (count + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + extra));
+        }
+    }
+}
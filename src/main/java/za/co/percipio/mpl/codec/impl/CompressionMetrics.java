@@ -0,0 +1,87 @@
+package za.co.percipio.mpl.codec.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters shared by a {@link DeflateEncode} and {@link DeflateDecode} pair, see
+ * {@link DeflateCodec}.
+ */
+public class CompressionMetrics {
+    private final AtomicLong framesCompressed   = new AtomicLong();
+    private final AtomicLong framesUncompressed = new AtomicLong();
+    private final AtomicLong bytesBeforeDeflate = new AtomicLong();
+    private final AtomicLong bytesAfterDeflate  = new AtomicLong();
+    private final AtomicLong deflateNanos       = new AtomicLong();
+    private final AtomicLong framesInflated     = new AtomicLong();
+    private final AtomicLong inflateNanos       = new AtomicLong();
+
+    void onCompressed(int before, int after, long nanos) {
+        framesCompressed.incrementAndGet();
+        bytesBeforeDeflate.addAndGet(before);
+        bytesAfterDeflate.addAndGet(after);
+        deflateNanos.addAndGet(nanos);
+    }
+
+    void onUncompressed(long nanos) {
+        framesUncompressed.incrementAndGet();
+        /* Includes the time spent on payloads that did not get smaller */
+        deflateNanos.addAndGet(nanos);
+    }
+
+    void onInflated(long nanos) {
+        framesInflated.incrementAndGet();
+        inflateNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the number of frames sent compressed
+     */
+    public long getFramesCompressed() {
+        return framesCompressed.get();
+    }
+
+    /**
+     * @return the number of frames sent as is, because they were below the threshold or did not get
+     * smaller
+     */
+    public long getFramesUncompressed() {
+        return framesUncompressed.get();
+    }
+
+    /**
+     * @return the compressed size divided by the original size of the compressed frames, or 1 if
+     * nothing has been compressed yet
+     */
+    public double getCompressionRatio() {
+        long before = bytesBeforeDeflate.get();
+        return before == 0 ? 1 : (double) bytesAfterDeflate.get() / before;
+    }
+
+    /**
+     * @return the bytes saved by compressing frames
+     */
+    public long getBytesSaved() {
+        return bytesBeforeDeflate.get() - bytesAfterDeflate.get();
+    }
+
+    /**
+     * @return the time spent deflating payloads, in nanoseconds
+     */
+    public long getDeflateNanos() {
+        return deflateNanos.get();
+    }
+
+    /**
+     * @return the number of received frames that were inflated
+     */
+    public long getFramesInflated() {
+        return framesInflated.get();
+    }
+
+    /**
+     * @return the time spent inflating payloads, in nanoseconds
+     */
+    public long getInflateNanos() {
+        return inflateNanos.get();
+    }
+}
@@ -0,0 +1,69 @@
+package za.co.percipio.mpl.codec.impl;
+
+import za.co.percipio.mpl.codec.Codec;
+import za.co.percipio.mpl.codec.CodecFactory;
+
+import java.util.zip.Deflater;
+
+/**
+ * Wraps codecs so that payloads above a size threshold are deflated, see {@link DeflateEncode}. Both
+ * ends of a connection must use the same wrapping.
+ */
+public class DeflateCodec {
+    public static final int DEFAULT_THRESHOLD         = 1024;
+    public static final int DEFAULT_MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+
+    private final int                threshold;
+    private final int                level;
+    private final int                maxInflatedSize;
+    private final CompressionMetrics metrics;
+
+    public DeflateCodec() {
+        this(DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION, DEFAULT_MAX_INFLATED_SIZE);
+    }
+
+    /**
+     * @param threshold       the smallest payload size that is compressed
+     * @param level           the Deflater compression level
+     * @param maxInflatedSize the largest inflated payload that is accepted
+     */
+    public DeflateCodec(int threshold, int level, int maxInflatedSize) {
+        if (threshold < 0) throw new IllegalArgumentException("Invalid threshold");
+        if (maxInflatedSize < 0) throw new IllegalArgumentException("Invalid maximum size");
+        this.threshold = threshold;
+        this.level = level;
+        this.maxInflatedSize = maxInflatedSize;
+        this.metrics = new CompressionMetrics();
+    }
+
+    /**
+     * Inflated payloads are decoded from a buffer that is reused for the next message on the same
+     * thread. A stream decoder of the given codec must therefore not keep the stream once it has
+     * returned. Buffer based decoders receive a copy, unless the codec was created for zero-copy
+     * decoding.
+     *
+     * @return a codec that compresses the payloads of the given codec
+     */
+    public Codec wrap(Codec codec) {
+        return Codec.fromStreams(new DeflateEncode(codec.streamEncoder, threshold, level, metrics),
+                                 new DeflateDecode(codec.streamDecoder, maxInflatedSize, metrics));
+    }
+
+    /**
+     * @return a factory whose codecs compress the payloads of the codecs created by the given one
+     */
+    public CodecFactory wrap(final CodecFactory factory) {
+        return new CodecFactory() {
+            @Override public Codec newCodec() {
+                return wrap(factory.newCodec());
+            }
+        };
+    }
+
+    /**
+     * @return the counters of every codec wrapped by this instance
+     */
+    public CompressionMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,137 @@
+package za.co.percipio.mpl.codec.impl;
+
+import za.co.percipio.mpl.codec.ByteBufferInputStream;
+import za.co.percipio.mpl.codec.StreamDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the payloads written by a {@link DeflateEncode}, inflating them when they are flagged as
+ * compressed. The Inflater and the buffers are reused per thread.
+ */
+public class DeflateDecode implements StreamDecoder {
+    /* Buffers that grew past this size are not kept for the next message */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<DecoderState> state = new ThreadLocal<DecoderState>();
+
+    private final StreamDecoder      decoder;
+    private final int                maxInflatedSize;
+    private final CompressionMetrics metrics;
+
+    /**
+     * @param decoder         decodes the inflated payload, which is read from a reused buffer and
+     *                        must not be kept after the decoder returns
+     * @param maxInflatedSize the largest original size that is accepted, guards against frames
+     *                        that inflate to far more memory than they occupy
+     * @param metrics         receives the compression counters
+     */
+    public DeflateDecode(StreamDecoder decoder, int maxInflatedSize, CompressionMetrics metrics) {
+        this.decoder = decoder;
+        this.maxInflatedSize = maxInflatedSize;
+        this.metrics = metrics;
+    }
+
+    @Override public Object decode(InputStream in, int length)
+            throws IOException, ClassNotFoundException {
+        if (length < 1) throw new StreamCorruptedException("Empty frame");
+        int flag = in.read();
+        if (flag == DeflateEncode.PLAIN) {
+            return decoder.decode(in, length - 1);
+        }
+        if (flag != DeflateEncode.DEFLATED) {
+            throw new StreamCorruptedException("Unknown compression flag: " + flag);
+        }
+        if (length < 5) throw new StreamCorruptedException("Truncated compressed frame");
+        int size = (readByte(in) << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+        if (size < 0 || size > maxInflatedSize) {
+            throw new StreamCorruptedException("Invalid inflated size: " + size);
+        }
+        DecoderState s = getState();
+        try {
+            long start = System.nanoTime();
+            ByteBuffer inflated = s.inflate(in, length - 5, size);
+            metrics.onInflated(System.nanoTime() - start);
+            return decoder.decode(new ByteBufferInputStream(inflated), size);
+        } finally {
+            if (s.input.length > MAX_RETAINED_BUFFER_SIZE
+                    || s.output.length > MAX_RETAINED_BUFFER_SIZE) {
+                /* Frees the native zlib memory now rather than on finalization */
+                s.inflater.end();
+                state.remove();
+            }
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new StreamCorruptedException("Truncated compressed frame");
+        return b;
+    }
+
+    private static DecoderState getState() {
+        DecoderState s = state.get();
+        if (s == null) {
+            s = new DecoderState();
+            state.set(s);
+        }
+        return s;
+    }
+
+    private static class DecoderState {
+        final Inflater inflater = new Inflater();
+        byte[] input  = new byte[256];
+        byte[] output = new byte[256];
+
+        ByteBuffer inflate(InputStream in, int length, int size) throws IOException {
+            byte[] source;
+            int offset;
+            ByteBuffer remaining = in instanceof ByteBufferInputStream
+                    ? ((ByteBufferInputStream) in).remainingBuffer() : null;
+            if (remaining != null && remaining.hasArray()) {
+                /* Inflate straight from the frame */
+                source = remaining.array();
+                offset = remaining.arrayOffset() + remaining.position();
+            } else {
+                if (input.length < length) input = new byte[length];
+                readFully(in, input, length);
+                source = input;
+                offset = 0;
+            }
+            if (output.length < size) output = new byte[size];
+            inflater.reset();
+            inflater.setInput(source, offset, length);
+            try {
+                int count = 0;
+                while (count < size) {
+                    int inflated = inflater.inflate(output, count, size - count);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput()
+                            || inflater.needsDictionary())) {
+                        break;
+                    }
+                    count += inflated;
+                }
+                if (count != size || !inflater.finished()) {
+                    throw new StreamCorruptedException("Compressed frame does not match its size");
+                }
+            } catch (DataFormatException e) {
+                throw new StreamCorruptedException("Invalid compressed frame: " + e.getMessage());
+            }
+            return ByteBuffer.wrap(output, 0, size);
+        }
+
+        private static void readFully(InputStream in, byte[] b, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int count = in.read(b, read, length - read);
+                if (count < 0) throw new StreamCorruptedException("Truncated compressed frame");
+                read += count;
+            }
+        }
+    }
+}
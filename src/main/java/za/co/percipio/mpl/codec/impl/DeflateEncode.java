@@ -0,0 +1,132 @@
+package za.co.percipio.mpl.codec.impl;
+
+import za.co.percipio.mpl.codec.StreamEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the payloads written by another encoder. Every payload starts with a flag byte: payloads
+ * smaller than the threshold, or that don't get smaller, are sent as is after {@link #PLAIN}.
+ * Compressed payloads follow {@link #DEFLATED} and the 4 byte original size.
+ * <p/>
+ * The Deflater and the buffers are reused per thread.
+ */
+public class DeflateEncode implements StreamEncoder {
+    public static final int PLAIN    = 0;
+    public static final int DEFLATED = 1;
+
+    /* Payload buffers that grew past this size are not kept for the next message */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<EncoderState> state = new ThreadLocal<EncoderState>();
+
+    private final StreamEncoder      encoder;
+    private final int                threshold;
+    private final int                level;
+    private final CompressionMetrics metrics;
+
+    /**
+     * @param encoder   encodes the payload that is compressed
+     * @param threshold the smallest payload size that is compressed
+     * @param level     the Deflater compression level
+     * @param metrics   receives the compression counters
+     */
+    public DeflateEncode(StreamEncoder encoder, int threshold, int level,
+            CompressionMetrics metrics) {
+        if (threshold < 0) throw new IllegalArgumentException("Invalid threshold");
+        this.encoder = encoder;
+        this.threshold = threshold;
+        this.level = level;
+        this.metrics = metrics;
+    }
+
+    @Override public void encode(Object toWrite, OutputStream out) throws IOException {
+        EncoderState s = getState();
+        PayloadOutputStream payload = s.payload;
+        payload.reset();
+        encoder.encode(toWrite, payload);
+        int size = payload.size();
+        if (size < threshold) {
+            out.write(PLAIN);
+            payload.writeTo(out);
+            metrics.onUncompressed(0);
+        } else {
+            long start = System.nanoTime();
+            int compressed = s.deflate(payload, level);
+            long nanos = System.nanoTime() - start;
+            if (compressed < size) {
+                out.write(DEFLATED);
+                out.write(size >>> 24);
+                out.write(size >>> 16);
+                out.write(size >>> 8);
+                out.write(size);
+                out.write(s.compressed, 0, compressed);
+                metrics.onCompressed(size, compressed, nanos);
+            } else {
+                out.write(PLAIN);
+                payload.writeTo(out);
+                metrics.onUncompressed(nanos);
+            }
+        }
+        if (payload.capacity() > MAX_RETAINED_BUFFER_SIZE
+                || s.compressed.length > MAX_RETAINED_BUFFER_SIZE) {
+            /* Frees the native zlib memory now rather than on finalization */
+            s.deflater.end();
+            state.remove();
+        }
+    }
+
+    private static EncoderState getState() {
+        EncoderState s = state.get();
+        if (s == null) {
+            s = new EncoderState();
+            state.set(s);
+        }
+        return s;
+    }
+
+    private static class PayloadOutputStream extends ByteArrayOutputStream {
+        PayloadOutputStream() {
+            super(256);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private static class EncoderState {
+        final PayloadOutputStream payload  = new PayloadOutputStream();
+        final Deflater            deflater = new Deflater();
+        byte[] compressed = new byte[256];
+
+        /**
+         * Deflates the payload into {@link #compressed}, giving up once the output is as large as the
+         * input
+         *
+         * @return the compressed size
+         */
+        int deflate(PayloadOutputStream payload, int level) {
+            int size = payload.size();
+            if (compressed.length < size) {
+                compressed = new byte[size];
+            }
+            deflater.reset();
+            deflater.setLevel(level);
+            deflater.setInput(payload.array(), 0, size);
+            deflater.finish();
+            int count = 0;
+            while (!deflater.finished() && count < size) {
+                count += deflater.deflate(compressed, count, size - count);
+            }
+            return deflater.finished() ? count : size;
+        }
+    }
+}
@@ -1,18 +1,24 @@
 package za.co.percipio.mpl.codec.impl;
 
+import za.co.percipio.mpl.codec.ByteBufferInputStream;
 import za.co.percipio.mpl.codec.Decoder;
+import za.co.percipio.mpl.codec.StreamDecoder;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.nio.ByteBuffer;
 
-public class JavaDecode implements Decoder {
+public class JavaDecode implements Decoder, StreamDecoder {
 
     public Object decode(ByteBuffer buffer) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(buffer.array());
-        ObjectInput in = new ObjectInputStream(bis);
-        return in.readObject();
+        /* Reads straight from the frame, whatever kind of buffer it is in */
+        return decode(new ByteBufferInputStream(buffer), buffer.remaining());
+    }
+
+    public Object decode(InputStream in, int length) throws IOException, ClassNotFoundException {
+        ObjectInput objectIn = new ObjectInputStream(in);
+        return objectIn.readObject();
     }
 }
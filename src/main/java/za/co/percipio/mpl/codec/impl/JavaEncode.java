@@ -1,39 +1,150 @@
 package za.co.percipio.mpl.codec.impl;
 
 import za.co.percipio.mpl.codec.Encoder;
+import za.co.percipio.mpl.codec.StreamEncoder;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
-public class JavaEncode implements Encoder{
+/**
+ * Encodes messages with Java serialization. Every frame holds the 4 byte length prefix followed by a
+ * complete object stream, so each frame can be read by a fresh ObjectInputStream.
+ * <p/>
+ * The output buffer and the ObjectOutputStream are reused per thread; the object stream is reset
+ * between messages and its stream header is written by hand, so the bytes are identical to those of
+ * a new stream. When used as a {@link StreamEncoder} the object stream writes straight into the sink
+ * of the connection.
+ */
+public class JavaEncode implements Encoder, StreamEncoder {
+    /* Output buffers that grew past this size are not kept for the next message */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final byte[] STREAM_HEADER = {
+            (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8),
+            (byte) ObjectStreamConstants.STREAM_MAGIC,
+            (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8),
+            (byte) ObjectStreamConstants.STREAM_VERSION
+    };
+
+    private final ThreadLocal<EncoderState> state = new ThreadLocal<EncoderState>();
 
     public ByteBuffer[] encode(Object toWrite) throws IOException {
-        // write object
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutput oo;
+        EncoderState s = getState();
+        FrameOutputStream out = s.frameOut;
+        /* Drops the previous frame and leaves space for the length prefix */
+        out.reset();
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        encode(s, toWrite, out);
+        ByteBuffer frame = out.toFrame();
+        if (out.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            state.remove();
+        }
+        return new ByteBuffer[]{frame};
+    }
+
+    public void encode(Object toWrite, OutputStream out) throws IOException {
+        encode(getState(), toWrite, out);
+    }
+
+    private void encode(EncoderState s, Object toWrite, OutputStream out) throws IOException {
         try {
-            oo = new ObjectOutputStream(bos);
-        } catch (SecurityException e) {
-            throw new RuntimeException(e);
+            s.encode(toWrite, out);
+        } catch (IOException e) {
+            /* The object stream may be left in the middle of an object */
+            state.remove();
+            throw e;
+        } catch (RuntimeException e) {
+            state.remove();
+            throw e;
         }
-        oo.writeObject(toWrite);
-        oo.flush();
-        byte[] bytes = bos.toByteArray();
+    }
 
-        ByteBuffer[] buffers = new ByteBuffer[2];
+    private EncoderState getState() {
+        EncoderState s = state.get();
+        if (s == null) {
+            s = new EncoderState();
+            state.set(s);
+        }
+        return s;
+    }
 
-        /* Allocate the buffer  for the length */
-        buffers[0] = ByteBuffer.allocate(4); // 4byte length
+    /**
+     * A ByteArrayOutputStream that allows the length prefix to be filled in and the contents to be
+     * copied out without an intermediate array
+     */
+    private static class FrameOutputStream extends ByteArrayOutputStream {
+        FrameOutputStream() {
+            super(256);
+        }
 
-        /* put data in the buffers */
-        buffers[0].putInt(bytes.length);
-        buffers[1] = ByteBuffer.wrap(bytes, 0, bytes.length);
+        int capacity() {
+            return buf.length;
+        }
 
-        // Rewind them so we can write something out
-        buffers[0].rewind();
-        return buffers;
+        ByteBuffer toFrame() {
+            int length = count - 4;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            return ByteBuffer.wrap(Arrays.copyOf(buf, count));
+        }
+    }
+
+    /**
+     * Passes writes on to the current target, or discards them when there is none
+     */
+    private static class RedirectOutputStream extends OutputStream {
+        OutputStream target;
+
+        @Override public void write(int b) throws IOException {
+            if (target != null) target.write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            if (target != null) target.write(b, off, len);
+        }
+    }
+
+    private static class EncoderState {
+        final FrameOutputStream    frameOut;
+        final RedirectOutputStream redirect;
+        final ObjectOutputStream   objectOut;
+
+        EncoderState() {
+            frameOut = new FrameOutputStream();
+            redirect = new RedirectOutputStream();
+            try {
+                /* The header written here is discarded, every message writes its own */
+                objectOut = new ObjectOutputStream(redirect);
+            } catch (SecurityException e) {
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                /* Writing to the discarding stream does not fail */
+                throw new RuntimeException(e);
+            }
+        }
+
+        void encode(Object toWrite, OutputStream out) throws IOException {
+            redirect.target = out;
+            try {
+                out.write(STREAM_HEADER);
+                objectOut.writeObject(toWrite);
+                objectOut.flush();
+            } finally {
+                redirect.target = null;
+            }
+            /* Forget the handles of this message so the next frame can be read on its own, the reset
+               marker itself is discarded */
+            objectOut.reset();
+        }
     }
 }
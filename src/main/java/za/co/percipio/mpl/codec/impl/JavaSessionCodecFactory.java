@@ -0,0 +1,31 @@
+package za.co.percipio.mpl.codec.impl;
+
+import za.co.percipio.mpl.codec.Codec;
+import za.co.percipio.mpl.codec.CodecFactory;
+
+/**
+ * Gives every connection its own Java serialization session, see {@link JavaSessionEncode}.
+ * Both ends of a connection must use this codec.
+ */
+public class JavaSessionCodecFactory implements CodecFactory {
+    public static final int DEFAULT_RESET_INTERVAL = 256;
+
+    private final int resetInterval;
+
+    public JavaSessionCodecFactory() {
+        this(DEFAULT_RESET_INTERVAL);
+    }
+
+    /**
+     * @param resetInterval the number of messages after which a session stream is reset, which
+     *                      bounds the number of sent objects that are kept alive
+     */
+    public JavaSessionCodecFactory(int resetInterval) {
+        if (resetInterval < 1) throw new IllegalArgumentException("Invalid reset interval");
+        this.resetInterval = resetInterval;
+    }
+
+    @Override public Codec newCodec() {
+        return Codec.fromStreams(new JavaSessionEncode(resetInterval), new JavaSessionDecode());
+    }
+}
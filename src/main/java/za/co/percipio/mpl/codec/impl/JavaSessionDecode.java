@@ -0,0 +1,74 @@
+package za.co.percipio.mpl.codec.impl;
+
+import za.co.percipio.mpl.codec.StreamDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Decodes the frames written by a {@link JavaSessionEncode} as one long-lived Java serialization
+ * stream. The object stream is created on the first frame, which carries the stream header.
+ * <p/>
+ * Once a frame could not be read the stream state can no longer be trusted, every later frame then
+ * fails as well. A message whose class cannot be found does not break the stream.
+ */
+public class JavaSessionDecode implements StreamDecoder {
+    private final FrameInputStream  frameIn;
+    private       ObjectInputStream objectIn;
+    private       boolean           broken;
+
+    public JavaSessionDecode() {
+        frameIn = new FrameInputStream();
+    }
+
+    @Override public Object decode(InputStream in, int length)
+            throws IOException, ClassNotFoundException {
+        if (broken) throw new StreamCorruptedException("Session stream is broken");
+        frameIn.source = in;
+        frameIn.remaining = length;
+        try {
+            if (objectIn == null) {
+                objectIn = new ObjectInputStream(frameIn);
+            }
+            Object m = objectIn.readObject();
+            if (frameIn.remaining != 0) {
+                throw new StreamCorruptedException(frameIn.remaining + " bytes left in frame");
+            }
+            return m;
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        } finally {
+            frameIn.source = null;
+        }
+    }
+
+    /**
+     * Yields the payload of the current frame, the end of the frame reads as the end of the stream
+     */
+    private static class FrameInputStream extends InputStream {
+        InputStream source;
+        int         remaining;
+
+        @Override public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = source.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (remaining <= 0) return -1;
+            int count = source.read(b, off, Math.min(len, remaining));
+            if (count > 0) remaining -= count;
+            return count;
+        }
+
+        @Override public int available() {
+            return remaining;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package za.co.percipio.mpl.codec.impl;
+
+import za.co.percipio.mpl.codec.StreamEncoder;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes the messages of a single connection as one long-lived Java serialization stream. Class
+ * descriptors and repeated objects are sent once and referenced by handle afterwards. The stream is
+ * reset every few messages so the handle tables on both sides don't keep every message alive.
+ * <p/>
+ * The first frame carries the stream header, so the frames must be decoded in order by a
+ * {@link JavaSessionDecode}. Not thread safe, the connection encodes one message at a time.
+ */
+public class JavaSessionEncode implements StreamEncoder {
+    private final int resetInterval;
+
+    private final RedirectOutputStream redirect;
+    private       ObjectOutputStream   objectOut;
+    private       int                  sinceReset;
+    private       boolean              resetPending;
+
+    /**
+     * @param resetInterval the number of messages after which the stream is reset
+     */
+    public JavaSessionEncode(int resetInterval) {
+        if (resetInterval < 1) throw new IllegalArgumentException("Invalid reset interval");
+        this.resetInterval = resetInterval;
+        this.redirect = new RedirectOutputStream();
+    }
+
+    @Override public void encode(Object toWrite, OutputStream out) throws IOException {
+        redirect.target = out;
+        try {
+            if (objectOut == null) {
+                /* Writes the stream header into the first frame */
+                objectOut = new ObjectOutputStream(redirect);
+            } else if (resetPending || sinceReset >= resetInterval) {
+                /* The reset marker goes into this frame, ahead of the message */
+                objectOut.reset();
+                sinceReset = 0;
+                resetPending = false;
+            }
+            objectOut.writeObject(toWrite);
+            objectOut.flush();
+            sinceReset++;
+        } catch (IOException e) {
+            discardFailedMessage();
+            throw e;
+        } catch (RuntimeException e) {
+            discardFailedMessage();
+            throw e;
+        } finally {
+            redirect.target = null;
+        }
+    }
+
+    /**
+     * The bytes of a failed message are never sent, but the handles assigned while writing it are
+     * known to this side only. The next frame resets both sides.
+     */
+    private void discardFailedMessage() {
+        redirect.target = null;
+        if (objectOut == null) return;
+        try {
+            objectOut.flush();
+        } catch (IOException ignored) {
+            /* Writing to the discarding stream does not fail */
+        }
+        resetPending = true;
+    }
+
+    /**
+     * Passes writes on to the current target, or discards them when there is none
+     */
+    private static class RedirectOutputStream extends OutputStream {
+        OutputStream target;
+
+        @Override public void write(int b) throws IOException {
+            if (target != null) target.write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            if (target != null) target.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package za.co.percipio.mpl.codec.impl;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import za.co.percipio.mpl.codec.Codec;
+import za.co.percipio.mpl.rpc.RpcRequest;
+import za.co.percipio.mpl.rpc.RpcResponse;
+
+/**
+ * The message classes known to the binary codec. Every class is registered with a small positive
+ * integer ID, which is all that identifies the type on the wire. Both ends of a connection must
+ * register the same classes with the same IDs.
+ * <p/>
+ * The non-static, non-transient fields of a registered class (and its superclasses) are written in
+ * name order. Supported field types are primitives and their wrappers, strings, enums, arrays of
+ * any supported type and other registered classes, including fields declared as Object that hold
+ * registered classes. Registered classes need a no-argument constructor, which may be private.
+ * <p/>
+ * Objects may be nested up to {@link #MAX_DEPTH} deep. Object graphs with cycles can't be encoded,
+ * they fail like graphs that are too deep.
+ * <p/>
+ * The envelopes of {@link za.co.percipio.mpl.connection.Connection#request} are not registered by
+ * default, call {@link #registerRpcTypes} to use requests with this codec.
+ * <p/>
+ * Register all classes before the registry is used by a connection, lookups are not synchronized.
+ */
+public class TypeRegistry {
+    public static final int MAX_DEPTH = 256;
+
+    private final Map<Class<?>, TypeCodec> byClass;
+    private final Map<Integer, TypeCodec>  byId;
+
+    public TypeRegistry() {
+        byClass = new HashMap<Class<?>, TypeCodec>();
+        byId = new HashMap<Integer, TypeCodec>();
+    }
+
+    /**
+     * Registers a message class under the given ID
+     *
+     * @param id   a positive ID, smaller IDs take fewer bytes on the wire
+     * @param type the class to register
+     * @throws IllegalArgumentException if the ID or class is already registered, or the class can't
+     *                                  be instantiated
+     */
+    public synchronized void register(int id, Class<?> type) {
+        if (id <= 0) throw new IllegalArgumentException("Type IDs must be positive: " + id);
+        if (byId.containsKey(id)) throw new IllegalArgumentException("Type ID already registered: " + id);
+        if (byClass.containsKey(type)) {
+            throw new IllegalArgumentException("Type already registered: " + type.getName());
+        }
+        if (type.isInterface() || Modifier.isAbstract(type.getModifiers()) || type.isArray()
+                || type.isEnum() || type.isPrimitive()) {
+            throw new IllegalArgumentException("Only concrete classes can be registered: " + type);
+        }
+        Constructor<?> constructor;
+        try {
+            constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(type.getName() + " has no no-argument constructor", e);
+        }
+        TypeCodec codec = new TypeCodec(id, constructor);
+        byId.put(id, codec);
+        byClass.put(type, codec);
+    }
+
+    /**
+     * Registers the request and response envelopes of
+     * {@link za.co.percipio.mpl.connection.Connection#request}. Their bodies must be registered
+     * types too.
+     */
+    public void registerRpcTypes(int requestId, int responseId) {
+        register(requestId, RpcRequest.class);
+        register(responseId, RpcResponse.class);
+    }
+
+    /**
+     * @return a codec that encodes and decodes the types of this registry
+     */
+    public Codec newCodec() {
+        /* BinaryDecode reads between position and limit and keeps nothing */
+        return new Codec(new BinaryEncode(this), new BinaryDecode(this), true);
+    }
+
+    TypeCodec forClass(Class<?> type) throws IOException {
+        TypeCodec codec = byClass.get(type);
+        if (codec == null) throw new IOException("Unregistered type: " + type.getName());
+        codec.resolve(this);
+        return codec;
+    }
+
+    TypeCodec forId(int id) throws IOException {
+        TypeCodec codec = byId.get(id);
+        if (codec == null) throw new IOException("Unknown type ID: " + id);
+        codec.resolve(this);
+        return codec;
+    }
+
+    /**
+     * Writes a registered object, or null, prefixed with its type ID
+     */
+    void writeObject(BinaryOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeVarInt(0);
+            return;
+        }
+        TypeCodec codec = forClass(value.getClass());
+        if (++out.depth > MAX_DEPTH) {
+            throw new IOException("Object graph is cyclic or nested deeper than " + MAX_DEPTH);
+        }
+        try {
+            out.writeVarInt(codec.id);
+            codec.writeFields(out, value);
+        } finally {
+            out.depth--;
+        }
+    }
+
+    Object readObject(BinaryInput in) throws IOException {
+        int id = in.readVarInt();
+        if (id == 0) return null;
+        if (++in.depth > MAX_DEPTH) throw new IOException("Objects nested deeper than " + MAX_DEPTH);
+        try {
+            return forId(id).readFields(in);
+        } finally {
+            in.depth--;
+        }
+    }
+
+    /**
+     * Writes and reads the fields of one registered class
+     */
+    static final class TypeCodec {
+        final int id;
+
+        private final Constructor<?> constructor;
+        private volatile FieldCodec[] fields;
+
+        TypeCodec(int id, Constructor<?> constructor) {
+            this.id = id;
+            this.constructor = constructor;
+        }
+
+        /**
+         * Builds the field codecs on first use, so registered classes may refer to each other
+         * regardless of registration order
+         */
+        void resolve(TypeRegistry registry) {
+            if (fields != null) return;
+            synchronized (this) {
+                if (fields != null) return;
+                List<Field> all = new ArrayList<Field>();
+                for (Class<?> c = constructor.getDeclaringClass(); c != Object.class;
+                     c = c.getSuperclass()) {
+                    List<Field> declared = new ArrayList<Field>();
+                    for (Field f : c.getDeclaredFields()) {
+                        int mod = f.getModifiers();
+                        if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isSynthetic()) {
+                            continue;
+                        }
+                        f.setAccessible(true);
+                        declared.add(f);
+                    }
+                    Collections.sort(declared, new Comparator<Field>() {
+                        @Override public int compare(Field a, Field b) {
+                            return a.getName().compareTo(b.getName());
+                        }
+                    });
+                    /* Superclass fields go first */
+                    all.addAll(0, declared);
+                }
+                FieldCodec[] resolved = new FieldCodec[all.size()];
+                for (int i = 0; i < resolved.length; i++) {
+                    resolved[i] = FieldCodec.forField(all.get(i), registry);
+                }
+                fields = resolved;
+            }
+        }
+
+        void writeFields(BinaryOutput out, Object value) throws IOException {
+            try {
+                for (FieldCodec f : fields) {
+                    f.write(out, value);
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException(e);
+            }
+        }
+
+        Object readFields(BinaryInput in) throws IOException {
+            try {
+                Object value = constructor.newInstance();
+                for (FieldCodec f : fields) {
+                    f.read(in, value);
+                }
+                return value;
+            } catch (IllegalAccessException e) {
+                throw new IOException(e);
+            } catch (InstantiationException e) {
+                throw new IOException(e);
+            } catch (InvocationTargetException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Writes and reads a single field of an object
+     */
+    abstract static class FieldCodec {
+        final Field field;
+
+        FieldCodec(Field field) {
+            this.field = field;
+        }
+
+        abstract void write(BinaryOutput out, Object owner) throws IOException, IllegalAccessException;
+
+        abstract void read(BinaryInput in, Object owner) throws IOException, IllegalAccessException;
+
+        static FieldCodec forField(Field field, TypeRegistry registry) {
+            Class<?> type = field.getType();
+            if (type.isPrimitive()) {
+                return new PrimitiveField(field);
+            }
+            return new ValueField(field, ValueCodec.forType(type, registry));
+        }
+    }
+
+    /**
+     * A primitive field, read and written without boxing
+     */
+    static final class PrimitiveField extends FieldCodec {
+        private final Class<?> type;
+
+        PrimitiveField(Field field) {
+            super(field);
+            this.type = field.getType();
+        }
+
+        @Override void write(BinaryOutput out, Object owner) throws IllegalAccessException {
+            if (type == int.class) {
+                out.writeSignedVarInt(field.getInt(owner));
+            } else if (type == long.class) {
+                out.writeSignedVarLong(field.getLong(owner));
+            } else if (type == boolean.class) {
+                out.writeByte(field.getBoolean(owner) ? 1 : 0);
+            } else if (type == byte.class) {
+                out.writeByte(field.getByte(owner));
+            } else if (type == short.class) {
+                out.writeShort(field.getShort(owner));
+            } else if (type == char.class) {
+                out.writeShort(field.getChar(owner));
+            } else if (type == float.class) {
+                out.writeFixedInt(Float.floatToIntBits(field.getFloat(owner)));
+            } else {
+                out.writeFixedLong(Double.doubleToLongBits(field.getDouble(owner)));
+            }
+        }
+
+        @Override void read(BinaryInput in, Object owner) throws IOException, IllegalAccessException {
+            if (type == int.class) {
+                field.setInt(owner, in.readSignedVarInt());
+            } else if (type == long.class) {
+                field.setLong(owner, in.readSignedVarLong());
+            } else if (type == boolean.class) {
+                field.setBoolean(owner, in.readByte() != 0);
+            } else if (type == byte.class) {
+                field.setByte(owner, (byte) in.readByte());
+            } else if (type == short.class) {
+                field.setShort(owner, (short) in.readShort());
+            } else if (type == char.class) {
+                field.setChar(owner, (char) in.readShort());
+            } else if (type == float.class) {
+                field.setFloat(owner, Float.intBitsToFloat(in.readFixedInt()));
+            } else {
+                field.setDouble(owner, Double.longBitsToDouble(in.readFixedLong()));
+            }
+        }
+    }
+
+    /**
+     * A field holding a reference, written with the value codec of its declared type
+     */
+    static final class ValueField extends FieldCodec {
+        private final ValueCodec codec;
+
+        ValueField(Field field, ValueCodec codec) {
+            super(field);
+            this.codec = codec;
+        }
+
+        @Override void write(BinaryOutput out, Object owner) throws IOException, IllegalAccessException {
+            codec.write(out, field.get(owner));
+        }
+
+        @Override void read(BinaryInput in, Object owner) throws IOException, IllegalAccessException {
+            field.set(owner, codec.read(in));
+        }
+    }
+
+    /**
+     * Writes and reads a nullable value of one declared type
+     */
+    abstract static class ValueCodec {
+        abstract void write(BinaryOutput out, Object value) throws IOException;
+
+        abstract Object read(BinaryInput in) throws IOException;
+
+        static ValueCodec forType(final Class<?> type, final TypeRegistry registry) {
+            if (type == String.class) {
+                return new ValueCodec() {
+                    @Override void write(BinaryOutput out, Object value) {
+                        out.writeString((String) value);
+                    }
+
+                    @Override Object read(BinaryInput in) throws IOException {
+                        return in.readString();
+                    }
+                };
+            }
+            if (type == byte[].class) {
+                return new ValueCodec() {
+                    @Override void write(BinaryOutput out, Object value) {
+                        if (value == null) {
+                            out.writeLength(-1);
+                            return;
+                        }
+                        byte[] bytes = (byte[]) value;
+                        out.writeLength(bytes.length);
+                        out.writeBytes(bytes, 0, bytes.length);
+                    }
+
+                    @Override Object read(BinaryInput in) throws IOException {
+                        int length = in.readLength();
+                        if (length < 0) return null;
+                        byte[] bytes = new byte[length];
+                        in.readBytes(bytes, 0, length);
+                        return bytes;
+                    }
+                };
+            }
+            if (type.isArray()) {
+                return new ArrayCodec(type.getComponentType(), registry);
+            }
+            if (type.isEnum()) {
+                return new EnumCodec(type);
+            }
+            if (isWrapper(type)) {
+                return new WrapperCodec(type);
+            }
+            if (type.isInterface() && type != Object.class) {
+                throw new IllegalArgumentException("Unsupported field type: " + type.getName());
+            }
+            /* Declared as a registered class or as Object, the runtime type is written with it */
+            return new ValueCodec() {
+                @Override void write(BinaryOutput out, Object value) throws IOException {
+                    registry.writeObject(out, value);
+                }
+
+                @Override Object read(BinaryInput in) throws IOException {
+                    Object value = registry.readObject(in);
+                    if (value != null && !type.isInstance(value)) {
+                        throw new IOException("Expected " + type.getName() + " but got "
+                                                      + value.getClass().getName());
+                    }
+                    return value;
+                }
+            };
+        }
+
+        private static boolean isWrapper(Class<?> type) {
+            return type == Integer.class || type == Long.class || type == Boolean.class
+                    || type == Byte.class || type == Short.class || type == Character.class
+                    || type == Float.class || type == Double.class;
+        }
+    }
+
+    /**
+     * Writes a boxed primitive behind a presence byte
+     */
+    static final class WrapperCodec extends ValueCodec {
+        private final Class<?> type;
+
+        WrapperCodec(Class<?> type) {
+            this.type = type;
+        }
+
+        @Override void write(BinaryOutput out, Object value) {
+            if (value == null) {
+                out.writeByte(0);
+                return;
+            }
+            out.writeByte(1);
+            if (type == Integer.class) {
+                out.writeSignedVarInt((Integer) value);
+            } else if (type == Long.class) {
+                out.writeSignedVarLong((Long) value);
+            } else if (type == Boolean.class) {
+                out.writeByte((Boolean) value ? 1 : 0);
+            } else if (type == Byte.class) {
+                out.writeByte((Byte) value);
+            } else if (type == Short.class) {
+                out.writeShort((Short) value);
+            } else if (type == Character.class) {
+                out.writeShort((Character) value);
+            } else if (type == Float.class) {
+                out.writeFixedInt(Float.floatToIntBits((Float) value));
+            } else {
+                out.writeFixedLong(Double.doubleToLongBits((Double) value));
+            }
+        }
+
+        @Override Object read(BinaryInput in) throws IOException {
+            if (in.readByte() == 0) return null;
+            if (type == Integer.class) return in.readSignedVarInt();
+            if (type == Long.class) return in.readSignedVarLong();
+            if (type == Boolean.class) return in.readByte() != 0;
+            if (type == Byte.class) return (byte) in.readByte();
+            if (type == Short.class) return (short) in.readShort();
+            if (type == Character.class) return (char) in.readShort();
+            if (type == Float.class) return Float.intBitsToFloat(in.readFixedInt());
+            return Double.longBitsToDouble(in.readFixedLong());
+        }
+    }
+
+    /**
+     * Writes an enum constant as its ordinal
+     */
+    static final class EnumCodec extends ValueCodec {
+        private final Object[] constants;
+
+        EnumCodec(Class<?> type) {
+            constants = type.getEnumConstants();
+        }
+
+        @Override void write(BinaryOutput out, Object value) {
+            out.writeVarInt(value == null ? 0 : ((Enum<?>) value).ordinal() + 1);
+        }
+
+        @Override Object read(BinaryInput in) throws IOException {
+            int ordinal = in.readVarInt() - 1;
+            if (ordinal < 0) return null;
+            if (ordinal >= constants.length) throw new IOException("Unknown enum ordinal: " + ordinal);
+            return constants[ordinal];
+        }
+    }
+
+    /**
+     * Writes an array as its length followed by its elements
+     */
+    static final class ArrayCodec extends ValueCodec {
+        private final Class<?>   componentType;
+        private final ValueCodec elementCodec;
+
+        ArrayCodec(Class<?> componentType, TypeRegistry registry) {
+            this.componentType = componentType;
+            this.elementCodec = componentType.isPrimitive() ? null
+                    : ValueCodec.forType(componentType, registry);
+        }
+
+        @Override void write(BinaryOutput out, Object value) throws IOException {
+            if (value == null) {
+                out.writeLength(-1);
+                return;
+            }
+            int length = Array.getLength(value);
+            out.writeLength(length);
+            if (componentType == int.class) {
+                for (int v : (int[]) value) out.writeSignedVarInt(v);
+            } else if (componentType == long.class) {
+                for (long v : (long[]) value) out.writeSignedVarLong(v);
+            } else if (componentType == boolean.class) {
+                for (boolean v : (boolean[]) value) out.writeByte(v ? 1 : 0);
+            } else if (componentType == short.class) {
+                for (short v : (short[]) value) out.writeShort(v);
+            } else if (componentType == char.class) {
+                for (char v : (char[]) value) out.writeShort(v);
+            } else if (componentType == float.class) {
+                for (float v : (float[]) value) out.writeFixedInt(Float.floatToIntBits(v));
+            } else if (componentType == double.class) {
+                for (double v : (double[]) value) out.writeFixedLong(Double.doubleToLongBits(v));
+            } else {
+                for (Object v : (Object[]) value) elementCodec.write(out, v);
+            }
+        }
+
+        @Override Object read(BinaryInput in) throws IOException {
+            int length = in.readLength();
+            if (length < 0) return null;
+            if (componentType == int.class) {
+                int[] a = new int[length];
+                for (int i = 0; i < length; i++) a[i] = in.readSignedVarInt();
+                return a;
+            } else if (componentType == long.class) {
+                long[] a = new long[length];
+                for (int i = 0; i < length; i++) a[i] = in.readSignedVarLong();
+                return a;
+            } else if (componentType == boolean.class) {
+                boolean[] a = new boolean[length];
+                for (int i = 0; i < length; i++) a[i] = in.readByte() != 0;
+                return a;
+            } else if (componentType == short.class) {
+                short[] a = new short[length];
+                for (int i = 0; i < length; i++) a[i] = (short) in.readShort();
+                return a;
+            } else if (componentType == char.class) {
+                char[] a = new char[length];
+                for (int i = 0; i < length; i++) a[i] = (char) in.readShort();
+                return a;
+            } else if (componentType == float.class) {
+                float[] a = new float[length];
+                for (int i = 0; i < length; i++) a[i] = Float.intBitsToFloat(in.readFixedInt());
+                return a;
+            } else if (componentType == double.class) {
+                double[] a = new double[length];
+                for (int i = 0; i < length; i++) a[i] = Double.longBitsToDouble(in.readFixedLong());
+                return a;
+            }
+            Object[] a = (Object[]) Array.newInstance(componentType, length);
+            for (int i = 0; i < length; i++) a[i] = elementCodec.read(in);
+            return a;
+        }
+    }
+}
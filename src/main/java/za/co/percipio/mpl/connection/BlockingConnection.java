@@ -0,0 +1,121 @@
+package za.co.percipio.mpl.connection;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import za.co.percipio.mpl.exception.ConnectionException;
+
+/**
+ * A blocking view of a {@link Connection}, for code that runs on its own thread per connection
+ * rather than in listener callbacks. Received messages are held in an inbox until
+ * {@link #receive()} takes them; reading from the connection is paused while the inbox is full, so
+ * a slow reader pushes back on the peer through TCP flow control.
+ * <p/>
+ * The I/O is still done by the {@link ConnectionHandler} of the connection, so the threads calling
+ * receive and send may be cheap threads such as the virtual threads of newer JDKs. See
+ * {@link BlockingConnectionListener}.
+ */
+public class BlockingConnection {
+    /* Marks the end of the inbox once the connection has closed */
+    private static final Object CLOSED = new Object();
+
+    private final Connection                  connection;
+    private final LinkedBlockingQueue<Object> inbox;
+    private final int                         capacity;
+    /* Guards pausing and resuming, so the two can't overtake each other */
+    private final Object                      pauseLock;
+    private       boolean                     paused;
+
+    BlockingConnection(Connection connection, int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Invalid inbox capacity");
+        this.connection = connection;
+        this.capacity = capacity;
+        this.inbox = new LinkedBlockingQueue<Object>();
+        this.pauseLock = new Object();
+    }
+
+    /**
+     * Waits for the next message
+     *
+     * @return the next message received on the connection
+     * @throws ConnectionException  if the connection closed and every message received before has
+     *                              been taken
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public Object receive() throws ConnectionException, InterruptedException {
+        return taken(inbox.take());
+    }
+
+    /**
+     * Waits up to the given time for the next message
+     *
+     * @return the next message, or null if none was received in time
+     * @throws ConnectionException  if the connection closed and every message received before has
+     *                              been taken
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public Object receive(long timeout, TimeUnit unit)
+            throws ConnectionException, InterruptedException {
+        Object m = inbox.poll(timeout, unit);
+        return m == null ? null : taken(m);
+    }
+
+    /**
+     * Queues a message, waiting while the connection is above its outbound high watermark instead of
+     * applying the overflow policy
+     *
+     * @throws ConnectionException  if the connection is closed
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public void send(Object message) throws ConnectionException, InterruptedException {
+        connection.awaitWritable();
+        if (!connection.checkIsConnected()) throw new ConnectionException("Connection closed");
+        connection.enqueue(message);
+    }
+
+    /**
+     * Disconnects the connection, messages that are still in the inbox can be received afterwards
+     */
+    public void close() {
+        connection.disconnect();
+    }
+
+    public boolean isConnected() {
+        return connection.checkIsConnected();
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    private Object taken(Object m) throws ConnectionException {
+        if (m == CLOSED) {
+            /* Leave the marker for other threads waiting on this connection */
+            inbox.offer(CLOSED);
+            throw new ConnectionException("Connection closed");
+        }
+        synchronized (pauseLock) {
+            if (paused && inbox.size() <= capacity / 2) {
+                paused = false;
+                connection.resumeReading();
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Called from the thread delivering the messages of the connection
+     */
+    void deliver(Object message) {
+        inbox.offer(message);
+        synchronized (pauseLock) {
+            if (!paused && inbox.size() >= capacity) {
+                paused = true;
+                connection.pauseReading();
+            }
+        }
+    }
+
+    void onClosed() {
+        inbox.offer(CLOSED);
+    }
+}
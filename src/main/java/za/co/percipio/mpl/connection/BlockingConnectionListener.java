@@ -0,0 +1,126 @@
+package za.co.percipio.mpl.connection;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import za.co.percipio.minlog.Log;
+import za.co.percipio.mpl.MPLServer;
+import za.co.percipio.mpl.exception.ConnectionException;
+import za.co.percipio.mpl.listener.ConnectionListener;
+import za.co.percipio.mpl.listener.ConnectionTask;
+import za.co.percipio.mpl.listener.ServerConnectionListener;
+
+/**
+ * Runs a {@link ConnectionTask} on its own thread for every connection, with a
+ * {@link BlockingConnection} to receive and send messages. The connection is disconnected when the
+ * task returns.
+ * <p/>
+ * The threads are created by the given ThreadFactory. On a JDK with virtual threads, pass
+ * <code>Thread.ofVirtual().factory()</code> to serve many connections with plain blocking code
+ * while the handlers keep doing the I/O. By default a platform thread is started per connection.
+ */
+public class BlockingConnectionListener implements ConnectionListener, ServerConnectionListener {
+    public static final int DEFAULT_INBOX_CAPACITY = 1024;
+
+    private final ConnectionTask                                   task;
+    private final ThreadFactory                                    threadFactory;
+    private final int                                              inboxCapacity;
+    private final ConcurrentHashMap<Connection, BlockingConnection> connections;
+
+    public BlockingConnectionListener(ConnectionTask task) {
+        this(task, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Connection Thread " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, DEFAULT_INBOX_CAPACITY);
+    }
+
+    /**
+     * @param task          run for every connection
+     * @param threadFactory creates the thread of every connection
+     * @param inboxCapacity the number of received messages after which reading from a connection is
+     *                      paused until its task catches up
+     */
+    public BlockingConnectionListener(ConnectionTask task, ThreadFactory threadFactory,
+            int inboxCapacity) {
+        if (inboxCapacity < 1) throw new IllegalArgumentException("Invalid inbox capacity");
+        this.task = task;
+        this.threadFactory = threadFactory;
+        this.inboxCapacity = inboxCapacity;
+        this.connections = new ConcurrentHashMap<Connection, BlockingConnection>();
+    }
+
+    @Override public void onConnect(final Connection connection) {
+        final BlockingConnection blocking = new BlockingConnection(connection, inboxCapacity);
+        connections.put(connection, blocking);
+        Runnable runner = new Runnable() {
+            @Override public void run() {
+                try {
+                    task.run(blocking);
+                } catch (ConnectionException e) {
+                    /* The usual way for a task to learn that its connection has closed */
+                    Log.debug("Connection task ended", e);
+                } catch (InterruptedException e) {
+                    Log.debug("Connection task interrupted", e);
+                } catch (Exception e) {
+                    Log.error("Connection task threw an exception", e);
+                } finally {
+                    connection.disconnect();
+                }
+            }
+        };
+        Thread thread = threadFactory.newThread(runner);
+        if (thread == null) {
+            Log.error("Could not create a thread for " + connection);
+            connections.remove(connection);
+            connection.disconnect();
+            return;
+        }
+        thread.start();
+    }
+
+    @Override public void onMessageReceived(Connection connection, Object message) {
+        BlockingConnection blocking = connections.get(connection);
+        if (blocking != null) {
+            blocking.deliver(message);
+        }
+    }
+
+    @Override public void onDisconnect(Connection connection) {
+        closed(connection);
+    }
+
+    @Override public void onConnectionError(Connection connection, Throwable error) {
+        Log.debug("Connection error on " + connection, error);
+        if (connection != null) closed(connection);
+    }
+
+    @Override public void onDeserializationError(Connection connection, Throwable error) {
+        Log.error("Message could not be deserialized on " + connection, error);
+    }
+
+    @Override public void onSerializationError(Connection connection, Throwable error) {
+        Log.error("Message could not be serialized on " + connection, error);
+    }
+
+    @Override public void onServerStart(MPLServer server) {
+    }
+
+    @Override public void onServerStop(MPLServer server) {
+    }
+
+    @Override public void onServerError(MPLServer server, Throwable t) {
+        Log.error("Server error", t);
+    }
+
+    private void closed(Connection connection) {
+        BlockingConnection blocking = connections.remove(connection);
+        if (blocking != null) {
+            blocking.onClosed();
+        }
+    }
+}
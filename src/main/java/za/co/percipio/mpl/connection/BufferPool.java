@@ -0,0 +1,148 @@
+package za.co.percipio.mpl.connection;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-classed pool of ByteBuffers. Every size class holds buffers whose capacity is a power of two
+ * between the minimum and maximum buffer size. Requests larger than the maximum size are always
+ * allocated and never pooled.
+ * <p/>
+ * Each {@link ConnectionHandler} owns one pool, the hit and miss counters can be used to size it.
+ */
+public class BufferPool {
+    public static final int DEFAULT_MIN_BUFFER_SIZE   = 256;
+    public static final int DEFAULT_MAX_BUFFER_SIZE   = 1 << 20;
+    public static final int DEFAULT_BUFFERS_PER_CLASS = 64;
+
+    private final boolean direct;
+    private final int     minShift;
+    private final int     maxShift;
+    private final int     buffersPerClass;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] classes;
+    private final AtomicInteger[]                     classSizes;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    public BufferPool(boolean direct) {
+        this(direct, DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * @param direct          whether direct buffers should be allocated
+     * @param minBufferSize   the capacity of the smallest size class, rounded up to a power of two
+     * @param maxBufferSize   the capacity of the largest size class, rounded up to a power of two
+     * @param buffersPerClass the maximum number of idle buffers kept per size class
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean direct, int minBufferSize, int maxBufferSize, int buffersPerClass) {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+            throw new IllegalArgumentException("Invalid buffer size range");
+        }
+        this.direct = direct;
+        this.minShift = shiftFor(minBufferSize);
+        this.maxShift = shiftFor(maxBufferSize);
+        this.buffersPerClass = buffersPerClass;
+
+        int count = maxShift - minShift + 1;
+        classes = new ConcurrentLinkedQueue[count];
+        classSizes = new AtomicInteger[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            classSizes[i] = new AtomicInteger();
+        }
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * Leases a buffer that can hold at least <code>size</code> bytes. The returned buffer has its
+     * position set to zero and its limit set to <code>size</code>.
+     *
+     * @param size the number of bytes required
+     */
+    public ByteBuffer acquire(int size) {
+        int index = classIndex(size);
+        ByteBuffer buffer = null;
+        if (index >= 0) {
+            buffer = classes[index].poll();
+        }
+        if (buffer != null) {
+            classSizes[index].decrementAndGet();
+            hits.incrementAndGet();
+            buffer.clear();
+        } else {
+            misses.incrementAndGet();
+            buffer = allocate(index >= 0 ? 1 << (index + minShift) : size);
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer previously obtained from {@link #acquire(int)}. Buffers that do not belong to
+     * a size class, or whose size class is already full, are left for the garbage collector.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct || buffer.isReadOnly()) return;
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1) return;
+        int index = classIndex(capacity);
+        if (index < 0 || (1 << (index + minShift)) != capacity) return;
+        if (classSizes[index].incrementAndGet() > buffersPerClass) {
+            classSizes[index].decrementAndGet();
+            return;
+        }
+        classes[index].offer(buffer);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return the capacity of the largest pooled size class
+     */
+    public int getMaxBufferSize() {
+        return 1 << maxShift;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private int classIndex(int size) {
+        if (size > (1 << maxShift)) return -1;
+        int shift = shiftFor(size);
+        return Math.max(shift, minShift) - minShift;
+    }
+
+    private static int shiftFor(int size) {
+        if (size <= 1) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    @Override public String toString() {
+        final StringBuilder sb = new StringBuilder("BufferPool{");
+        sb.append("direct=");
+        sb.append(direct);
+        sb.append(", hits=");
+        sb.append(hits.get());
+        sb.append(", misses=");
+        sb.append(misses.get());
+        sb.append('}');
+        return sb.toString();
+    }
+}
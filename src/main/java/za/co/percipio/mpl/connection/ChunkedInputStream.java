@@ -0,0 +1,146 @@
+package za.co.percipio.mpl.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * The receiving end of a chunked stream. The handler thread adds the chunks as they are read, in
+ * buffers leased from the pool, and a stream thread reads them. Chunks are returned to the pool once
+ * they have been read.
+ * <p/>
+ * The queue itself is not bounded, the connection pauses reading while it is full.
+ */
+final class ChunkedInputStream extends InputStream {
+    private final BufferPool            pool;
+    private final ArrayDeque<ByteBuffer> chunks;
+    /* Run by the reading thread when the queue drops to the low watermark */
+    private final Runnable              onDrained;
+    private final int                   lowWaterMark;
+
+    private ByteBuffer  current;
+    private boolean     ended;
+    private boolean     closed;
+    private IOException failure;
+
+    ChunkedInputStream(BufferPool pool, int lowWaterMark, Runnable onDrained) {
+        this.pool = pool;
+        this.chunks = new ArrayDeque<ByteBuffer>();
+        this.lowWaterMark = lowWaterMark;
+        this.onDrained = onDrained;
+    }
+
+    /**
+     * Adds a chunk, the stream takes over the buffer
+     *
+     * @return the number of chunks waiting to be read
+     */
+    synchronized int add(ByteBuffer chunk) {
+        if (closed || ended) {
+            pool.release(chunk);
+            return 0;
+        }
+        chunks.add(chunk);
+        notifyAll();
+        return chunks.size();
+    }
+
+    /**
+     * Marks the end of the stream, the reader sees the end once it has read every chunk
+     */
+    synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+    /**
+     * Fails the stream, the reader sees the failure once it has read every chunk
+     */
+    synchronized void fail(IOException e) {
+        if (ended) return;
+        failure = e;
+        ended = true;
+        notifyAll();
+    }
+
+    @Override public int read() throws IOException {
+        ByteBuffer b = nextChunk();
+        return b == null ? -1 : b.get() & 0xFF;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+        ByteBuffer chunk = nextChunk();
+        if (chunk == null) return -1;
+        int count = Math.min(len, chunk.remaining());
+        chunk.get(b, off, count);
+        return count;
+    }
+
+    @Override public synchronized int available() {
+        int count = current == null ? 0 : current.remaining();
+        for (ByteBuffer b : chunks) {
+            count += b.remaining();
+        }
+        return count;
+    }
+
+    /**
+     * Discards the rest of the stream, chunks that arrive later are dropped
+     */
+    @Override public void close() {
+        boolean drained;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            drained = !chunks.isEmpty();
+            if (current != null) {
+                pool.release(current);
+                current = null;
+            }
+            ByteBuffer b;
+            while ((b = chunks.poll()) != null) {
+                pool.release(b);
+            }
+            notifyAll();
+        }
+        if (drained) onDrained.run();
+    }
+
+    /**
+     * @return the chunk to read from, or null at the end of the stream
+     */
+    private ByteBuffer nextChunk() throws IOException {
+        boolean drained = false;
+        ByteBuffer next;
+        synchronized (this) {
+            if (closed) throw new IOException("Stream closed");
+            if (current != null && current.hasRemaining()) return current;
+            if (current != null) {
+                pool.release(current);
+                current = null;
+            }
+            while (chunks.isEmpty() && !ended) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (closed) throw new IOException("Stream closed");
+            }
+            next = chunks.poll();
+            if (next == null) {
+                if (failure != null) throw failure;
+                return null;
+            }
+            current = next;
+            drained = chunks.size() == lowWaterMark;
+        }
+        if (drained) onDrained.run();
+        return next;
+    }
+}
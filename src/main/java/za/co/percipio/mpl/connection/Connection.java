@@ -1,22 +1,45 @@
 package za.co.percipio.mpl.connection;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import za.co.percipio.minlog.Log;
+import za.co.percipio.mpl.codec.ByteBufferInputStream;
 import za.co.percipio.mpl.codec.Codec;
 import za.co.percipio.mpl.exception.ConnectionException;
 import za.co.percipio.mpl.exception.DecodeException;
 import za.co.percipio.mpl.exception.EncodeException;
+import za.co.percipio.mpl.exception.RequestFailedException;
+import za.co.percipio.mpl.exception.WriteBufferFullException;
 import za.co.percipio.mpl.listener.ConnectionListener;
+import za.co.percipio.mpl.listener.RequestListener;
+import za.co.percipio.mpl.listener.StreamListener;
+import za.co.percipio.mpl.listener.WritabilityListener;
+import za.co.percipio.mpl.rpc.IncomingRequest;
+import za.co.percipio.mpl.rpc.ResponseFuture;
+import za.co.percipio.mpl.rpc.ResponseListener;
+import za.co.percipio.mpl.rpc.RpcRequest;
+import za.co.percipio.mpl.rpc.RpcResponse;
 
 /**
  * A messaging channel between two hosts
@@ -24,25 +47,96 @@ import za.co.percipio.mpl.listener.ConnectionListener;
  * @author Chris Coetzee
  */
 public class Connection {
-    private static final ByteBuffer[] EMPTY_BUFFER_ARRAY = new ByteBuffer[0];
-    private       ConnectionHandler  parent;
-    private       ConnectionListener currentListener;
+    /* The maximum number of buffers handed to a single gathering write */
+    private static final int MAX_GATHER_BUFFERS = 64;
+    /* The size of the chunk frames a stream is sent in */
+    private static final int STREAM_CHUNK_SIZE  = 32 * 1024;
+    /* Reading pauses once a received stream has this many chunks waiting to be read */
+    private static final int MAX_QUEUED_CHUNKS  = 16;
+    private volatile ConnectionHandler parent;
+    private final ConnectionListener currentListener;
     private final Codec              codec;
+    private final BufferPool         pool;
 
     private SocketChannel channel;
-    private SelectionKey  key;
+    private volatile SelectionKey key;
     private AtomicBoolean hasSetWriteReady;
+    /* Held by whichever thread is encoding into or writing out the pending output */
+    private AtomicBoolean writing;
+    private final boolean directWrite;
+    /* Applies the interest ops on the handler thread */
+    private final Runnable updateInterestOpsTask;
+    /* Guards the connected state during disconnects */
+    private final Object  stateLock;
 
-    private List<Object>     queuedMessages;
-    private List<ByteBuffer> pendingOutputBytes;
-    private List<ByteBuffer> pendingInputBytes;
+    private MpscQueue<Object> queuedMessages;
+    private Deque<ByteBuffer> pendingOutputBytes;
+    private ByteBuffer[]      writeWindow;
+    /* Stream encoded frames are written into pooled chunks */
+    private final PooledOutputStream encodeSink;
+    /* The pooled chunks in pendingOutputBytes, in the same order, released once written */
+    private final Deque<ByteBuffer>  leasedOutput;
+    private final FrameFormat        frameFormat;
+    /* The batch frame small messages are currently appended to, positioned after the last one */
+    private       ByteBuffer         batch;
+    private       int                batchCount;
+    private final int                maxBatchSize;
+    private final int                maxFrameSize;
+    private final AtomicInteger      nextStreamId;
 
-    private ByteBuffer nextObjectSizeBuffer;
-    private int        nextObjectSize;
-    private boolean    hasReadNextSize;
+    /* Holds bytes read from the channel that have not been parsed into frames yet */
+    private       ByteBuffer receiveBuffer;
+    /* Holds a frame that does not fit into the receive buffer */
+    private       ByteBuffer spillBuffer;
+    private       int        spillKind;
+    private final int        receiveBufferSize;
+    /* When bytes were last read from the channel */
+    private volatile long    lastReadMillis;
+
+    /* Outbound backpressure */
+    private final AtomicInteger  queuedMessageCount;
+    private final AtomicLong     pendingByteCount;
+    private final AtomicBoolean  writable;
+    private final Object         writabilityLock;
+    private final Runnable       notifyWritabilityTask;
+    private       boolean        notifiedWritable;
+    private final long           lowWaterMarkBytes;
+    private final long           highWaterMarkBytes;
+    private final int            lowWaterMarkMessages;
+    private final int            highWaterMarkMessages;
+    private final OverflowPolicy overflowPolicy;
+
+    /* Inbound backpressure */
+    private volatile boolean       readPaused;
+    private final    AtomicBoolean autoReadPaused;
+    private final    AtomicInteger undeliveredMessageCount;
+    private final    int           lowWaterMarkUndelivered;
+    private final    int           highWaterMarkUndelivered;
+    private final    Runnable      resumeReadingTask;
+
+    /* Chunked streams being received, by stream ID */
+    private final HashMap<Integer, InboundStream> inboundStreams;
+    private final int                             maxInboundStreams;
+    private final int                             maxMessageSize;
+    private final Executor                        streamExecutor;
+    private final AtomicBoolean                   streamReadPaused;
+    /* Set while the last chunk of a message has been read but the message is still being decoded */
+    private final AtomicBoolean                   decodeReadPaused;
+    private final Runnable                        streamDrainedTask;
+
+    /* Decodes and delivers messages in order off the handler thread, null to do so inline */
+    private final SerialExecutor dispatcher;
+
+    /* The requests waiting for a response, by correlation ID */
+    private final ConcurrentHashMap<Integer, ResponseFuture<Object>> pendingRequests;
+    private final AtomicInteger                                      nextRequestId;
+    private final Semaphore                                          requestPermits;
+    private final long                                               requestTimeoutMillis;
 
     private volatile boolean connected;
     private volatile boolean hasCleaned;
+    /* Set while the connection moves to another handler, when its old key is already cancelled */
+    private volatile boolean moving;
 
     private final CountDownLatch disconnectLatch;
 
@@ -54,49 +148,513 @@ public class Connection {
      * @param key
      */
     public Connection(ConnectionHandler parent, SelectionKey key, Codec codec) {
+        this(parent, key, codec, new ConnectionFactory(codec));
+    }
+
+    /**
+     * Create a new Connection that takes its settings from the given factory.
+     *
+     * @param parent
+     * @param key
+     * @param codec    the codec used by this connection
+     * @param settings the factory that holds the settings for this connection
+     */
+    public Connection(ConnectionHandler parent, SelectionKey key, Codec codec,
+            ConnectionFactory settings) {
+        this(parent, key, codec, settings, parent.getConnectionEventListener());
+    }
+
+    /**
+     * Create a new Connection that takes its settings from the given factory and reports its
+     * events to its own listener rather than that of the handler.
+     *
+     * @param parent
+     * @param key
+     * @param codec    the codec used by this connection
+     * @param settings the factory that holds the settings for this connection
+     * @param listener receives the events of this connection
+     */
+    public Connection(ConnectionHandler parent, SelectionKey key, Codec codec,
+            ConnectionFactory settings, ConnectionListener listener) {
+        if (listener == null) throw new NullPointerException("No listener for the connection");
         disconnectLatch = new CountDownLatch(1);
-        queuedMessages = new LinkedList<Object>();
+        lastReadMillis = System.currentTimeMillis();
+        queuedMessages = new MpscQueue<Object>();
+        updateInterestOpsTask = new Runnable() {
+            @Override public void run() {
+                if (forwardIfMoved(this)) return;
+                updateInterestOps();
+            }
+        };
+        stateLock = new Object();
         hasSetWriteReady = new AtomicBoolean();
-        pendingOutputBytes = new LinkedList<ByteBuffer>();
-        pendingInputBytes = new LinkedList<ByteBuffer>();
-        nextObjectSizeBuffer = ByteBuffer.allocate(4);
+        writing = new AtomicBoolean();
+        directWrite = settings.isDirectWrite();
+
+        queuedMessageCount = new AtomicInteger();
+        pendingByteCount = new AtomicLong();
+        writable = new AtomicBoolean(true);
+        notifiedWritable = true;
+        writabilityLock = new Object();
+        notifyWritabilityTask = new Runnable() {
+            @Override public void run() {
+                if (forwardIfMoved(this)) return;
+                notifyWritabilityChanged();
+            }
+        };
+        lowWaterMarkBytes = settings.getLowWaterMarkBytes();
+        highWaterMarkBytes = settings.getHighWaterMarkBytes();
+        lowWaterMarkMessages = settings.getLowWaterMarkMessages();
+        highWaterMarkMessages = settings.getHighWaterMarkMessages();
+        overflowPolicy = settings.getOverflowPolicy();
+
+        autoReadPaused = new AtomicBoolean();
+        undeliveredMessageCount = new AtomicInteger();
+        lowWaterMarkUndelivered = settings.getLowWaterMarkUndelivered();
+        highWaterMarkUndelivered = settings.getHighWaterMarkUndelivered();
+        resumeReadingTask = new Runnable() {
+            @Override public void run() {
+                if (forwardIfMoved(this)) return;
+                resumeReadingInternal();
+            }
+        };
+        maxFrameSize = settings.getMaxFrameSize();
+        nextStreamId = new AtomicInteger();
+        inboundStreams = new HashMap<Integer, InboundStream>();
+        maxInboundStreams = settings.getMaxInboundStreams();
+        maxMessageSize = settings.getMaxMessageSize();
+        streamExecutor = settings.getStreamExecutor();
+        Executor decodeExecutor = settings.getDecodeExecutor();
+        dispatcher = decodeExecutor == null ? null : new SerialExecutor(decodeExecutor);
+        streamReadPaused = new AtomicBoolean();
+        decodeReadPaused = new AtomicBoolean();
+        pendingRequests = new ConcurrentHashMap<Integer, ResponseFuture<Object>>();
+        nextRequestId = new AtomicInteger();
+        requestPermits = new Semaphore(settings.getMaxRequestsInFlight());
+        requestTimeoutMillis = settings.getRequestTimeoutMillis();
+        streamDrainedTask = new Runnable() {
+            @Override public void run() {
+                if (streamReadPaused.compareAndSet(true, false)) {
+                    requestResumeReading();
+                }
+            }
+        };
+        pendingOutputBytes = new ArrayDeque<ByteBuffer>();
+        writeWindow = new ByteBuffer[MAX_GATHER_BUFFERS];
+        receiveBufferSize = settings.getReceiveBufferSize();
 
         this.parent = parent;
         this.key = key;
         this.channel = (SocketChannel) key.channel();
-        currentListener = parent.getConnectionEventListener();
+        currentListener = listener;
+        pool = parent.getBufferPool();
+        frameFormat = settings.getFrameFormat();
+        maxBatchSize = frameFormat == FrameFormat.VARINT
+                ? Math.min(settings.getMaxBatchSize(), settings.getMaxFrameSize()) : 0;
+        /* Buffer based encoders write fixed headers, other formats are written through the sink */
+        encodeSink = codec.hasStreamEncoder() || frameFormat != FrameFormat.FIXED
+                ? new PooledOutputStream(pool, frameFormat) : null;
+        leasedOutput = new ArrayDeque<ByteBuffer>();
 
         key.attach(this);
         this.codec = codec;
+        connected = true;
         possiblyUpdateConnectionState();
     }
 
     /**
-     * Add a Objectfor sending over ths connection
+     * Add a Objectfor sending over ths connection. When the connection is not writable the
+     * {@link OverflowPolicy} configured on the ConnectionFactory decides what happens to the message.
      *
      * @param m the Object to send
+     * @return false if the message was dropped
+     * @throws WriteBufferFullException if the connection is not writable and the policy is FAIL
      */
-    public void queueMessage(Object m) {
+    public boolean queueMessage(Object m) {
         Log.trace("Sending Message: " + m);
-        synchronized (queuedMessages) {
-            queuedMessages.add(m);
+        return queue(m);
+    }
+
+    /**
+     * Queues frames that were already encoded with this connection's codec, such as a broadcast
+     * message or the result of {@link ConnectionFactory#encode(Object)}. The frames may be shared
+     * with other connections and are never modified.
+     *
+     * @return false if the message was dropped
+     */
+    public boolean queueEncoded(ByteBuffer[] frames) {
+        return queue(new EncodedMessage(frames));
+    }
+
+    /**
+     * Sends the contents of the stream as a chunked stream, which the peer receives through
+     * {@link StreamListener#onStreamReceived(Connection, InputStream)}. The stream is read on the
+     * calling thread in chunks; the thread blocks while the connection is not writable, so only a
+     * few chunks are held in memory at a time. The stream is not closed.
+     *
+     * @throws IOException if the stream could not be read, in which case the peer sees the stream
+     *                     fail, or if the connection was closed
+     */
+    public void queueStream(InputStream in) throws IOException {
+        int streamId = nextStreamId.incrementAndGet();
+        int dataSize = Math.min(STREAM_CHUNK_SIZE, maxFrameSize - 9) - Framing.MAX_CHUNK_HEADER_LENGTH;
+        byte[] scratch = null;
+        int flags = Framing.CHUNK_START;
+        while (true) {
+            try {
+                awaitWritable();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (!connected) throw new IOException("Connection closed");
+            ByteBuffer chunk = pool.acquire(Framing.MAX_CHUNK_HEADER_LENGTH + dataSize);
+            int count = 0;
+            boolean end = false;
+            try {
+                while (count < dataSize) {
+                    int read;
+                    if (chunk.hasArray()) {
+                        read = in.read(chunk.array(), chunk.arrayOffset()
+                                + Framing.MAX_CHUNK_HEADER_LENGTH + count, dataSize - count);
+                    } else {
+                        if (scratch == null) scratch = new byte[dataSize];
+                        read = in.read(scratch, count, dataSize - count);
+                        if (read > 0) {
+                            chunk.position(Framing.MAX_CHUNK_HEADER_LENGTH + count);
+                            chunk.put(scratch, count, read);
+                        }
+                    }
+                    if (read < 0) {
+                        end = true;
+                        break;
+                    }
+                    count += read;
+                }
+            } catch (IOException e) {
+                /* Lets the peer know that the stream will not be completed */
+                writeChunkHeader(chunk, 0, flags | Framing.CHUNK_END | Framing.CHUNK_ABORT, streamId);
+                enqueue(new StreamChunk(chunk));
+                throw e;
+            }
+            if (end) flags |= Framing.CHUNK_END;
+            writeChunkHeader(chunk, count, flags, streamId);
+            enqueue(new StreamChunk(chunk));
+            if (end) return;
+            flags = 0;
+        }
+    }
+
+    private void writeChunkHeader(ByteBuffer chunk, int dataLength, int flags, int streamId) {
+        chunk.limit(Framing.MAX_CHUNK_HEADER_LENGTH + dataLength);
+        chunk.position(Framing.writeChunkHeader(frameFormat, chunk, Framing.MAX_CHUNK_HEADER_LENGTH,
+                                                dataLength, flags, streamId, 0));
+    }
+
+    /**
+     * Sends a request that the peer answers through
+     * {@link RequestListener#onRequestReceived(Connection, IncomingRequest)}, with the timeout of the
+     * ConnectionFactory.
+     *
+     * @see #request(Object, long, TimeUnit)
+     */
+    public <R> ResponseFuture<R> request(Object request) {
+        return request(request, requestTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a request that the peer answers through
+     * {@link RequestListener#onRequestReceived(Connection, IncomingRequest)}. Requests are pipelined,
+     * but once the in-flight limit of the ConnectionFactory is reached this blocks until a response
+     * arrives; from the handler thread the request fails instead.
+     * <p/>
+     * The future fails with a {@link RequestFailedException} when the peer answers with an error, a
+     * {@link TimeoutException} once the timeout passes and a {@link ConnectionException} when the
+     * connection is lost.
+     *
+     * @param timeout how long to wait for the response, or 0 to wait until the connection is lost
+     * @return the future that completes with the body of the response
+     */
+    public <R> ResponseFuture<R> request(Object request, long timeout, TimeUnit unit) {
+        final ResponseFuture<R> future = new ResponseFuture<R>();
+        if (!connected) {
+            future.fail(new ConnectionException("Connection closed"));
+            return future;
+        }
+        if (!acquireRequestPermit(future)) return future;
+
+        final int id = nextRequestId.incrementAndGet();
+        @SuppressWarnings("unchecked") ResponseFuture<Object> pending = (ResponseFuture<Object>) future;
+        pendingRequests.put(id, pending);
+        final ScheduledFuture<?> deadline = timeout <= 0 ? null
+                : ConnectionFactory.getTimer().schedule(new Runnable() {
+                    @Override public void run() {
+                        future.fail(new TimeoutException("No response to request " + id));
+                    }
+                }, timeout, unit);
+        /* Every way the future completes, including cancellation by the caller, frees its slot */
+        future.addListener(new ResponseListener<R>() {
+            @Override public void onResponse(R response) {
+                requestCompleted(id, deadline);
+            }
+
+            @Override public void onFailure(Throwable error) {
+                requestCompleted(id, deadline);
+            }
+        });
+        /* cleanUp may have run before the request was added */
+        if (!connected) {
+            future.fail(new ConnectionException("Connection closed"));
+            return future;
+        }
+        try {
+            if (!queue(new RpcRequest(id, request))) {
+                future.fail(new ConnectionException("Request dropped, connection is not writable"));
+            }
+        } catch (WriteBufferFullException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return the number of requests waiting for a response
+     */
+    public int getPendingRequestCount() {
+        return pendingRequests.size();
+    }
+
+    private boolean acquireRequestPermit(ResponseFuture<?> future) {
+        if (requestPermits.tryAcquire()) return true;
+        ConnectionHandler handler = parent;
+        if (handler == null || handler.inEventLoop()) {
+            /* The handler thread can't wait, it has to read the responses that free a slot */
+            future.fail(new RejectedExecutionException("Too many requests in flight"));
+            return false;
+        }
+        try {
+            requestPermits.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.fail(e);
+            return false;
+        }
+    }
+
+    private void requestCompleted(int id, ScheduledFuture<?> deadline) {
+        pendingRequests.remove(id);
+        if (deadline != null) deadline.cancel(false);
+        requestPermits.release();
+    }
+
+    private void onResponseReceived(RpcResponse response) {
+        ResponseFuture<Object> future = pendingRequests.get(response.getId());
+        if (future == null) {
+            Log.debug("Dropped the response to a request that timed out or was cancelled: "
+                    + response.getId());
+        } else if (response.getError() != null) {
+            future.fail(new RequestFailedException(response.getError()));
+        } else {
+            future.complete(response.getBody());
+        }
+    }
+
+    private void onRequestReceived(RpcRequest request) {
+        IncomingRequest incoming = new IncomingRequest(this, request.getId(), request.getBody());
+        ConnectionListener listener = currentListener;
+        try {
+            if (listener instanceof RequestListener) {
+                ((RequestListener) listener).onRequestReceived(this, incoming);
+            } else {
+                incoming.fail(new UnsupportedOperationException("Requests are not supported"));
+            }
+        } catch (Exception e) {
+            Log.error("Client code threw an exception", e);
+            incoming.fail(e);
+        }
+    }
+
+    /**
+     * Blocks until the connection is writable or disconnected, unless called from the handler
+     * thread
+     */
+    void awaitWritable() throws InterruptedException {
+        ConnectionHandler handler = parent;
+        if (writable.get() || handler == null || handler.inEventLoop()) return;
+        synchronized (writabilityLock) {
+            while (!writable.get() && connected) {
+                writabilityLock.wait();
+            }
+        }
+    }
+
+    private boolean queue(Object m) {
+        if (!writable.get() && !applyOverflowPolicy(m)) return false;
+        enqueue(m);
+        return true;
+    }
+
+    /**
+     * Queues a message regardless of the writability of the connection
+     */
+    void enqueue(Object m) {
+        if (directWrite && tryDirectWrite(m)) return;
+        queuedMessageCount.incrementAndGet();
+        queuedMessages.offer(m);
+        updateWritability();
+        possiblySetWriteReady();
+        possiblyUpdateConnectionState();
+    }
+
+    /**
+     * @return true while the queued messages and pending bytes of this connection are below the
+     * high watermark
+     */
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    /**
+     * @return the number of messages queued on this connection that have not been encoded yet
+     */
+    public int getQueuedMessageCount() {
+        return queuedMessageCount.get();
+    }
+
+    /**
+     * @return the number of encoded bytes that have not been written to the channel yet
+     */
+    public long getPendingByteCount() {
+        return pendingByteCount.get();
+    }
+
+    /**
+     * @return true if the message should still be queued
+     */
+    private boolean applyOverflowPolicy(Object m) {
+        switch (overflowPolicy) {
+            case FAIL:
+                throw new WriteBufferFullException(m);
+            case DROP:
+                Log.trace("Dropping message, connection is not writable: " + m);
+                return false;
+            case BLOCK:
+                ConnectionHandler handler = parent;
+                if (handler == null || handler.inEventLoop()) return true;
+                try {
+                    synchronized (writabilityLock) {
+                        while (!writable.get() && connected) {
+                            writabilityLock.wait();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Flips the writability of this connection when the watermarks are crossed
+     */
+    private void updateWritability() {
+        if (writable.get()) {
+            if (queuedMessageCount.get() <= highWaterMarkMessages
+                    && pendingByteCount.get() <= highWaterMarkBytes) {
+                return;
+            }
+            if (!writable.compareAndSet(true, false)) return;
+            onWritabilityFlipped();
+            /* The handler may have drained the connection before the flag was cleared */
+        }
+        if (queuedMessageCount.get() <= lowWaterMarkMessages
+                && pendingByteCount.get() <= lowWaterMarkBytes
+                && writable.compareAndSet(false, true)) {
+            synchronized (writabilityLock) {
+                writabilityLock.notifyAll();
+            }
+            onWritabilityFlipped();
+        }
+    }
+
+    private void onWritabilityFlipped() {
+        ConnectionHandler handler = parent;
+        if (handler == null) return;
+        if (handler.inEventLoop()) {
+            notifyWritabilityChanged();
+        } else {
+            handler.execute(notifyWritabilityTask);
+        }
+    }
+
+    /**
+     * Encodes the message and writes it on the calling thread when nothing else is waiting to be
+     * written. Whatever the channel does not accept is left for the handler through OP_WRITE.
+     *
+     * @return false if the message must be queued instead
+     */
+    private boolean tryDirectWrite(Object m) {
+        if (!connected || hasSetWriteReady.get()) return false;
+        if (!writing.compareAndSet(false, true)) return false;
+        try {
+            if (!queuedMessages.isEmpty() || !pendingOutputBytes.isEmpty()) return false;
+            ByteBuffer[] serialized;
+            try {
+                serialized = serialize(m);
+            } catch (EncodeException e) {
+                /* Let the handler report the error */
+                return false;
+            }
+            addPendingOutput(serialized, isLeased(m));
+            try {
+                if (writePendingOutput()) return true;
+            } catch (IOException e) {
+                Log.debug("Error while writing a message directly, leaving it to the handler", e);
+            }
+            updateWritability();
             possiblySetWriteReady();
-            possiblyUpdateConnectionState();
+            return true;
+        } finally {
+            writing.set(false);
         }
     }
 
     /**
-     * Mark the channel as being write ready
+     * Mark the channel as being write ready. The interest ops are changed by the handler thread, other
+     * threads hand the change to the handler as a pending task.
      */
     private void possiblySetWriteReady() {
         if (hasSetWriteReady.compareAndSet(false, true)) {
-            try {
-                key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-            } catch (CancelledKeyException e) {
-                Log.debug(
-                        "[Connection] Key has been cancelled while setting `OP_WRITE`, continuing anyway");
-            }
-            key.selector().wakeup();
+            requestInterestOpsUpdate();
+        }
+    }
+
+    private void requestInterestOpsUpdate() {
+        ConnectionHandler handler = parent;
+        if (handler == null) return;
+        if (handler.inEventLoop()) {
+            updateInterestOps();
+        } else {
+            handler.execute(updateInterestOpsTask);
+        }
+    }
+
+    /**
+     * Applies the interest ops matching the current state, must be called from the handler thread.
+     */
+    private void updateInterestOps() {
+        int ops = isReadingPaused() ? 0 : SelectionKey.OP_READ;
+        if (hasSetWriteReady.get()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        try {
+            key.interestOps(ops);
+        } catch (CancelledKeyException e) {
+            Log.debug("[Connection] Key has been cancelled while setting interest ops, continuing anyway");
         }
     }
 
@@ -105,63 +663,196 @@ public class Connection {
      * don't have any data to write.
      */
     private void possiblyUnsetWriteReady() {
-        synchronized (queuedMessages) {
-            if (pendingOutputBytes.isEmpty() && queuedMessages.isEmpty()
-                    && hasSetWriteReady.compareAndSet(true, false)) {
-                try {
-                    key.interestOps(SelectionKey.OP_READ);
-                } catch (CancelledKeyException e) {
-                    Log.debug(
-                            "[Connection] Key has been cancelled while setting `OP_READ`, continuing anyway");
-                }
-                key.selector().wakeup();
+        if (pendingOutputBytes.isEmpty() && queuedMessages.isEmpty()
+                && hasSetWriteReady.compareAndSet(true, false)) {
+            updateInterestOps();
+        } else {
+            return;
+        }
+        if (!queuedMessages.isEmpty()) {
+            /* A message was queued while the flag was still set, so nobody asked for OP_WRITE */
+            possiblySetWriteReady();
+        }
+    }
+
+    /**
+     * Stops reading from the channel, so that TCP flow control pushes back on the peer. Frames that
+     * were already read are held until reading is resumed.
+     */
+    public void pauseReading() {
+        readPaused = true;
+        requestInterestOpsUpdate();
+    }
+
+    /**
+     * Resumes reading after {@link #pauseReading()}, frames held while paused are delivered first.
+     */
+    public void resumeReading() {
+        readPaused = false;
+        requestResumeReading();
+    }
+
+    /**
+     * @return true if reading is paused, either through {@link #pauseReading()} or because too many
+     * decoded messages have not been delivered yet
+     */
+    public boolean isReadingPaused() {
+        return readPaused || autoReadPaused.get() || streamReadPaused.get()
+                || decodeReadPaused.get();
+    }
+
+    private void requestResumeReading() {
+        ConnectionHandler handler = parent;
+        if (handler == null) return;
+        if (handler.inEventLoop()) {
+            resumeReadingInternal();
+        } else {
+            handler.execute(resumeReadingTask);
+        }
+    }
+
+    /**
+     * Re-enables OP_READ and delivers the frames that were held while paused. Must be called from the
+     * handler thread.
+     */
+    private void resumeReadingInternal() {
+        if (!connected || isReadingPaused()) return;
+        updateInterestOps();
+        if (receiveBuffer != null && receiveBuffer.position() > 0) {
+            try {
+                parseReceivedFrames();
+            } catch (IOException e) {
+                Log.debug("Error while processing held frames", e);
+                disconnectInternal();
             }
         }
     }
 
+    /**
+     * Called when a received message is about to be decoded and delivered
+     */
+    private void onMessageDecoded() {
+        if (undeliveredMessageCount.incrementAndGet() > highWaterMarkUndelivered
+                && autoReadPaused.compareAndSet(false, true)) {
+            requestInterestOpsUpdate();
+        }
+    }
+
+    /**
+     * Called once the listener has been handed a decoded message
+     */
+    private void onMessageDelivered() {
+        if (undeliveredMessageCount.decrementAndGet() <= lowWaterMarkUndelivered
+                && autoReadPaused.compareAndSet(true, false)) {
+            requestResumeReading();
+        }
+    }
+
+    /**
+     * @return the number of received messages that have not been delivered to the listener yet,
+     * including those waiting to be decoded by the decode executor
+     */
+    public int getUndeliveredMessageCount() {
+        return undeliveredMessageCount.get();
+    }
+
+    /**
+     * @return the time in milliseconds at which bytes were last read from the channel, or at which
+     * the connection was created if nothing has been read yet
+     */
+    public long getLastReadTime() {
+        return lastReadMillis;
+    }
+
     /**
      * Method used by the handler of this connection to perform reading from the channel
      */
     void read() throws ConnectionException {
         if (!checkIsConnected()) throw new ConnectionException("Connection already disconnected");
-        readNewMessages();
-        processMessageByteBuffers();
+        try {
+            readFrames();
+        } catch (IOException e) {
+            processConnectionError(e);
+        }
     }
 
     /**
-     * Attempts to read messages from the socketChannel
+     * Reads as many bytes as the channel has available into the receive buffer and processes every
+     * complete frame in place. Frames larger than the receive buffer are read into a dedicated
+     * spill buffer.
      */
-    private void readNewMessages() throws ConnectionException {
-        while (key.isReadable()) {
-            ByteBuffer last = null;
-            if (!pendingInputBytes.isEmpty()) {
-                last = pendingInputBytes.get(pendingInputBytes.size() - 1);
-            }
-            if (last != null && last.remaining() > 0) {
-                /* The buffer still has some data pending */
+    private void readFrames() throws IOException {
+        while (connected && !isReadingPaused()) {
+            if (spillBuffer != null) {
+                int readCount = channel.read(spillBuffer);
+                if (readCount < 0) throw new IOException("Could not read from channel");
+                if (readCount > 0) lastReadMillis = System.currentTimeMillis();
+                if (spillBuffer.hasRemaining()) return;
+                ByteBuffer frame = spillBuffer;
+                spillBuffer = null;
+                frame.flip();
                 try {
-                    int readCount = channel.read(last);
-                    if (readCount < 0) throw new IOException("Could not read from channel");
-                    if (readCount == 0) return;
-                } catch (IOException e) {
-                    processConnectionError(e);
+                    processFrame(spillKind, frame);
+                } finally {
+                    pool.release(frame);
                 }
+                continue;
+            }
+            if (receiveBuffer == null) {
+                receiveBuffer = pool.acquire(receiveBufferSize);
+            }
+            int readCount = channel.read(receiveBuffer);
+            if (readCount < 0) throw new IOException("Could not read from channel");
+            if (readCount > 0) lastReadMillis = System.currentTimeMillis();
+            boolean filled = !receiveBuffer.hasRemaining();
+            parseReceivedFrames();
+            if (!filled) {
+                /* The channel has no more data for now */
+                return;
+            }
+        }
+    }
+
+    /**
+     * Processes all complete frames in the receive buffer. A partial frame is compacted to the front
+     * of the buffer, or moved into a spill buffer when it can never fit.
+     */
+    private void parseReceivedFrames() throws IOException {
+        ByteBuffer buffer = receiveBuffer;
+        buffer.flip();
+        while (buffer.hasRemaining() && !isReadingPaused()) {
+            int start = buffer.position();
+            long header = Framing.readHeader(frameFormat, buffer, start);
+            if (header < 0) break;
+            int headerLength = Framing.headerLength(header);
+            int size = Framing.frameSize(header);
+            if (size > maxFrameSize) {
+                throw new IOException("Frame of " + size + " bytes exceeds the maximum frame size");
+            }
+            if (buffer.remaining() - headerLength >= size) {
+                ByteBuffer frame = buffer.duplicate();
+                frame.position(start + headerLength);
+                frame.limit(start + headerLength + size);
+                buffer.position(start + headerLength + size);
+                processFrame(Framing.frameKind(header), frame.slice());
+                if (!connected) return;
+            } else if (size + headerLength > buffer.capacity()) {
+                buffer.position(start + headerLength);
+                spillBuffer = pool.acquire(size);
+                spillKind = Framing.frameKind(header);
+                spillBuffer.put(buffer);
+                break;
             } else {
-                try {
-                    readNextObjectSize();
-                    if (hasReadNextSize) {
-                        /* Great, we know the size of the next object! */
-                        ByteBuffer buffer = ByteBuffer.allocate(nextObjectSize);
-                        pendingInputBytes.add(buffer);
-                        continue;
-                    } else
-                        /* Couldn't fill up the size, leaving it until later! */
-                        return;
-                } catch (IOException e) {
-                    processConnectionError(e);
-                }
+                break;
             }
         }
+        if (buffer.hasRemaining()) {
+            buffer.compact();
+        } else {
+            /* Nothing left over, idle connections don't need to hold on to a buffer */
+            receiveBuffer = null;
+            pool.release(buffer);
+        }
     }
 
     /**
@@ -178,44 +869,254 @@ public class Connection {
     }
 
     /**
-     * Processes the pendingByteBuffers
+     * Delivers the messages in a frame. The frame is only valid for the duration of this call.
+     */
+    private void processFrame(int kind, ByteBuffer frame) throws IOException {
+        if (kind == Framing.KIND_MESSAGE) {
+            processMessage(frame);
+        } else if (kind == Framing.KIND_BATCH) {
+            processBatch(frame);
+        } else if (kind == Framing.KIND_CHUNK) {
+            processChunk(frame);
+        } else {
+            throw new IOException("Unknown frame kind: " + kind);
+        }
+    }
+
+    /**
+     * Delivers every message of a batch frame, a batch is delivered as a whole even if reading is
+     * paused in between
+     */
+    private void processBatch(ByteBuffer batch) throws IOException {
+        while (batch.hasRemaining() && connected) {
+            int start = batch.position();
+            long header = Framing.readHeader(FrameFormat.VARINT, batch, start);
+            if (header < 0) throw new IOException("Invalid message in batch frame");
+            int headerLength = Framing.headerLength(header);
+            int size = Framing.frameSize(header);
+            if (Framing.frameKind(header) != Framing.KIND_MESSAGE
+                    || batch.remaining() - headerLength < size) {
+                throw new IOException("Invalid message in batch frame");
+            }
+            ByteBuffer frame = batch.duplicate();
+            frame.position(start + headerLength);
+            frame.limit(start + headerLength + size);
+            batch.position(start + headerLength + size);
+            processMessage(frame.slice());
+        }
+    }
+
+    /**
+     * Passes the data of a chunk frame on to its stream. The first chunk of a stream starts a task on
+     * the stream executor that reads the stream: a chunked message is decoded while its chunks arrive
+     * and delivered from the handler thread once the last chunk has been read and it has been decoded.
+     * Reading is paused in between, so messages are still delivered in order. With a decode executor
+     * the chunked message is decoded by the dispatcher instead.
+     */
+    private void processChunk(ByteBuffer frame) throws IOException {
+        if (frame.remaining() < 5) throw new IOException("Truncated chunk frame");
+        int flags = frame.get();
+        int streamId = frame.getInt();
+        InboundStream stream;
+        if ((flags & Framing.CHUNK_START) != 0) {
+            boolean message = (flags & Framing.CHUNK_MESSAGE) != 0;
+            int length = -1;
+            if (message) {
+                if (frame.remaining() < 4) throw new IOException("Truncated chunk frame");
+                length = frame.getInt();
+                if (length < 0 || length > maxMessageSize) {
+                    throw new IOException("Invalid chunked message length: " + length);
+                }
+            }
+            stream = new InboundStream(new ChunkedInputStream(pool, MAX_QUEUED_CHUNKS / 2,
+                                                              streamDrainedTask), message);
+            synchronized (inboundStreams) {
+                if (inboundStreams.size() >= maxInboundStreams) {
+                    throw new IOException("Too many streams received at once");
+                }
+                if (inboundStreams.put(streamId, stream) != null) {
+                    throw new IOException("Stream " + streamId + " started twice");
+                }
+            }
+            startStream(stream, length);
+        } else {
+            synchronized (inboundStreams) {
+                stream = inboundStreams.get(streamId);
+            }
+            if (stream == null) throw new IOException("Chunk of unknown stream " + streamId);
+        }
+        if (frame.hasRemaining()) {
+            ByteBuffer chunk = pool.acquire(frame.remaining());
+            chunk.put(frame);
+            chunk.flip();
+            if (stream.in.add(chunk) >= MAX_QUEUED_CHUNKS
+                    && streamReadPaused.compareAndSet(false, true)) {
+                requestInterestOpsUpdate();
+            }
+        }
+        if ((flags & Framing.CHUNK_END) != 0) {
+            synchronized (inboundStreams) {
+                inboundStreams.remove(streamId);
+            }
+            if ((flags & Framing.CHUNK_ABORT) != 0) {
+                stream.in.fail(new IOException("Stream aborted by the sender"));
+            } else {
+                stream.in.end();
+            }
+            if (stream.message && dispatcher == null) {
+                if (stream.pending.decrementAndGet() == 0) {
+                    deliverChunkedMessage(stream);
+                } else if (decodeReadPaused.compareAndSet(false, true)) {
+                    /* Holds the frames that follow until the message has been decoded */
+                    updateInterestOps();
+                }
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if the stream executor rejects the stream
      */
-    private void processMessageByteBuffers() {
-        int available = pendingInputBytes.size();
+    private void startStream(final InboundStream stream, final int length) throws IOException {
+        try {
+            startStreamTask(stream, length);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("No thread available for a received stream", e);
+        }
+    }
+
+    private void startStreamTask(final InboundStream stream, final int length) {
+        if (stream.message && dispatcher != null) {
+            dispatchChunkedMessage(stream, length);
+        } else if (stream.message) {
+            streamExecutor.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        stream.decoded = codec.streamDecoder.decode(stream.in, length);
+                    } catch (Exception e) {
+                        stream.error = new DecodeException(e);
+                    } finally {
+                        stream.in.close();
+                    }
+                    if (stream.pending.decrementAndGet() != 0) return;
+                    /* The last chunk was read first, the handler holds the frames that follow */
+                    ConnectionHandler handler = parent;
+                    if (handler == null) return;
+                    handler.execute(new Runnable() {
+                        @Override public void run() {
+                            if (forwardIfMoved(this)) return;
+                            deliverChunkedMessage(stream);
+                            if (decodeReadPaused.compareAndSet(true, false)) {
+                                resumeReadingInternal();
+                            }
+                        }
+                    });
+                }
+            });
+        } else {
+            streamExecutor.execute(new Runnable() {
+                @Override public void run() {
+                    onStreamReceived(stream.in);
+                }
+            });
+        }
+    }
+
+    /**
+     * Delivers a chunked message whose chunks have all been received and that has been decoded, must
+     * be called from the handler thread
+     */
+    private void deliverChunkedMessage(InboundStream stream) {
+        if (stream.error != null) {
+            Log.error("Message could not be deserialized", stream.error);
+            onMessageDeserializationError(stream.error);
+            return;
+        }
+        deliverMessage(stream.decoded);
+    }
 
-        if (available > 0) {
-            int readUntil = available;
-            if (pendingInputBytes.get(available - 1).hasRemaining()) {
-                /* We still need to fill the last Object up, so we don't process it yet */
-                readUntil--;
+    /**
+     * Decodes a chunked message on the dispatcher, so that it is decoded and delivered after the
+     * messages received before it and before those received after it. The dispatcher of the
+     * connection is busy until the last chunk has been read.
+     */
+    private void dispatchChunkedMessage(final InboundStream stream, final int length) {
+        onMessageDecoded();
+        dispatcher.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    Object m;
+                    try {
+                        m = codec.streamDecoder.decode(stream.in, length);
+                    } catch (Exception e) {
+                        DecodeException error = new DecodeException(e);
+                        Log.error("Message could not be deserialized", error);
+                        onMessageDeserializationError(error);
+                        return;
+                    }
+                    onHandleNewMessage(m);
+                } finally {
+                    stream.in.close();
+                    onMessageDelivered();
+                }
             }
-            for (int i = 0; i < readUntil; i++) {
-                Object m;
-                ByteBuffer buffer = pendingInputBytes.remove(0);
-                buffer.rewind();
+        });
+    }
+
+    /**
+     * Hands a copy of the frame to the dispatcher, which decodes and delivers it. The message counts
+     * as undelivered from now on, so slow delivery pauses reading through the undelivered watermarks.
+     */
+    private void dispatchMessage(ByteBuffer frame) {
+        final ByteBuffer copy = pool.acquire(frame.remaining());
+        copy.put(frame);
+        copy.flip();
+        onMessageDecoded();
+        dispatcher.execute(new Runnable() {
+            @Override public void run() {
                 try {
-                    m = deserialize(buffer);
-                } catch (DecodeException e) {
-                    Log.error("Message could not be deserialized", e);
-                    onMessageDeserializationError(e);
-                    continue;
+                    Object m;
+                    try {
+                        m = deserialize(copy);
+                    } catch (DecodeException e) {
+                        Log.error("Message could not be deserialized", e);
+                        onMessageDeserializationError(e);
+                        return;
+                    }
+                    onHandleNewMessage(m);
+                } finally {
+                    pool.release(copy);
+                    onMessageDelivered();
                 }
-                onHandleNewMessage(m);
             }
-            /* Done deserializing */
+        });
+    }
+
+    /**
+     * Decodes a single message and passes it on to the listener
+     */
+    private void processMessage(ByteBuffer frame) {
+        if (dispatcher != null) {
+            dispatchMessage(frame);
+            return;
         }
+        Object m;
+        try {
+            m = deserialize(frame);
+        } catch (DecodeException e) {
+            Log.error("Message could not be deserialized", e);
+            onMessageDeserializationError(e);
+            return;
+        }
+        deliverMessage(m);
     }
 
-    private void readNextObjectSize() throws IOException {
-        hasReadNextSize = false;
-        int readBytes = channel.read(nextObjectSizeBuffer);
-        if (readBytes < 0) throw new IOException("Could not read from channel");
-        if (!nextObjectSizeBuffer.hasRemaining()) {
-            /* We have read the size! */
-            nextObjectSizeBuffer.rewind();
-            nextObjectSize = nextObjectSizeBuffer.getInt();
-            nextObjectSizeBuffer.rewind();
-            hasReadNextSize = true;
+    private void deliverMessage(Object m) {
+        onMessageDecoded();
+        try {
+            onHandleNewMessage(m);
+        } finally {
+            onMessageDelivered();
         }
     }
 
@@ -227,44 +1128,82 @@ public class Connection {
      */
     void write() throws EncodeException, ConnectionException {
         if (!checkIsConnected()) throw new ConnectionException("Connection already disconnected");
-        currentListener = parent.getConnectionEventListener();
         if (!key.isValid()) {
             /* TODO call the listener callback if we have not already done so! */
             Log.debug("Found invalid key:" + key);
             return;
         }
         if (key.isWritable()) {
-            while (!pendingOutputBytes.isEmpty() || !queuedMessages.isEmpty()) {
-                if (pendingOutputBytes.isEmpty()) {
-                    try {
-                        serializeMessages();
-                    } catch (EncodeException e) {
-                        Log.error("Message could not be serialized", e);
-                        onMessageSerializationError(e);
-                        disconnectInternal();
-                        return;
-                    }
-                }
-                ByteBuffer buf = pendingOutputBytes.get(0);
+            if (!writing.compareAndSet(false, true)) {
+                /* Another thread is writing directly and re-arms OP_WRITE for what it leaves behind */
+                return;
+            }
+            try {
+                writeQueuedMessages();
+            } finally {
+                writing.set(false);
+            }
+        }
+    }
+
+    private void writeQueuedMessages() throws ConnectionException {
+        while (!pendingOutputBytes.isEmpty() || !queuedMessages.isEmpty()) {
+            if (pendingOutputBytes.isEmpty()) {
                 try {
-                    channel.write(buf);
-                    if (buf.remaining() > 0) {
-                        /* Could not write anymore */
-                        synchronized (queuedMessages) {
-                            possiblySetWriteReady();
-                        }
-                        return;
-                    } else {
-                        pendingOutputBytes.remove(0);
-                    }
-                } catch (IOException e) {
-                    Log.debug("Error while writing a message", e);
+                    serializeMessages();
+                } catch (EncodeException e) {
+                    Log.error("Message could not be serialized", e);
+                    onMessageSerializationError(e);
                     disconnectInternal();
-                    throw new ConnectionException(e);
+                    return;
                 }
             }
-            possiblyUnsetWriteReady();
+            try {
+                if (!writePendingOutput()) {
+                    /* Could not write anymore */
+                    updateWritability();
+                    possiblySetWriteReady();
+                    return;
+                }
+            } catch (IOException e) {
+                Log.debug("Error while writing a message", e);
+                disconnectInternal();
+                throw new ConnectionException(e);
+            }
         }
+        updateWritability();
+        possiblyUnsetWriteReady();
+    }
+
+    /**
+     * Writes the pending output buffers using gathering writes over a bounded window of buffers.
+     * Only buffers that have been written completely are removed.
+     *
+     * @return true if all pending output was written, false if the channel could not accept more
+     * @throws IOException
+     */
+    private boolean writePendingOutput() throws IOException {
+        while (!pendingOutputBytes.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer b : pendingOutputBytes) {
+                writeWindow[count++] = b;
+                if (count == writeWindow.length) break;
+            }
+            long bytes = channel.write(writeWindow, 0, count);
+            pendingByteCount.addAndGet(-bytes);
+            int written = 0;
+            while (written < count && !writeWindow[written].hasRemaining()) {
+                ByteBuffer b = pendingOutputBytes.poll();
+                if (leasedOutput.peekFirst() == b) {
+                    leasedOutput.pollFirst();
+                    pool.release(b);
+                }
+                written++;
+            }
+            Arrays.fill(writeWindow, 0, count, null);
+            if (written < count) return false;
+        }
+        return true;
     }
 
     /**
@@ -275,41 +1214,194 @@ public class Connection {
      * @throws IOException
      */
     private ByteBuffer[] serialize(Object m) throws EncodeException {
+        if (m instanceof StreamChunk) {
+            return new ByteBuffer[]{((StreamChunk) m).frame};
+        }
+        ByteBuffer[] frame;
+        if (m instanceof EncodedMessage) {
+            frame = ((EncodedMessage) m).frames;
+        } else if (encodeSink != null) {
+            frame = serializeIntoSink(m);
+        } else {
+            try {
+                frame = codec.encoder.encode(m);
+            } catch (Exception e) {
+                Log.debug("Could not serialize message.", e);
+                throw new EncodeException(m, e);
+            }
+        }
+        long size = 0;
+        for (ByteBuffer b : frame) {
+            size += b.remaining();
+        }
+        /* Only frames larger than any header can be too large */
+        if (size > maxFrameSize) {
+            try {
+                return toChunkFrames(frame, isLeased(m));
+            } catch (IOException e) {
+                throw new EncodeException(m, e);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * @return true if the frames of the message are written into chunks leased from the pool
+     */
+    private boolean isLeased(Object m) {
+        return m instanceof StreamChunk || (encodeSink != null && !(m instanceof EncodedMessage));
+    }
+
+    /**
+     * Splits a message frame that exceeds the maximum frame size into the chunk frames of a chunked
+     * message. Pooled buffers are small enough to be sent as they are, other buffers are split into
+     * views.
+     */
+    private ByteBuffer[] toChunkFrames(ByteBuffer[] frame, boolean leased) throws IOException {
+        long header = Framing.readHeader(frameFormat, frame[0], frame[0].position());
+        if (header < 0) throw new IOException("Frame header is not in the first buffer");
+        int skip = Framing.headerLength(header);
+        int messageLength = Framing.frameSize(header);
+        int maxData = maxFrameSize - 9;
+        ArrayDeque<ByteBuffer> pieces = new ArrayDeque<ByteBuffer>();
+        for (ByteBuffer b : frame) {
+            int drop = Math.min(skip, b.remaining());
+            b.position(b.position() + drop);
+            skip -= drop;
+            if (leased) {
+                if (b.hasRemaining()) {
+                    pieces.add(b);
+                } else {
+                    pool.release(b);
+                }
+                continue;
+            }
+            while (b.hasRemaining()) {
+                ByteBuffer piece = b.duplicate();
+                piece.limit(piece.position() + Math.min(maxData, piece.remaining()));
+                b.position(piece.limit());
+                pieces.add(piece);
+            }
+        }
+        int streamId = nextStreamId.incrementAndGet();
+        ByteBuffer[] chunks = new ByteBuffer[pieces.size() * 2];
+        int flags = Framing.CHUNK_START | Framing.CHUNK_MESSAGE;
+        int i = 0;
+        for (ByteBuffer piece : pieces) {
+            if (i == chunks.length - 2) flags |= Framing.CHUNK_END;
+            ByteBuffer chunkHeader = leased ? pool.acquire(Framing.MAX_CHUNK_HEADER_LENGTH)
+                    : ByteBuffer.allocate(Framing.MAX_CHUNK_HEADER_LENGTH);
+            chunkHeader.limit(Framing.MAX_CHUNK_HEADER_LENGTH);
+            chunkHeader.position(Framing.writeChunkHeader(
+                    frameFormat, chunkHeader, Framing.MAX_CHUNK_HEADER_LENGTH, piece.remaining(), flags,
+                    streamId, messageLength));
+            chunks[i++] = chunkHeader;
+            chunks[i++] = piece;
+            flags = Framing.CHUNK_MESSAGE;
+        }
+        return chunks;
+    }
+
+    /**
+     * Encodes the message into pooled chunks through the stream encoder of the codec
+     */
+    private ByteBuffer[] serializeIntoSink(Object m) throws EncodeException {
+        encodeSink.begin();
         try {
-            return codec.encoder.encode(m);
+            codec.streamEncoder.encode(m, encodeSink);
         } catch (Exception e) {
+            encodeSink.abort();
             Log.debug("Could not serialize message.", e);
             throw new EncodeException(m, e);
         }
+        return encodeSink.finish();
     }
 
     private Object deserialize(ByteBuffer b) throws DecodeException {
         /* This should return null if the serialization failed! */
         try {
-            return codec.decoder.decode(b);
+            return codec.streamDecoder.decode(new ByteBufferInputStream(b), b.remaining());
         } catch (Exception e) {
             throw new DecodeException(e);
         }
     }
 
     private void serializeMessages() throws EncodeException {
-        if (!queuedMessages.isEmpty()) {
-            synchronized (queuedMessages) {
-                Iterator<Object> messages = queuedMessages.iterator();
-                while (messages.hasNext()) {
-                    Object m = messages.next();
-
-                    ByteBuffer[] serialized = serialize(m);
-                    for (ByteBuffer b : serialized) {
-                        pendingOutputBytes.add(b);
-                    }
-                    messages.remove();
+        Object m;
+        try {
+            while ((m = queuedMessages.poll()) != null) {
+                queuedMessageCount.decrementAndGet();
+                ByteBuffer[] frame = serialize(m);
+                boolean leased = isLeased(m);
+                /* Batches only hold message frames */
+                if (frame.length == 1 && frame[0].remaining() <= maxBatchSize / 2
+                        && !(m instanceof StreamChunk)) {
+                    appendToBatch(frame[0], leased);
+                } else {
+                    closeBatch();
+                    addPendingOutput(frame, leased);
                 }
             }
+        } finally {
+            closeBatch();
         }
     }
 
+    /**
+     * Copies a small message frame into the current batch frame
+     */
+    private void appendToBatch(ByteBuffer frame, boolean leased) {
+        if (batch != null && batch.remaining() < frame.remaining()) {
+            closeBatch();
+        }
+        if (batch == null) {
+            batch = pool.acquire(maxBatchSize);
+            batch.position(Framing.MAX_VARINT_HEADER_LENGTH);
+            batchCount = 0;
+        }
+        batch.put(frame);
+        batchCount++;
+        if (leased) {
+            pool.release(frame);
+        }
+    }
+
+    /**
+     * Fills in the header of the current batch frame and queues it for writing. A batch holding a
+     * single message is sent as that message.
+     */
+    private void closeBatch() {
+        ByteBuffer b = batch;
+        if (b == null) return;
+        batch = null;
+        b.flip();
+        int start = Framing.MAX_VARINT_HEADER_LENGTH;
+        if (batchCount > 1) {
+            start = Framing.writeVarintHeader(b, start, b.limit() - start, Framing.KIND_BATCH);
+        }
+        b.position(start);
+        addPendingOutput(new ByteBuffer[]{b}, true);
+    }
+
+    private void addPendingOutput(ByteBuffer[] serialized, boolean leased) {
+        long bytes = 0;
+        for (ByteBuffer b : serialized) {
+            pendingOutputBytes.add(b);
+            if (leased) leasedOutput.add(b);
+            bytes += b.remaining();
+        }
+        pendingByteCount.addAndGet(bytes);
+    }
+
     private void onHandleNewMessage(Object message) {
+        if (message instanceof RpcResponse) {
+            onResponseReceived((RpcResponse) message);
+            return;
+        }
+        if (message instanceof RpcRequest) {
+            onRequestReceived((RpcRequest) message);
+            return;
+        }
         try {
             currentListener.onMessageReceived(this, message);
         } catch (Exception e) {
@@ -317,6 +1409,32 @@ public class Connection {
         }
     }
 
+    private void notifyWritabilityChanged() {
+        boolean current = writable.get();
+        if (current == notifiedWritable) return;
+        notifiedWritable = current;
+        if (currentListener instanceof WritabilityListener) {
+            try {
+                ((WritabilityListener) currentListener).onWritabilityChanged(this, current);
+            } catch (Exception e) {
+                Log.error("Client code threw an exception", e);
+            }
+        }
+    }
+
+    private void onStreamReceived(InputStream in) {
+        ConnectionListener listener = currentListener;
+        try {
+            if (listener instanceof StreamListener) {
+                ((StreamListener) listener).onStreamReceived(this, in);
+            } else {
+                in.close();
+            }
+        } catch (Exception e) {
+            Log.error("Client code threw an exception", e);
+        }
+    }
+
     private void onMessageDeserializationError(Throwable t) {
         try {
             currentListener.onDeserializationError(this, t);
@@ -334,12 +1452,8 @@ public class Connection {
     }
 
     private void possiblyUpdateConnectionState() {
-        synchronized (queuedMessages) {
-            if (!channel.isOpen() || !key.isValid()) {
-                disconnectInternal();
-                return;
-            }
-            connected = true;
+        if (connected && (!channel.isOpen() || !moving && !key.isValid())) {
+            disconnectInternal();
         }
     }
 
@@ -352,14 +1466,14 @@ public class Connection {
      */
     void disconnectInternal() {
         if (connected) {
-            synchronized (queuedMessages) {
+            synchronized (stateLock) {
                 if (!connected) return;
                 parent.notifyDisconnected(this);
                 connected = false;
                 try {channel.close();} catch (IOException e) {
                     Log.debug("Exception while closing channel", e);
                 }
-                key.selector().wakeup();
+                parent.wakeup();
                 /* the onDisconnect method is called from the handler */
                 cleanUp();
             }
@@ -368,6 +1482,81 @@ public class Connection {
 
     }
 
+    /**
+     * Hands this connection to another handler, must be called from the thread of the current
+     * handler. The key is cancelled here and the target registers the channel with its own selector.
+     * Everything else, including partly read frames and unwritten output, stays with the
+     * connection. The connection keeps leasing buffers from the pool it was created with.
+     *
+     * @return false if the connection was disconnected
+     */
+    boolean moveTo(ConnectionHandler target) {
+        synchronized (stateLock) {
+            if (!connected) return false;
+            moving = true;
+            key.cancel();
+            /* Switched first, so that the target counts as the handler thread of this connection as
+               soon as it may run code for it. Work for the connection that reaches the target
+               before the registration is safe, this thread no longer touches the connection. */
+            parent = target;
+            target.adoptConnection(this);
+            return true;
+        }
+    }
+
+    /**
+     * Completes a move on the thread of the new handler, once the channel has been registered
+     */
+    void onMoved(SelectionKey newKey) {
+        key = newKey;
+        moving = false;
+        updateInterestOps();
+        notifyWritabilityChanged();
+        /* Delivers frames that arrived before the move and were held back */
+        resumeReadingInternal();
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    ConnectionListener getListener() {
+        return currentListener;
+    }
+
+    /**
+     * Runs the task on the handler thread of this connection, following the connection if it moves
+     * to another handler. Once the connection is closed the task runs on the calling thread. Sending
+     * from the handler thread never blocks, see {@link #request(Object, long, TimeUnit)} and
+     * {@link OverflowPolicy#BLOCK}.
+     */
+    public void execute(final Runnable task) {
+        ConnectionHandler handler = parent;
+        if (handler == null) {
+            task.run();
+            return;
+        }
+        handler.execute(new Runnable() {
+            @Override public void run() {
+                if (forwardIfMoved(this)) return;
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Passes a task that reached a handler this connection has since moved away from on to the
+     * current handler
+     *
+     * @return true if the task was forwarded and must not run here
+     */
+    private boolean forwardIfMoved(Runnable task) {
+        ConnectionHandler handler = parent;
+        if (handler == null || handler.inEventLoop()) return false;
+        handler.execute(task);
+        return true;
+    }
+
     public boolean checkIsConnected() {
         possiblyUpdateConnectionState();
         return connected;
@@ -388,18 +1577,54 @@ public class Connection {
     private void cleanUp() {
         if (!hasCleaned) {
             hasCleaned = true;
-            pendingInputBytes.clear();
-            pendingOutputBytes.clear();
-            nextObjectSize = -1;
-            nextObjectSizeBuffer = null;
-            hasReadNextSize = false;
+            /* The receive buffers are not returned to the pool, since the handler may still be
+               using them when the connection is closed from another thread */
+            receiveBuffer = null;
+            spillBuffer = null;
+            synchronized (inboundStreams) {
+                for (InboundStream stream : inboundStreams.values()) {
+                    stream.in.fail(new IOException("Connection closed"));
+                }
+                inboundStreams.clear();
+            }
             parent = null;
+            for (ResponseFuture<Object> future : pendingRequests.values()) {
+                future.fail(new ConnectionException("Connection closed"));
+            }
+            synchronized (writabilityLock) {
+                /* Release producers blocked on this connection */
+                writabilityLock.notifyAll();
+            }
+            disconnectLatch.countDown();
         }
         // We don't null current connection listener
         // currentConnectionListener
         // because it may still be used to notify the caller of the error
     }
 
+    /**
+     * Drops the output of a disconnected connection and returns its pooled buffers. Called by the
+     * handler thread when it reports the disconnect, since the output queues are not thread-safe.
+     * A writer that still holds the output keeps it, its buffers are then left to the collector.
+     */
+    void releaseOutput() {
+        if (!writing.compareAndSet(false, true)) return;
+        try {
+            ByteBuffer b;
+            while ((b = leasedOutput.poll()) != null) {
+                pool.release(b);
+            }
+            pendingOutputBytes.clear();
+            pendingByteCount.set(0);
+            if (batch != null) {
+                pool.release(batch);
+                batch = null;
+            }
+        } finally {
+            writing.set(false);
+        }
+    }
+
     public boolean isSameHostAs(Connection c) {
         if (c == null) return false;
         return (address().equals(c.address()));
@@ -421,4 +1646,20 @@ public class Connection {
         disconnectLatch.await();
     }
 
+    /**
+     * A chunked stream that is being received
+     */
+    private static final class InboundStream {
+        final ChunkedInputStream in;
+        final boolean            message;
+        /* A chunked message is delivered once both its last chunk was read and it was decoded */
+        final AtomicInteger      pending = new AtomicInteger(2);
+        volatile Object          decoded;
+        volatile DecodeException error;
+
+        InboundStream(ChunkedInputStream in, boolean message) {
+            this.in = in;
+            this.message = message;
+        }
+    }
 }
@@ -1,9 +1,22 @@
 package za.co.percipio.mpl.connection;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import za.co.percipio.mpl.codec.Codec;
+import za.co.percipio.mpl.codec.CodecFactory;
 import za.co.percipio.mpl.codec.impl.JavaDecode;
 import za.co.percipio.mpl.codec.impl.JavaEncode;
+import za.co.percipio.mpl.exception.EncodeException;
+import za.co.percipio.mpl.listener.ConnectionListener;
 
 /**
  *
@@ -12,14 +25,390 @@ public class ConnectionFactory {
     public static final ConnectionFactory JAVA_CONNECTION_FACTORY = new ConnectionFactory(new Codec(
             new JavaEncode(), new JavaDecode()));
 
-    private Codec codec;
+    private Codec        codec;
+    private CodecFactory codecFactory;
+
+    public static final int  DEFAULT_RECEIVE_BUFFER_SIZE       = 64 * 1024;
+    public static final long DEFAULT_LOW_WATER_MARK_BYTES      = 512 * 1024;
+    public static final long DEFAULT_HIGH_WATER_MARK_BYTES     = 1024 * 1024;
+    public static final int  DEFAULT_LOW_WATER_MARK_MESSAGES   = 512;
+    public static final int  DEFAULT_HIGH_WATER_MARK_MESSAGES  = 1024;
+    public static final int  DEFAULT_MAX_BATCH_SIZE            = 8 * 1024;
+    public static final int  MIN_BATCH_SIZE                    = 64;
+    public static final int  DEFAULT_MAX_FRAME_SIZE            = 16 * 1024 * 1024;
+    public static final int  MIN_FRAME_SIZE                    = 16 * 1024;
+    public static final int  DEFAULT_MAX_MESSAGE_SIZE          = 64 * 1024 * 1024;
+    public static final int  DEFAULT_MAX_INBOUND_STREAMS       = 16;
+    public static final int  DEFAULT_STREAM_THREADS            = 256;
+    public static final int  DEFAULT_MAX_REQUESTS_IN_FLIGHT    = 1024;
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS    = 30 * 1000;
+
+    /* Runs the stream callbacks of factories that don't have their own executor */
+    private static ExecutorService defaultStreamExecutor;
+    /* Runs request deadlines and other short periodic tasks, shared by all connections */
+    private static ScheduledThreadPoolExecutor timer;
+
+    private boolean directBuffers;
+    private int     receiveBufferSize = DEFAULT_RECEIVE_BUFFER_SIZE;
+    private boolean directWrite;
+
+    private FrameFormat frameFormat       = FrameFormat.FIXED;
+    private int         maxBatchSize      = DEFAULT_MAX_BATCH_SIZE;
+    private int         maxFrameSize      = DEFAULT_MAX_FRAME_SIZE;
+    private int         maxMessageSize    = DEFAULT_MAX_MESSAGE_SIZE;
+    private int         maxInboundStreams = DEFAULT_MAX_INBOUND_STREAMS;
+    private Executor    streamExecutor;
+    private Executor    decodeExecutor;
+
+    private int  maxRequestsInFlight  = DEFAULT_MAX_REQUESTS_IN_FLIGHT;
+    private long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+
+    private long           lowWaterMarkBytes     = DEFAULT_LOW_WATER_MARK_BYTES;
+    private long           highWaterMarkBytes    = DEFAULT_HIGH_WATER_MARK_BYTES;
+    private int            lowWaterMarkMessages  = DEFAULT_LOW_WATER_MARK_MESSAGES;
+    private int            highWaterMarkMessages = DEFAULT_HIGH_WATER_MARK_MESSAGES;
+    private OverflowPolicy overflowPolicy        = OverflowPolicy.IGNORE;
+
+    private int lowWaterMarkUndelivered  = Integer.MAX_VALUE;
+    private int highWaterMarkUndelivered = Integer.MAX_VALUE;
 
     public ConnectionFactory(Codec codec) {
         this.codec = codec;
     }
 
+    /**
+     * Creates a factory that gives every connection its own codec, for codecs that keep state per
+     * connection such as {@link za.co.percipio.mpl.codec.impl.JavaSessionCodecFactory}.
+     */
+    public ConnectionFactory(CodecFactory codecFactory) {
+        if (codecFactory == null) throw new NullPointerException();
+        this.codecFactory = codecFactory;
+    }
+
+    /**
+     * Sets whether the buffer pools of handlers created with this factory allocate direct buffers.
+     * Only affects handlers created after the call.
+     */
+    public void setDirectBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+    }
+
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    /**
+     * Sets the size of the per-connection receive buffer. Frames larger than this are read into a
+     * dedicated buffer.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        if (receiveBufferSize < 4) throw new IllegalArgumentException("Receive buffer too small");
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Enables writing directly from the thread calling {@link Connection#queueMessage(Object)} when
+     * nothing is waiting to be written. The message is then encoded on the calling thread, so the
+     * encoder must be safe to use from multiple threads.
+     */
+    public void setDirectWrite(boolean directWrite) {
+        this.directWrite = directWrite;
+    }
+
+    public boolean isDirectWrite() {
+        return directWrite;
+    }
+
+    /**
+     * Sets the header format of the frames on the wire, both ends of a connection must use the same
+     * format.
+     */
+    public void setFrameFormat(FrameFormat frameFormat) {
+        if (frameFormat == null) throw new NullPointerException();
+        this.frameFormat = frameFormat;
+    }
+
+    public FrameFormat getFrameFormat() {
+        return frameFormat;
+    }
+
+    /**
+     * Sets the size of the batch frames that small messages are combined into with
+     * {@link FrameFormat#VARINT} framing, or 0 to send every message in its own frame. Messages of up
+     * to half this size are batched.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize != 0 && maxBatchSize < MIN_BATCH_SIZE) {
+            throw new IllegalArgumentException("Invalid batch size");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Sets the largest frame a connection sends or accepts. Larger messages are sent as a chunked
+     * stream and decoded while their chunks arrive, a peer that sends a larger frame is disconnected.
+     * Both ends of a connection should use the same maximum.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize < MIN_FRAME_SIZE) throw new IllegalArgumentException("Frame size too small");
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Sets the largest chunked message a connection accepts, a peer that announces a larger one is
+     * disconnected. Codecs that can't decode from a stream hold the whole message in memory.
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        if (maxMessageSize < 0) throw new IllegalArgumentException("Invalid message size");
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Sets how many chunked messages and streams a connection may receive at the same time, a peer
+     * that starts more is disconnected. Each of them holds a thread of the stream executor and up to
+     * 16 chunks.
+     */
+    public void setMaxInboundStreams(int maxInboundStreams) {
+        if (maxInboundStreams < 1) throw new IllegalArgumentException("Invalid stream limit");
+        this.maxInboundStreams = maxInboundStreams;
+    }
+
+    public int getMaxInboundStreams() {
+        return maxInboundStreams;
+    }
+
+    /**
+     * Sets the executor that decodes chunked messages and calls
+     * {@link za.co.percipio.mpl.listener.StreamListener#onStreamReceived}. Every stream occupies a
+     * thread until it has been read, so the executor should not queue streams behind each other. A
+     * connection that receives a stream the executor rejects is disconnected. By default a shared
+     * pool of up to {@link #DEFAULT_STREAM_THREADS} daemon threads is used.
+     */
+    public void setStreamExecutor(Executor streamExecutor) {
+        this.streamExecutor = streamExecutor;
+    }
+
+    public Executor getStreamExecutor() {
+        Executor executor = streamExecutor;
+        return executor != null ? executor : getDefaultStreamExecutor();
+    }
+
+    private static synchronized Executor getDefaultStreamExecutor() {
+        if (defaultStreamExecutor == null) {
+            /* Rejects streams once every thread is busy rather than queueing them */
+            defaultStreamExecutor = new ThreadPoolExecutor(0, DEFAULT_STREAM_THREADS, 60,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Stream Thread " + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultStreamExecutor;
+    }
+
+    /**
+     * Moves decoding and the {@link za.co.percipio.mpl.listener.ConnectionListener#onMessageReceived}
+     * callback off the handler thread. Received frames are copied and handed to the executor, which
+     * decodes and delivers the messages of every connection one at a time and in order. The handler
+     * thread then only does I/O and framing. The other callbacks are still made from the handler
+     * thread, so onDisconnect may be called before the last messages have been delivered.
+     * <p/>
+     * Use {@link #setUndeliveredMessageWaterMarks(int, int)} to pause reading from connections
+     * whose messages are not delivered fast enough. Pass null to decode on the handler thread, the
+     * default.
+     */
+    public void setDecodeExecutor(Executor decodeExecutor) {
+        this.decodeExecutor = decodeExecutor;
+    }
+
+    public Executor getDecodeExecutor() {
+        return decodeExecutor;
+    }
+
+    /**
+     * Sets how many requests sent with {@link Connection#request(Object)} may wait for a response
+     * at the same time on a connection. Further requests block until a response arrives, or fail when
+     * made from the handler thread.
+     */
+    public void setMaxRequestsInFlight(int maxRequestsInFlight) {
+        if (maxRequestsInFlight < 1) throw new IllegalArgumentException("Invalid request limit");
+        this.maxRequestsInFlight = maxRequestsInFlight;
+    }
+
+    public int getMaxRequestsInFlight() {
+        return maxRequestsInFlight;
+    }
+
+    /**
+     * Sets how long {@link Connection#request(Object)} waits for a response before failing the
+     * request with a {@link java.util.concurrent.TimeoutException}, or 0 to wait until the connection
+     * is lost.
+     */
+    public void setRequestTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("Invalid timeout");
+        this.requestTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    public long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    /**
+     * @return the timer thread shared by the library, which fails requests that were not answered
+     * in time and runs periodic maintenance such as rebalancing. Tasks scheduled on it must be short.
+     */
+    public static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MPL Timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            /* Most requests are answered long before their deadline */
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer;
+    }
+
+    /**
+     * Sets the watermarks for encoded bytes that have not been written to the channel yet. A
+     * connection becomes unwritable above the high watermark and writable again at the low one.
+     */
+    public void setWriteBufferWaterMarks(long low, long high) {
+        if (low < 0 || high < low) throw new IllegalArgumentException("Invalid watermarks");
+        this.lowWaterMarkBytes = low;
+        this.highWaterMarkBytes = high;
+    }
+
+    /**
+     * Sets the watermarks for queued messages that have not been encoded yet.
+     */
+    public void setQueuedMessageWaterMarks(int low, int high) {
+        if (low < 0 || high < low) throw new IllegalArgumentException("Invalid watermarks");
+        this.lowWaterMarkMessages = low;
+        this.highWaterMarkMessages = high;
+    }
+
+    /**
+     * Sets what happens to messages queued while a connection is not writable
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) throw new NullPointerException();
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Enables pausing reading automatically when more than <code>high</code> decoded messages of a
+     * connection have not been delivered to the listener yet. Reading resumes once no more than
+     * <code>low</code> messages are outstanding. Disabled by default.
+     */
+    public void setUndeliveredMessageWaterMarks(int low, int high) {
+        if (low < 0 || high < low) throw new IllegalArgumentException("Invalid watermarks");
+        this.lowWaterMarkUndelivered = low;
+        this.highWaterMarkUndelivered = high;
+    }
+
+    public int getLowWaterMarkUndelivered() {
+        return lowWaterMarkUndelivered;
+    }
+
+    public int getHighWaterMarkUndelivered() {
+        return highWaterMarkUndelivered;
+    }
+
+    public long getLowWaterMarkBytes() {
+        return lowWaterMarkBytes;
+    }
+
+    public long getHighWaterMarkBytes() {
+        return highWaterMarkBytes;
+    }
+
+    public int getLowWaterMarkMessages() {
+        return lowWaterMarkMessages;
+    }
+
+    public int getHighWaterMarkMessages() {
+        return highWaterMarkMessages;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Creates the buffer pool owned by a single ConnectionHandler
+     */
+    public BufferPool newBufferPool() {
+        return new BufferPool(directBuffers);
+    }
+
+    /**
+     * @return the codec shared by all connections created by this factory, or null if every
+     * connection gets its own codec
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return true if all connections encode with the same codec, so that a message encoded once
+     * can be written to any of them
+     */
+    public boolean isCodecShared() {
+        return codecFactory == null;
+    }
+
+    /**
+     * Encodes a message with the shared codec into a frame of the configured format
+     *
+     * @throws EncodeException       if the message could not be encoded
+     * @throws IllegalStateException if connections don't share a codec
+     */
+    public ByteBuffer[] encode(Object message) throws EncodeException {
+        if (!isCodecShared()) throw new IllegalStateException("Connections don't share a codec");
+        try {
+            ByteBuffer[] frame = codec.encoder.encode(message);
+            return frameFormat == FrameFormat.FIXED ? frame : Framing.toVarintFrame(frame);
+        } catch (Exception e) {
+            throw new EncodeException(message, e);
+        }
+    }
+
     public Connection newConnection(ConnectionHandler parent, SelectionKey key) {
-        return new Connection(parent, key, codec);
+        return newConnection(parent, key, parent.getConnectionEventListener());
+    }
+
+    /**
+     * Creates a connection that reports to its own listener, for handlers shared by connections
+     * with different listeners
+     */
+    public Connection newConnection(ConnectionHandler parent, SelectionKey key,
+            ConnectionListener listener) {
+        Codec c = isCodecShared() ? codec : codecFactory.newCodec();
+        return new Connection(parent, key, c, this, listener);
     }
 
 }
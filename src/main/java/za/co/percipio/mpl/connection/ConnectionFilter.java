@@ -0,0 +1,12 @@
+package za.co.percipio.mpl.connection;
+
+/**
+ * Selects the connections a message is broadcast to.
+ */
+public interface ConnectionFilter {
+    /**
+     * @param connection a connection managed by the broadcasting handler
+     * @return true if the message should be queued on the connection
+     */
+    public boolean accept(Connection connection);
+}
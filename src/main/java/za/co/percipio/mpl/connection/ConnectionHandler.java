@@ -1,6 +1,9 @@
 package za.co.percipio.mpl.connection;
 
 import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -11,6 +14,9 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import za.co.percipio.minlog.Log;
 import za.co.percipio.mpl.exception.ConnectionException;
 import za.co.percipio.mpl.exception.EncodeException;
@@ -18,7 +24,7 @@ import za.co.percipio.mpl.listener.ConnectionListener;
 
 public class ConnectionHandler implements Runnable {
 
-    private List<SocketChannel> pendingChannels;
+    private List<Registration> pendingChannels;
 
     private HashMap<Connection, Connection> clientConnections;
     private ArrayList<Connection>           disconnected;
@@ -28,20 +34,55 @@ public class ConnectionHandler implements Runnable {
     private Selector           selector;
 
     private ConnectionFactory factory;
+    private BufferPool        bufferPool;
 
     private volatile boolean active;
 
+    /* Tasks submitted from other threads, run by the handler loop before each select */
+    private MpscQueue<Runnable> pendingTasks;
+    /* Set once a wakeup has been issued for the current loop iteration */
+    private AtomicBoolean       wakeupPending;
+    private AtomicLong          wakeupsIssued;
+    private AtomicLong          wakeupsSaved;
+
+    /* Connections assigned to this handler, including those that are not registered yet */
+    private AtomicInteger   connectionCount;
+    private LoopUtilization utilization;
+
+    /* Connections moved here whose channel still has a cancelled key with this selector */
+    private ArrayList<Connection> deferredMoves;
+    private AtomicLong            movedOut;
+
     private Object initializationLock = new Object();
 
+    /**
+     * Creates a ConnectionHandler without a listener of its own, whose connections are all added
+     * with {@link #connect} or {@link #manageSocketChannel(SocketChannel, ConnectionListener,
+     * ConnectionFactory)}. The factory only configures the buffer pool of the handler.
+     *
+     * @throws RuntimeException if the selector cannot be created
+     */
+    public ConnectionHandler(ConnectionFactory factory) {
+        this(null, factory);
+    }
+
     /**
      * Creates a ConnectionHandler, if the a selector cannot be created an exception is thrown
      *
      * @throws RuntimeException
      **/
     public ConnectionHandler(ConnectionListener listener, ConnectionFactory factory) {
-        pendingChannels = new LinkedList<SocketChannel>();
+        pendingChannels = new LinkedList<Registration>();
         clientConnections = new HashMap<Connection, Connection>();
         disconnected = new ArrayList<>();
+        pendingTasks = new MpscQueue<Runnable>();
+        wakeupPending = new AtomicBoolean();
+        wakeupsIssued = new AtomicLong();
+        wakeupsSaved = new AtomicLong();
+        connectionCount = new AtomicInteger();
+        utilization = new LoopUtilization();
+        deferredMoves = new ArrayList<Connection>();
+        movedOut = new AtomicLong();
 
         thread = new Thread(this, "ConnectionHandler Thread");
         this.listener = listener;
@@ -52,6 +93,7 @@ public class ConnectionHandler implements Runnable {
             throw new RuntimeException(e);
         }
         this.factory = factory;
+        this.bufferPool = factory.newBufferPool();
     }
 
     public void start() {
@@ -72,7 +114,8 @@ public class ConnectionHandler implements Runnable {
             synchronized (initializationLock) {
                 if (active) {
                     active = false;
-                    selector.wakeup();
+                    Selector s = selector;
+                    if (s != null) s.wakeup();
                 }
             }
         }
@@ -84,27 +127,75 @@ public class ConnectionHandler implements Runnable {
      * @param socket
      */
     public void manageSocketChannel(SocketChannel socket) {
+        manageSocketChannel(socket, listener, factory);
+    }
+
+    /**
+     * Sets this ConnectionHandler to manage the given socket, with a listener and settings of its
+     * own
+     */
+    public void manageSocketChannel(SocketChannel socket, ConnectionListener listener,
+            ConnectionFactory factory) {
         // XXX Should have been initialized by now!!!!
         try {
-            synchronized (pendingChannels) {
-                socket.configureBlocking(false);
-                pendingChannels.add(socket);//
-                if (selector != null) {
-                    selector.wakeup();
-                }
-            }
+            socket.configureBlocking(false);
+            addRegistration(new Registration(socket, listener, factory, false));
         } catch (IOException e) {
             Log.error("[SocketHandler] Could not manage socket");
         }
     }
 
+    /**
+     * Opens a connection to the given address without blocking. The connect completes on the
+     * handler thread, which then calls {@link ConnectionListener#onConnect(Connection)}, or
+     * {@link ConnectionListener#onConnectionError(Connection, Throwable)} with a null connection if
+     * it fails.
+     *
+     * @param address  the address to connect to, which should already be resolved
+     * @param listener receives the events of the connection
+     * @param factory  the settings of the connection
+     * @return the channel being connected, closing it abandons the attempt
+     * @throws IOException if the connect could not be started
+     */
+    public SocketChannel connect(SocketAddress address, ConnectionListener listener,
+            ConnectionFactory factory) throws IOException {
+        SocketChannel socket = SocketChannel.open();
+        try {
+            socket.configureBlocking(false);
+            boolean connected = socket.connect(address);
+            addRegistration(new Registration(socket, listener, factory, !connected));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        } catch (RuntimeException e) {
+            /* Such as an unresolved address */
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    private void addRegistration(Registration r) {
+        if (r.listener == null) throw new NullPointerException("No listener for the connection");
+        synchronized (pendingChannels) {
+            pendingChannels.add(r);
+        }
+        connectionCount.incrementAndGet();
+        wakeup();
+    }
+
     @Override public void run() {
         try {
             while (active) {
                 try {
                     registerNewConnections();
-                    selector.select();
+                    runPendingTasks();
+                    /* Also reports connections lost on this thread, which doesn't wake the selector */
                     processDisconnected();
+                    utilization.markIdle();
+                    selector.select();
+                    utilization.markBusy();
+                    wakeupPending.set(false);
 
                     Set<SelectionKey> selected = selector.selectedKeys();
                     Iterator<SelectionKey> iter = selected.iterator();
@@ -116,7 +207,15 @@ public class ConnectionHandler implements Runnable {
                         if (!key.isValid()) {
                             continue;
                         }
+                        if (key.attachment() instanceof Registration) {
+                            finishConnect(key, (Registration) key.attachment());
+                            continue;
+                        }
                         Connection c = (Connection) key.attachment();
+                        if (!c.checkIsConnected()) {
+                            /* Disconnected by another thread, onDisconnect reports it */
+                            continue;
+                        }
 
                         if (key.isReadable()) {
                             try {
@@ -158,14 +257,107 @@ public class ConnectionHandler implements Runnable {
         }
     }
 
+    /**
+     * Runs the given task on the handler thread before the next select. Tasks are run in the order
+     * in which they were submitted.
+     */
+    public void execute(Runnable task) {
+        pendingTasks.offer(task);
+        wakeup();
+    }
+
+    /**
+     * Wakes the selector so that pending tasks and registrations are picked up. At most one wakeup is
+     * issued per loop iteration, further calls are coalesced into it.
+     */
+    void wakeup() {
+        if (inEventLoop()) {
+            /* The loop runs the pending tasks before it selects again */
+            wakeupsSaved.incrementAndGet();
+            return;
+        }
+        if (wakeupPending.compareAndSet(false, true)) {
+            Selector s = selector;
+            if (s != null) {
+                s.wakeup();
+            }
+            wakeupsIssued.incrementAndGet();
+        } else {
+            wakeupsSaved.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if the calling thread is this handler's thread
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return the number of selector wakeups issued by this handler
+     */
+    public long getWakeupsIssued() {
+        return wakeupsIssued.get();
+    }
+
+    /**
+     * @return the number of wakeups that were coalesced into an already issued one
+     */
+    public long getWakeupsSaved() {
+        return wakeupsSaved.get();
+    }
+
+    /**
+     * @return the number of connections assigned to this handler, including accepted sockets that
+     * have not been registered yet
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return the number of encoded bytes waiting to be written, summed over the connections of
+     * this handler
+     */
+    public long getPendingByteCount() {
+        long count = 0;
+        synchronized (clientConnections) {
+            for (Connection c : clientConnections.keySet()) {
+                count += c.getPendingByteCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return an estimate of the share of time the handler loop spent working rather than waiting
+     * for events over roughly the last 100 to 200 milliseconds, between 0 and 1
+     */
+    public double getUtilization() {
+        return utilization.get();
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.error("Handler task threw an exception", e);
+            }
+        }
+    }
+
     private void processDisconnected() {
         synchronized (clientConnections) {
             Iterator<Connection> iter = disconnected.iterator();
             while (iter.hasNext()) {
                 Connection c = iter.next();
                 iter.remove();
+                c.releaseOutput();
                 onConnectionDisconnect(c);
-                clientConnections.remove(c);
+                removeConnection(c);
             }
         }
     }
@@ -179,11 +371,24 @@ public class ConnectionHandler implements Runnable {
     private void processConnectionError(SelectionKey key, Connection c, Throwable e) {
         key.cancel();
         Log.debug("Connection error occurred", e);
-        clientConnections.remove(c);
+        synchronized (clientConnections) {
+            removeConnection(c);
+        }
         onConnectionError(c, e);
     }
 
+    /* Called while holding the clientConnections lock */
+    private void removeConnection(Connection c) {
+        if (clientConnections.remove(c) != null) {
+            connectionCount.decrementAndGet();
+        }
+    }
+
     private void onConnectionError(Connection c, Throwable t) {
+        onConnectionError(c.getListener(), c, t);
+    }
+
+    private void onConnectionError(ConnectionListener listener, Connection c, Throwable t) {
         try {
             listener.onConnectionError(c, t);
         } catch (Exception e) {
@@ -193,13 +398,30 @@ public class ConnectionHandler implements Runnable {
 
     private void onConnectionDisconnect(Connection c) {
         try {
-            listener.onDisconnect(c);
+            c.getListener().onDisconnect(c);
         } catch (Exception e) {
             Log.error("Client code threw an exception", e);
         }
     }
 
     private void internalCleanup() {
+        /* Connects that have not completed yet are abandoned */
+        ArrayList<Registration> abandoned = new ArrayList<Registration>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Registration) abandoned.add((Registration) key.attachment());
+        }
+        synchronized (pendingChannels) {
+            abandoned.addAll(pendingChannels);
+        }
+        for (Registration r : abandoned) {
+            try {
+                r.channel.close();
+            } catch (IOException ignored) {
+            }
+            if (r.connecting) {
+                onConnectionError(r.listener, null, new ConnectionException("Handler stopped"));
+            }
+        }
         try {
             selector.close();
         } catch (IOException e) {
@@ -213,32 +435,240 @@ public class ConnectionHandler implements Runnable {
         processDisconnected();
         pendingChannels.clear();
         clientConnections.clear();
+        connectionCount.set(0);
+    }
+
+    /**
+     * Moves a connection of this handler to another one, for instance to even out the load of the
+     * handlers of a server. The move happens asynchronously on the handler threads; the connection
+     * stays connected and keeps its partly read frames and unwritten output. Messages are delivered
+     * in order across the move, but callbacks may be made from either handler thread around it.
+     * <p/>
+     * Connections that were disconnected or no longer belong to this handler are left alone.
+     */
+    public void moveConnection(final Connection c, final ConnectionHandler target) {
+        if (target == this) return;
+        if (!target.active) throw new IllegalStateException("Target handler is not running");
+        execute(new Runnable() {
+            @Override public void run() {
+                moveConnectionInternal(c, target);
+            }
+        });
+    }
+
+    private void moveConnectionInternal(Connection c, ConnectionHandler target) {
+        synchronized (clientConnections) {
+            if (!clientConnections.containsKey(c)) return;
+        }
+        /* Counted by the target from now on, like an accepted socket that is not registered yet */
+        target.connectionCount.incrementAndGet();
+        if (!c.moveTo(target)) {
+            target.connectionCount.decrementAndGet();
+            return;
+        }
+        synchronized (clientConnections) {
+            removeConnection(c);
+        }
+        movedOut.incrementAndGet();
+    }
+
+    /**
+     * Registers a connection that is moving to this handler, called by the previous handler
+     */
+    void adoptConnection(final Connection c) {
+        execute(new Runnable() {
+            @Override public void run() {
+                registerMovedConnection(c);
+            }
+        });
+    }
+
+    private void registerMovedConnection(Connection c) {
+        if (!c.checkIsConnected()) {
+            connectionCount.decrementAndGet();
+            return;
+        }
+        try {
+            SelectionKey key = c.channel().register(selector, 0, c);
+            synchronized (clientConnections) {
+                clientConnections.put(c, c);
+            }
+            c.onMoved(key);
+        } catch (CancelledKeyException e) {
+            /* The connection moved away from here and back before the old key was deregistered,
+               which the next select does */
+            deferredMoves.add(c);
+            selector.wakeup();
+        } catch (ClosedChannelException e) {
+            connectionCount.decrementAndGet();
+            c.disconnectInternal();
+        }
+    }
+
+    /**
+     * @return the number of connections this handler has moved to other handlers
+     */
+    public long getConnectionsMovedOut() {
+        return movedOut.get();
     }
 
     private void registerNewConnections() {
+        if (!deferredMoves.isEmpty()) {
+            ArrayList<Connection> moves = new ArrayList<Connection>(deferredMoves);
+            deferredMoves.clear();
+            for (Connection c : moves) {
+                registerMovedConnection(c);
+            }
+        }
         if (pendingChannels.isEmpty()) return;
-        ArrayList<SocketChannel> nextChannels;
+        ArrayList<Registration> nextChannels;
         synchronized (pendingChannels) {
-            nextChannels = new ArrayList<SocketChannel>(pendingChannels);
+            nextChannels = new ArrayList<Registration>(pendingChannels);
             pendingChannels.clear();
         }
-        for (SocketChannel s : nextChannels) {
+        for (Registration r : nextChannels) {
             try {
-                SelectionKey key = s.register(selector, SelectionKey.OP_READ);
-                Connection c = factory.newConnection(this, key);
-                Connection oldConnection = clientConnections.put(c, c);
-                if (oldConnection != null && oldConnection.checkIsConnected()) {
-                    /* This shouldn't ever happen, since we don't reuse connections */
-                    oldConnection.disconnect();
+                if (r.connecting) {
+                    /* The connection is added once the connect completes */
+                    r.channel.register(selector, SelectionKey.OP_CONNECT, r);
+                } else {
+                    addConnection(r.channel.register(selector, SelectionKey.OP_READ), r);
                 }
-                listener.onConnect(c);
             } catch (ClosedChannelException e) {
-                Log.error("Could not register socket with selector");
+                connectionCount.decrementAndGet();
+                if (r.connecting) {
+                    /* Abandoned by closing the channel */
+                    Log.debug("Channel closed before its connect completed");
+                } else {
+                    Log.error("Could not register socket with selector");
+                }
             }
         }
     }
 
+    private void addConnection(SelectionKey key, Registration r) {
+        Connection c = r.factory.newConnection(this, key, r.listener);
+        Connection oldConnection;
+        synchronized (clientConnections) {
+            oldConnection = clientConnections.put(c, c);
+        }
+        if (oldConnection != null && oldConnection.checkIsConnected()) {
+            /* This shouldn't ever happen, since we don't reuse connections */
+            oldConnection.disconnect();
+        }
+        try {
+            r.listener.onConnect(c);
+        } catch (Exception e) {
+            Log.error("Client code threw an exception", e);
+        }
+    }
+
+    /**
+     * Completes a connect started by {@link #connect} once the channel is connectable
+     */
+    private void finishConnect(SelectionKey key, Registration r) {
+        if (!key.isConnectable()) return;
+        try {
+            if (!r.channel.finishConnect()) return;
+        } catch (IOException e) {
+            key.cancel();
+            try {
+                r.channel.close();
+            } catch (IOException ignored) {
+            }
+            connectionCount.decrementAndGet();
+            Log.debug("Could not connect", e);
+            onConnectionError(r.listener, null, e);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        addConnection(key, r);
+    }
+
+    /**
+     * A channel waiting to be registered with the selector, with the listener and settings of the
+     * connection it becomes
+     */
+    private static final class Registration {
+        final SocketChannel      channel;
+        final ConnectionListener listener;
+        final ConnectionFactory  factory;
+        /* Set while the connect is still in progress */
+        final boolean            connecting;
+
+        Registration(SocketChannel channel, ConnectionListener listener, ConnectionFactory factory,
+                boolean connecting) {
+            this.channel = channel;
+            this.listener = listener;
+            this.factory = factory;
+            this.connecting = connecting;
+        }
+    }
+
+    /**
+     * Encodes the message once and queues it on every connection of this handler that is accepted by
+     * the filter.
+     *
+     * @param message the message to send
+     * @param filter  selects the target connections, or null for all of them
+     * @return the number of connections the message was queued on
+     * @throws EncodeException if the message could not be encoded
+     */
+    public int broadcast(Object message, ConnectionFilter filter) throws EncodeException {
+        if (!factory.isCodecShared()) {
+            return broadcastUnencoded(message, filter);
+        }
+        return broadcastEncoded(factory.encode(message), filter);
+    }
+
+    /**
+     * Queues already encoded frames on the connections accepted by the filter. The frames must have
+     * been encoded with the codec of this handler's factory. They are shared, each connection writes
+     * read-only duplicates of them.
+     *
+     * @return the number of connections the frames were queued on
+     */
+    public int broadcastEncoded(ByteBuffer[] frames, ConnectionFilter filter) {
+        int count = 0;
+        for (Connection c : getConnections()) {
+            if (c.checkIsConnected() && (filter == null || filter.accept(c))) {
+                if (c.queueEncoded(frames)) count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Queues the message on every accepted connection, used when each connection encodes with its
+     * own codec.
+     */
+    private int broadcastUnencoded(Object message, ConnectionFilter filter) {
+        int count = 0;
+        for (Connection c : getConnections()) {
+            if (c.checkIsConnected() && (filter == null || filter.accept(c))) {
+                if (c.queueMessage(message)) count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return a snapshot of the connections managed by this handler
+     */
+    public List<Connection> getConnections() {
+        synchronized (clientConnections) {
+            return new ArrayList<Connection>(clientConnections.keySet());
+        }
+    }
+
     public ConnectionListener getConnectionEventListener() {
         return listener;
     }
+
+    /**
+     * @return the pool that connections managed by this handler lease their receive buffers from
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
 }
@@ -0,0 +1,140 @@
+package za.co.percipio.mpl.connection;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import za.co.percipio.minlog.Log;
+
+/**
+ * Evens out the number of connections of a group of handlers by moving connections from the fullest
+ * handlers to the emptiest ones, see {@link ConnectionHandler#moveConnection}. Nothing is moved while
+ * the imbalance, the difference between the fullest and the emptiest handler relative to the mean,
+ * stays below the threshold.
+ * <p/>
+ * Run it periodically, for instance with {@link za.co.percipio.mpl.MPLServer#setRebalancing}.
+ */
+public class ConnectionRebalancer implements Runnable {
+    public static final double DEFAULT_THRESHOLD         = 0.25;
+    public static final int    DEFAULT_MAX_MOVES_PER_RUN = 64;
+
+    private final ConnectionHandler[] handlers;
+    private final double              threshold;
+    private volatile int              maxMovesPerRun = DEFAULT_MAX_MOVES_PER_RUN;
+    private final AtomicLong          moves;
+
+    /**
+     * @param handlers  the handlers whose connections are balanced
+     * @param threshold the imbalance above which connections are moved, 0.25 moves connections once
+     *                  the fullest handler has a quarter of the mean more than the emptiest one
+     */
+    public ConnectionRebalancer(ConnectionHandler[] handlers, double threshold) {
+        if (threshold < 0) throw new IllegalArgumentException("Invalid threshold");
+        this.handlers = handlers.clone();
+        this.threshold = threshold;
+        this.moves = new AtomicLong();
+    }
+
+    /**
+     * Limits the connections moved by a single run, so that a large imbalance is corrected
+     * gradually
+     */
+    public void setMaxMovesPerRun(int maxMovesPerRun) {
+        if (maxMovesPerRun < 1) throw new IllegalArgumentException("Invalid limit");
+        this.maxMovesPerRun = maxMovesPerRun;
+    }
+
+    /**
+     * @return the difference between the most and the fewest connections of a handler, divided by
+     * the mean number of connections
+     */
+    public double getImbalance() {
+        return imbalance(connectionCounts());
+    }
+
+    /**
+     * @return the number of moves started by this rebalancer
+     */
+    public long getMoves() {
+        return moves.get();
+    }
+
+    /**
+     * Starts moving connections if the imbalance is above the threshold. The moves complete
+     * asynchronously on the handler threads.
+     *
+     * @return the number of moves started
+     */
+    public int rebalance() {
+        int[] counts = connectionCounts();
+        /* Plans the moves on the counts first, one at a time from the fullest to the emptiest */
+        List<int[]> plan = new ArrayList<int[]>();
+        while (plan.size() < maxMovesPerRun && imbalance(counts) > threshold) {
+            int fullest = 0;
+            int emptiest = 0;
+            for (int i = 1; i < counts.length; i++) {
+                if (counts[i] > counts[fullest]) fullest = i;
+                if (counts[i] < counts[emptiest]) emptiest = i;
+            }
+            if (counts[fullest] - counts[emptiest] < 2) break;
+            counts[fullest]--;
+            counts[emptiest]++;
+            plan.add(new int[]{fullest, emptiest});
+        }
+        if (plan.isEmpty()) return 0;
+
+        List<Iterator<Connection>> candidates = new ArrayList<Iterator<Connection>>(handlers.length);
+        for (int i = 0; i < handlers.length; i++) {
+            candidates.add(null);
+        }
+        int started = 0;
+        for (int[] move : plan) {
+            Iterator<Connection> from = candidates.get(move[0]);
+            if (from == null) {
+                from = handlers[move[0]].getConnections().iterator();
+                candidates.set(move[0], from);
+            }
+            while (from.hasNext()) {
+                Connection c = from.next();
+                if (!c.checkIsConnected()) continue;
+                handlers[move[0]].moveConnection(c, handlers[move[1]]);
+                started++;
+                break;
+            }
+        }
+        moves.addAndGet(started);
+        return started;
+    }
+
+    @Override public void run() {
+        try {
+            int started = rebalance();
+            if (started > 0) Log.debug("Moving " + started + " connections between handlers");
+        } catch (Exception e) {
+            /* Keeps a periodic run scheduled */
+            Log.error("Rebalancing failed", e);
+        }
+    }
+
+    private int[] connectionCounts() {
+        int[] counts = new int[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            counts[i] = handlers[i].getConnectionCount();
+        }
+        return counts;
+    }
+
+    private static double imbalance(int[] counts) {
+        if (counts.length < 2) return 0;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        long total = 0;
+        for (int count : counts) {
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+            total += count;
+        }
+        if (total == 0) return 0;
+        return (max - min) / ((double) total / counts.length);
+    }
+}
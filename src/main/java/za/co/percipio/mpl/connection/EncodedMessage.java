@@ -0,0 +1,18 @@
+package za.co.percipio.mpl.connection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message that was encoded once and is shared between several connections. Every connection
+ * queues its own read-only duplicates, so the positions of the shared buffers are never touched.
+ */
+final class EncodedMessage {
+    final ByteBuffer[] frames;
+
+    EncodedMessage(ByteBuffer[] shared) {
+        frames = new ByteBuffer[shared.length];
+        for (int i = 0; i < shared.length; i++) {
+            frames[i] = shared[i].asReadOnlyBuffer();
+        }
+    }
+}
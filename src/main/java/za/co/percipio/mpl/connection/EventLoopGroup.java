@@ -0,0 +1,92 @@
+package za.co.percipio.mpl.connection;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A fixed set of running handlers that many clients share, so that the number of threads doesn't
+ * grow with the number of connections. Each connection reports to its own listener, see
+ * {@link ConnectionHandler#connect}, and stays on the handler it was assigned to.
+ * <p/>
+ * The group is started when it is created and runs until {@link #shutdown()}, which disconnects
+ * every connection of the group.
+ */
+public class EventLoopGroup {
+    private final ConnectionHandler[] handlers;
+    private final AtomicBoolean       shutdown;
+
+    private volatile HandlerSelector handlerSelector = HandlerSelectors.leastConnections();
+
+    /**
+     * Creates a group whose handlers lease heap buffers
+     *
+     * @param handlerCount the number of handler threads
+     */
+    public EventLoopGroup(int handlerCount) {
+        this(handlerCount, ConnectionFactory.JAVA_CONNECTION_FACTORY);
+    }
+
+    /**
+     * @param handlerCount the number of handler threads
+     * @param factory      configures the buffer pools of the handlers, connections bring their own
+     *                     settings
+     */
+    public EventLoopGroup(int handlerCount, ConnectionFactory factory) {
+        if (handlerCount < 1) throw new IllegalArgumentException("A group needs a handler");
+        shutdown = new AtomicBoolean();
+        handlers = new ConnectionHandler[handlerCount];
+        for (int i = 0; i < handlerCount; i++) {
+            handlers[i] = new ConnectionHandler(factory);
+            handlers[i].start();
+        }
+    }
+
+    /**
+     * Sets how connections are assigned to the handlers of the group, by default to the handler with
+     * the fewest connections
+     */
+    public void setHandlerSelector(HandlerSelector handlerSelector) {
+        if (handlerSelector == null) throw new NullPointerException();
+        this.handlerSelector = handlerSelector;
+    }
+
+    /**
+     * @return the handler the next connection should be assigned to
+     * @throws IllegalStateException if the group has been shut down
+     */
+    public ConnectionHandler next() {
+        if (shutdown.get()) throw new IllegalStateException("Event loop group has been shut down");
+        return handlerSelector.select(handlers);
+    }
+
+    /**
+     * @return the handlers of this group
+     */
+    public ConnectionHandler[] getHandlers() {
+        return handlers.clone();
+    }
+
+    /**
+     * @return the number of connections of all the handlers in the group
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (ConnectionHandler h : handlers) {
+            count += h.getConnectionCount();
+        }
+        return count;
+    }
+
+    public boolean isShutdown() {
+        return shutdown.get();
+    }
+
+    /**
+     * Stops the handlers, their connections are disconnected and pending connects fail
+     */
+    public void shutdown() {
+        if (!shutdown.compareAndSet(false, true)) return;
+        for (ConnectionHandler h : handlers) {
+            h.stop();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package za.co.percipio.mpl.connection;
+
+/**
+ * The header in front of every frame on the wire. Both ends of a connection must use the same
+ * format.
+ */
+public enum FrameFormat {
+    /**
+     * A 4 byte big-endian payload length, the format written by the buffer based encoders
+     */
+    FIXED,
+    /**
+     * A varint holding the payload length and the kind of frame, 1 byte for payloads of up to 31
+     * bytes. Small messages encoded in the same write cycle are combined into batch frames.
+     */
+    VARINT
+}
@@ -0,0 +1,158 @@
+package za.co.percipio.mpl.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes frame headers. A varint header holds <code>(size << 2) | kind</code> in groups of
+ * 7 bits, least significant group first. A batch frame holds complete message frames, each with its
+ * own varint header. A fixed header marks chunk frames by setting the high bit of the length.
+ * <p/>
+ * The payload of a chunk frame starts with a flags byte and the 4 byte stream ID. The first chunk of
+ * a chunked message also holds the 4 byte length of the message.
+ * <p/>
+ * Parsed headers are packed into a long, see {@link #readHeader(FrameFormat, ByteBuffer, int)}.
+ */
+final class Framing {
+    static final int KIND_MESSAGE = 0;
+    static final int KIND_BATCH   = 1;
+    static final int KIND_CHUNK   = 2;
+
+    static final int CHUNK_START   = 1;
+    static final int CHUNK_END     = 2;
+    /* The stream holds an encoded message rather than the bytes of a user stream */
+    static final int CHUNK_MESSAGE = 4;
+    /* The sender could not complete the stream */
+    static final int CHUNK_ABORT   = 8;
+
+    static final int FIXED_HEADER_LENGTH      = 4;
+    static final int MAX_VARINT_HEADER_LENGTH = 5;
+    static final int MAX_CHUNK_HEADER_LENGTH  = MAX_VARINT_HEADER_LENGTH + 9;
+
+    private Framing() {}
+
+    /**
+     * @return the space reserved in front of a payload whose size is not known yet
+     */
+    static int reservedHeaderLength(FrameFormat format) {
+        return format == FrameFormat.FIXED ? FIXED_HEADER_LENGTH : MAX_VARINT_HEADER_LENGTH;
+    }
+
+    static int varintHeaderLength(int size, int kind) {
+        long value = ((long) size << 2) | kind;
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes a varint header that ends right before <code>end</code>
+     *
+     * @return the index of the first header byte
+     */
+    static int writeVarintHeader(ByteBuffer b, int end, int size, int kind) {
+        long value = ((long) size << 2) | kind;
+        int start = end - varintHeaderLength(size, kind);
+        int index = start;
+        while ((value & ~0x7FL) != 0) {
+            b.put(index++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        b.put(index, (byte) value);
+        return start;
+    }
+
+    /**
+     * Parses the header at the given index without moving the position of the buffer
+     *
+     * @return the packed header, or -1 if the buffer does not hold the complete header yet
+     * @throws IOException if the header is invalid
+     */
+    static long readHeader(FrameFormat format, ByteBuffer b, int index) throws IOException {
+        int available = b.limit() - index;
+        if (format == FrameFormat.FIXED) {
+            if (available < FIXED_HEADER_LENGTH) return -1;
+            int size = b.getInt(index);
+            if (size < 0) {
+                return pack(FIXED_HEADER_LENGTH, size & Integer.MAX_VALUE, KIND_CHUNK);
+            }
+            return pack(FIXED_HEADER_LENGTH, size, KIND_MESSAGE);
+        }
+        long value = 0;
+        for (int i = 0; i < MAX_VARINT_HEADER_LENGTH; i++) {
+            if (i == available) return -1;
+            int next = b.get(index + i);
+            value |= (long) (next & 0x7F) << (7 * i);
+            if ((next & 0x80) == 0) {
+                long size = value >>> 2;
+                if (size > Integer.MAX_VALUE) throw new IOException("Invalid frame size: " + size);
+                return pack(i + 1, (int) size, (int) (value & 3));
+            }
+        }
+        throw new IOException("Frame header too long");
+    }
+
+    /**
+     * Writes the frame header and the chunk header of a chunk frame that end right before
+     * <code>end</code>
+     *
+     * @param dataLength    the number of stream bytes in the chunk
+     * @param messageLength the length of the chunked message, only written into the first chunk of a
+     *                      message
+     * @return the index of the first header byte
+     */
+    static int writeChunkHeader(FrameFormat format, ByteBuffer b, int end, int dataLength, int flags,
+            int streamId, int messageLength) {
+        boolean hasLength = (flags & (CHUNK_START | CHUNK_MESSAGE)) == (CHUNK_START | CHUNK_MESSAGE);
+        int index = end - (hasLength ? 9 : 5);
+        b.put(index, (byte) flags);
+        b.putInt(index + 1, streamId);
+        if (hasLength) b.putInt(index + 5, messageLength);
+        int size = end - index + dataLength;
+        if (format == FrameFormat.FIXED) {
+            b.putInt(index - FIXED_HEADER_LENGTH, size | Integer.MIN_VALUE);
+            return index - FIXED_HEADER_LENGTH;
+        }
+        return writeVarintHeader(b, index, size, KIND_CHUNK);
+    }
+
+    private static long pack(int headerLength, int size, int kind) {
+        return ((long) size << 8) | (kind << 4) | headerLength;
+    }
+
+    static int headerLength(long header) {
+        return (int) (header & 0xF);
+    }
+
+    static int frameKind(long header) {
+        return (int) ((header >>> 4) & 0xF);
+    }
+
+    static int frameSize(long header) {
+        return (int) (header >>> 8);
+    }
+
+    /**
+     * Converts a frame written by a buffer based encoder, which starts with the 4 byte length, into a
+     * varint framed message. The payload buffers are shared with the given frame.
+     */
+    static ByteBuffer[] toVarintFrame(ByteBuffer[] fixed) {
+        int skip = FIXED_HEADER_LENGTH;
+        int size = 0;
+        ByteBuffer[] frame = new ByteBuffer[fixed.length + 1];
+        for (int i = 0; i < fixed.length; i++) {
+            ByteBuffer view = fixed[i].duplicate();
+            int drop = Math.min(skip, view.remaining());
+            view.position(view.position() + drop);
+            skip -= drop;
+            size += view.remaining();
+            frame[i + 1] = view;
+        }
+        ByteBuffer header = ByteBuffer.allocate(varintHeaderLength(size, KIND_MESSAGE));
+        writeVarintHeader(header, header.capacity(), size, KIND_MESSAGE);
+        frame[0] = header;
+        return frame;
+    }
+}
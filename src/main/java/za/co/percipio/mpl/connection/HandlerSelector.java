@@ -0,0 +1,15 @@
+package za.co.percipio.mpl.connection;
+
+/**
+ * Chooses the handler that a newly accepted connection is assigned to. {@link HandlerSelectors}
+ * holds the built in strategies.
+ */
+public interface HandlerSelector {
+    /**
+     * Called from the accepting thread for every new connection
+     *
+     * @param handlers the handlers of the server, never empty
+     * @return the handler that manages the new connection
+     */
+    public ConnectionHandler select(ConnectionHandler[] handlers);
+}
@@ -0,0 +1,99 @@
+package za.co.percipio.mpl.connection;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The built in strategies for assigning new connections to handlers.
+ */
+public final class HandlerSelectors {
+    /* Utilizations closer than this are considered equal, so that idle handlers are compared by
+       their connections rather than by noise */
+    private static final double UTILIZATION_TOLERANCE = 0.05;
+
+    private HandlerSelectors() {
+    }
+
+    /**
+     * Assigns connections to the handlers in turn, regardless of their load
+     */
+    public static HandlerSelector roundRobin() {
+        return new HandlerSelector() {
+            private int next;
+
+            @Override public ConnectionHandler select(ConnectionHandler[] handlers) {
+                if (next >= handlers.length) next = 0;
+                return handlers[next++];
+            }
+        };
+    }
+
+    /**
+     * Assigns every connection to the handler that manages the fewest connections
+     */
+    public static HandlerSelector leastConnections() {
+        return new HandlerSelector() {
+            @Override public ConnectionHandler select(ConnectionHandler[] handlers) {
+                ConnectionHandler best = handlers[0];
+                int bestCount = best.getConnectionCount();
+                for (int i = 1; i < handlers.length; i++) {
+                    int count = handlers[i].getConnectionCount();
+                    if (count < bestCount) {
+                        best = handlers[i];
+                        bestCount = count;
+                    }
+                }
+                return best;
+            }
+        };
+    }
+
+    /**
+     * Assigns every connection to the handler with the fewest bytes waiting to be written, which
+     * favours handlers whose peers keep up. Visits every connection of every handler, so it suits
+     * servers that accept connections at a moderate rate. Ties go to the handler with fewer
+     * connections.
+     */
+    public static HandlerSelector leastPendingBytes() {
+        return new HandlerSelector() {
+            @Override public ConnectionHandler select(ConnectionHandler[] handlers) {
+                ConnectionHandler best = handlers[0];
+                long bestBytes = best.getPendingByteCount();
+                for (int i = 1; i < handlers.length; i++) {
+                    ConnectionHandler h = handlers[i];
+                    long bytes = h.getPendingByteCount();
+                    if (bytes < bestBytes || bytes == bestBytes
+                            && h.getConnectionCount() < best.getConnectionCount()) {
+                        best = h;
+                        bestBytes = bytes;
+                    }
+                }
+                return best;
+            }
+        };
+    }
+
+    /**
+     * Picks two handlers at random and assigns the connection to the one whose loop is less busy,
+     * see {@link ConnectionHandler#getUtilization()}. When both are about as busy the one with fewer
+     * connections is chosen.
+     * Sampling two handlers avoids herding every new connection onto the handler that was idle a
+     * moment ago, while still steering away from overloaded ones.
+     */
+    public static HandlerSelector powerOfTwoChoices() {
+        return new HandlerSelector() {
+            @Override public ConnectionHandler select(ConnectionHandler[] handlers) {
+                if (handlers.length == 1) return handlers[0];
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int first = random.nextInt(handlers.length);
+                int second = random.nextInt(handlers.length - 1);
+                if (second >= first) second++;
+                ConnectionHandler a = handlers[first];
+                ConnectionHandler b = handlers[second];
+                double loadA = a.getUtilization();
+                double loadB = b.getUtilization();
+                if (Math.abs(loadA - loadB) > UTILIZATION_TOLERANCE) return loadA < loadB ? a : b;
+                return a.getConnectionCount() <= b.getConnectionCount() ? a : b;
+            }
+        };
+    }
+}
@@ -0,0 +1,61 @@
+package za.co.percipio.mpl.connection;
+
+/**
+ * Measures the share of time a handler loop spends working rather than waiting in select. Time is
+ * counted in windows, the utilization covers the last complete window and the current one.
+ * <p/>
+ * Only the handler thread marks the loop busy or idle, other threads read an estimate. The fields
+ * are read without a lock, so a reader may combine values of two windows; the result is clamped.
+ */
+final class LoopUtilization {
+    private static final long WINDOW_NANOS = 100 * 1000 * 1000L;
+
+    private volatile boolean idle;
+    private volatile long    busySince;
+    private volatile long    windowStart;
+    private volatile long    windowBusy;
+    private volatile long    previousBusy;
+    private volatile long    previousLength;
+
+    LoopUtilization() {
+        long now = System.nanoTime();
+        busySince = now;
+        windowStart = now;
+    }
+
+    /**
+     * Called by the handler thread before it selects
+     */
+    void markIdle() {
+        long now = System.nanoTime();
+        windowBusy += now - busySince;
+        idle = true;
+        long length = now - windowStart;
+        if (length >= WINDOW_NANOS) {
+            previousBusy = windowBusy;
+            previousLength = length;
+            windowBusy = 0;
+            windowStart = now;
+        }
+    }
+
+    /**
+     * Called by the handler thread once select returns
+     */
+    void markBusy() {
+        busySince = System.nanoTime();
+        idle = false;
+    }
+
+    /**
+     * @return the share of time the loop was busy, between 0 and 1
+     */
+    double get() {
+        long now = System.nanoTime();
+        long busy = previousBusy + windowBusy;
+        if (!idle) busy += now - busySince;
+        long length = previousLength + now - windowStart;
+        if (length <= 0) return 0;
+        return Math.max(0, Math.min(1, (double) busy / length));
+    }
+}
@@ -0,0 +1,88 @@
+package za.co.percipio.mpl.connection;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * An unbounded, lock-free, multi-producer single-consumer queue. Any thread may call
+ * {@link #offer(Object)} and {@link #isEmpty()}, but {@link #poll()} and {@link #peek()} must only be
+ * called from the single consuming thread.
+ * <p/>
+ * Producers only swap the head reference and link the previous head to the new node, so they never
+ * contend on a monitor.
+ */
+final class MpscQueue<E> {
+    private static final class Node<E> {
+        volatile Node<E> next;
+        E                value;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MpscQueue, Node> HEAD =
+            AtomicReferenceFieldUpdater.newUpdater(MpscQueue.class, Node.class, "head");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+    /* The most recently offered node, swapped by producers */
+    private volatile Node<E> head;
+    /* The node before the next element to poll, only advanced by the consumer */
+    private volatile Node<E> tail;
+
+    MpscQueue() {
+        Node<E> stub = new Node<E>(null);
+        head = stub;
+        tail = stub;
+    }
+
+    /**
+     * Adds an element to the queue, may be called from any thread.
+     */
+    @SuppressWarnings("unchecked")
+    void offer(E value) {
+        if (value == null) throw new NullPointerException();
+        Node<E> node = new Node<E>(value);
+        Node<E> previous = HEAD.getAndSet(this, node);
+        NEXT.lazySet(previous, node);
+    }
+
+    /**
+     * Removes the oldest element, or returns null if the queue is empty.
+     */
+    E poll() {
+        Node<E> next = nextNode();
+        if (next == null) return null;
+        E value = next.value;
+        next.value = null;
+        tail = next;
+        return value;
+    }
+
+    /**
+     * Returns the oldest element without removing it, or null if the queue is empty.
+     */
+    E peek() {
+        Node<E> next = nextNode();
+        return next == null ? null : next.value;
+    }
+
+    boolean isEmpty() {
+        return tail == head;
+    }
+
+    private Node<E> nextNode() {
+        Node<E> current = tail;
+        Node<E> next = current.next;
+        if (next == null && current != head) {
+            /* A producer has swapped the head but not linked its node yet */
+            while ((next = current.next) == null) {
+                Thread.yield();
+            }
+        }
+        return next;
+    }
+}
@@ -0,0 +1,25 @@
+package za.co.percipio.mpl.connection;
+
+/**
+ * Decides what {@link Connection#queueMessage(Object)} does when the connection is above its high
+ * watermark and therefore not writable.
+ */
+public enum OverflowPolicy {
+    /**
+     * Queue the message anyway, producers are expected to check {@link Connection#isWritable()}
+     */
+    IGNORE,
+    /**
+     * Block the producer until the connection is writable again or disconnects. Producers on the
+     * handler thread are never blocked, since that thread is the one draining the connection.
+     */
+    BLOCK,
+    /**
+     * Throw a {@link za.co.percipio.mpl.exception.WriteBufferFullException}
+     */
+    FAIL,
+    /**
+     * Silently discard the message, queueMessage returns false
+     */
+    DROP
+}
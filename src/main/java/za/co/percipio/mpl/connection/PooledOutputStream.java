@@ -0,0 +1,93 @@
+package za.co.percipio.mpl.connection;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * The sink that stream encoders write a frame into. The frame is collected in fixed size chunks leased
+ * from the buffer pool, the first chunk starts with space for the frame header.
+ * <p/>
+ * Not thread safe, a connection only encodes into its sink while it holds the writing flag.
+ */
+final class PooledOutputStream extends OutputStream {
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final BufferPool            pool;
+    private final FrameFormat           format;
+    private final ArrayList<ByteBuffer> chunks;
+    private       ByteBuffer            current;
+    private       int                   size;
+
+    PooledOutputStream(BufferPool pool, FrameFormat format) {
+        this.pool = pool;
+        this.format = format;
+        this.chunks = new ArrayList<ByteBuffer>();
+    }
+
+    /**
+     * Starts a new frame, the previous frame must have been finished or aborted
+     */
+    void begin() {
+        size = 0;
+        nextChunk();
+        current.position(Framing.reservedHeaderLength(format));
+    }
+
+    @Override public void write(int b) {
+        if (!current.hasRemaining()) nextChunk();
+        current.put((byte) b);
+        size++;
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (!current.hasRemaining()) nextChunk();
+            int count = Math.min(len, current.remaining());
+            current.put(b, off, count);
+            off += count;
+            len -= count;
+            size += count;
+        }
+    }
+
+    /**
+     * Fills in the frame header and hands the chunks of the frame to the caller, who becomes
+     * responsible for releasing them
+     *
+     * @return the chunks of the frame, ready to be written
+     */
+    ByteBuffer[] finish() {
+        ByteBuffer[] frame = chunks.toArray(new ByteBuffer[chunks.size()]);
+        for (ByteBuffer b : frame) {
+            b.flip();
+        }
+        ByteBuffer first = frame[0];
+        if (format == FrameFormat.FIXED) {
+            first.putInt(0, size);
+        } else {
+            /* The header is smaller than the reserved space, the frame starts where it begins */
+            first.position(Framing.writeVarintHeader(first, Framing.MAX_VARINT_HEADER_LENGTH, size,
+                                                     Framing.KIND_MESSAGE));
+        }
+        chunks.clear();
+        current = null;
+        return frame;
+    }
+
+    /**
+     * Returns the chunks of an unfinished frame to the pool
+     */
+    void abort() {
+        for (ByteBuffer b : chunks) {
+            pool.release(b);
+        }
+        chunks.clear();
+        current = null;
+    }
+
+    private void nextChunk() {
+        current = pool.acquire(CHUNK_SIZE);
+        chunks.add(current);
+    }
+}
@@ -0,0 +1,67 @@
+package za.co.percipio.mpl.connection;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import za.co.percipio.minlog.Log;
+
+/**
+ * Runs the tasks of a single connection on a shared executor, one at a time and in the order in
+ * which they were submitted. At most one thread of the shared executor is busy with a connection at
+ * a time, and it gives the thread up after a batch of tasks so that busy connections don't starve
+ * the others.
+ */
+final class SerialExecutor implements Executor {
+    private static final int MAX_TASKS_PER_RUN = 64;
+
+    private final Executor            executor;
+    private final MpscQueue<Runnable> tasks;
+    /* Set while a drain task is submitted or running, it is the only consumer of the queue */
+    private final AtomicBoolean       scheduled;
+    private final Runnable            drainTask;
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+        this.tasks = new MpscQueue<Runnable>();
+        this.scheduled = new AtomicBoolean();
+        this.drainTask = new Runnable() {
+            @Override public void run() {
+                drain();
+            }
+        };
+    }
+
+    @Override public void execute(Runnable task) {
+        tasks.offer(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) break;
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.error("Connection task threw an exception", e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            /* Tasks offered after the last poll found the flag still set */
+            if (!tasks.isEmpty()) schedule();
+        }
+    }
+}
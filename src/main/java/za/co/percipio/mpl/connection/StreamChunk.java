@@ -0,0 +1,15 @@
+package za.co.percipio.mpl.connection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A chunk frame of a stream sent with {@link Connection#queueStream(java.io.InputStream)}, in a
+ * buffer leased from the pool of the connection.
+ */
+final class StreamChunk {
+    final ByteBuffer frame;
+
+    StreamChunk(ByteBuffer frame) {
+        this.frame = frame;
+    }
+}
@@ -0,0 +1,13 @@
+package za.co.percipio.mpl.exception;
+
+/**
+ * Fails the future of a request that the peer answered with an error. The message is the description
+ * of the error sent by the peer.
+ */
+public class RequestFailedException extends Exception {
+    private static final long serialVersionUID = 3172470935518046213L;
+
+    public RequestFailedException(String error) {
+        super(error);
+    }
+}
@@ -0,0 +1,19 @@
+package za.co.percipio.mpl.exception;
+
+/**
+ * Thrown when a message is queued on a connection that is above its high watermark and uses the
+ * {@link za.co.percipio.mpl.connection.OverflowPolicy#FAIL} policy.
+ */
+public class WriteBufferFullException extends RuntimeException {
+    private static final long serialVersionUID = -2837502918564213507L;
+    private Object message;
+
+    public WriteBufferFullException(Object message) {
+        super("Connection is not writable, outbound buffer is full.");
+        this.message = message;
+    }
+
+    public Object getMessageObject() {
+        return message;
+    }
+}
@@ -2,11 +2,20 @@ package za.co.percipio.mpl.impl;
 
 import za.co.percipio.mpl.connection.Connection;
 import za.co.percipio.mpl.listener.ConnectionListener;
+import za.co.percipio.mpl.listener.RequestListener;
+import za.co.percipio.mpl.listener.StreamListener;
+import za.co.percipio.mpl.listener.WritabilityListener;
+import za.co.percipio.mpl.rpc.IncomingRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
 
 /**
- * Allows one to intercept calls to a ConnectionListener
+ * Allows one to intercept calls to a ConnectionListener. Callbacks of the optional listener
+ * interfaces are forwarded when the wrapped listener implements them.
  */
-public class ConnectionListenerWrapper implements ConnectionListener {
+public class ConnectionListenerWrapper implements WritabilityListener, StreamListener,
+        RequestListener {
     private ConnectionListener listener;
 
     public ConnectionListenerWrapper(ConnectionListener listener) {
@@ -36,4 +45,29 @@ public class ConnectionListenerWrapper implements ConnectionListener {
     @Override public void onSerializationError(Connection connection, Throwable error) {
         listener.onSerializationError(connection, error);
     }
+
+    @Override public void onWritabilityChanged(Connection connection, boolean writable) {
+        if (listener instanceof WritabilityListener) {
+            ((WritabilityListener) listener).onWritabilityChanged(connection, writable);
+        }
+    }
+
+    @Override public void onStreamReceived(Connection connection, InputStream in) {
+        if (listener instanceof StreamListener) {
+            ((StreamListener) listener).onStreamReceived(connection, in);
+        } else {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override public void onRequestReceived(Connection connection, IncomingRequest request) {
+        if (listener instanceof RequestListener) {
+            ((RequestListener) listener).onRequestReceived(connection, request);
+        } else {
+            request.fail(new UnsupportedOperationException("Requests are not supported"));
+        }
+    }
 }
@@ -0,0 +1,18 @@
+package za.co.percipio.mpl.listener;
+
+import za.co.percipio.mpl.connection.BlockingConnection;
+
+/**
+ * The code run for a connection by a
+ * {@link za.co.percipio.mpl.connection.BlockingConnectionListener}, on a thread of its own.
+ */
+public interface ConnectionTask {
+    /**
+     * Serves a single connection, which is disconnected once this method returns. Messages that
+     * were sent but not written to the channel by then are dropped, so a task that ends the
+     * conversation should wait for the peer to acknowledge or disconnect first.
+     *
+     * @param connection receives and sends the messages of the connection
+     */
+    public void run(BlockingConnection connection) throws Exception;
+}
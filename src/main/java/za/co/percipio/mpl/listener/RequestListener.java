@@ -0,0 +1,21 @@
+package za.co.percipio.mpl.listener;
+
+import za.co.percipio.mpl.connection.Connection;
+import za.co.percipio.mpl.rpc.IncomingRequest;
+
+/**
+ * A ConnectionListener that also answers the requests sent with
+ * {@link Connection#request(Object)}. Requests sent to a listener that doesn't implement this
+ * interface are failed.
+ */
+public interface RequestListener extends ConnectionListener {
+    /**
+     * Called from the thread that delivers messages when a request arrives. The request may be
+     * answered before returning or later from another thread, a request that is never answered
+     * times out at the requester.
+     *
+     * @param connection the connection the request was received on
+     * @param request    the body of the request and the means to answer it
+     */
+    public void onRequestReceived(Connection connection, IncomingRequest request);
+}
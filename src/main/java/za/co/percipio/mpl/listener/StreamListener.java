@@ -0,0 +1,24 @@
+package za.co.percipio.mpl.listener;
+
+import za.co.percipio.mpl.connection.Connection;
+
+import java.io.InputStream;
+
+/**
+ * A ConnectionListener that also receives the byte streams sent with
+ * {@link Connection#queueStream(InputStream)}. Streams sent to a listener that doesn't implement
+ * this interface are discarded.
+ */
+public interface StreamListener extends ConnectionListener {
+    /**
+     * Called from a stream thread, not the handler thread, when the first chunk of a stream arrives.
+     * The stream yields the chunks as they are received and blocks while waiting for more. Reading
+     * from the connection is paused while too many chunks are waiting, so the stream must be read
+     * or closed. Use {@link java.nio.channels.Channels#newChannel(InputStream)} to read it as a
+     * channel.
+     *
+     * @param connection the connection the stream was received on
+     * @param in         the contents of the stream, ends when the sender's stream ended
+     */
+    public void onStreamReceived(Connection connection, InputStream in);
+}
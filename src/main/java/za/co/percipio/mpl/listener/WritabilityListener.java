@@ -0,0 +1,18 @@
+package za.co.percipio.mpl.listener;
+
+import za.co.percipio.mpl.connection.Connection;
+
+/**
+ * A ConnectionListener that is also told when a connection crosses its outbound watermarks.
+ */
+public interface WritabilityListener extends ConnectionListener {
+    /**
+     * Called from the handler thread when the writability of the connection changes. A connection
+     * becomes unwritable when its queued messages or pending bytes exceed the high watermark and
+     * writable again once both have dropped to the low watermark.
+     *
+     * @param connection the connection whose writability changed
+     * @param writable   the new value of {@link Connection#isWritable()}
+     */
+    public void onWritabilityChanged(Connection connection, boolean writable);
+}
@@ -0,0 +1,56 @@
+package za.co.percipio.mpl.rpc;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import za.co.percipio.mpl.connection.Connection;
+
+/**
+ * A request received from the peer, handed to a {@link za.co.percipio.mpl.listener.RequestListener}.
+ * It may be answered from any thread, at any time, but only once; later answers are ignored.
+ */
+public final class IncomingRequest {
+    private final Connection    connection;
+    private final int           id;
+    private final Object        body;
+    private final AtomicBoolean answered;
+
+    public IncomingRequest(Connection connection, int id, Object body) {
+        this.connection = connection;
+        this.id = id;
+        this.body = body;
+        this.answered = new AtomicBoolean();
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public Object getBody() {
+        return body;
+    }
+
+    public boolean isAnswered() {
+        return answered.get();
+    }
+
+    /**
+     * Sends the response, which completes the future of the requester
+     *
+     * @return false if the request was already answered or the response was dropped
+     */
+    public boolean respond(Object response) {
+        if (!answered.compareAndSet(false, true)) return false;
+        return connection.queueMessage(new RpcResponse(id, response, null));
+    }
+
+    /**
+     * Fails the request, the future of the requester fails with a
+     * {@link za.co.percipio.mpl.exception.RequestFailedException} that holds the description of the
+     * error
+     *
+     * @return false if the request was already answered or the response was dropped
+     */
+    public boolean fail(Throwable error) {
+        if (!answered.compareAndSet(false, true)) return false;
+        return connection.queueMessage(new RpcResponse(id, null, String.valueOf(error)));
+    }
+}
@@ -0,0 +1,153 @@
+package za.co.percipio.mpl.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import za.co.percipio.minlog.Log;
+
+/**
+ * The result of a request. Besides waiting for it, listeners can be added that are called once the
+ * future completes, on the thread that completes it.
+ * <p/>
+ * A future completes once, the first of {@link #complete}, {@link #fail} and {@link #cancel} wins.
+ */
+public class ResponseFuture<R> implements Future<R> {
+    private R         response;
+    private Throwable failure;
+    private boolean   done;
+
+    private List<ResponseListener<? super R>> listeners;
+
+    /**
+     * Completes the future with the response
+     *
+     * @return false if the future was already complete
+     */
+    public boolean complete(R response) {
+        List<ResponseListener<? super R>> toNotify;
+        synchronized (this) {
+            if (done) return false;
+            this.response = response;
+            done = true;
+            toNotify = takeListeners();
+        }
+        if (toNotify != null) {
+            for (ResponseListener<? super R> l : toNotify) {
+                notifyListener(l);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fails the future
+     *
+     * @return false if the future was already complete
+     */
+    public boolean fail(Throwable error) {
+        if (error == null) throw new NullPointerException();
+        List<ResponseListener<? super R>> toNotify;
+        synchronized (this) {
+            if (done) return false;
+            failure = error;
+            done = true;
+            toNotify = takeListeners();
+        }
+        if (toNotify != null) {
+            for (ResponseListener<? super R> l : toNotify) {
+                notifyListener(l);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fails the future with a CancellationException. A response that arrives later is dropped.
+     */
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        return fail(new CancellationException("Request cancelled"));
+    }
+
+    @Override public synchronized boolean isCancelled() {
+        return failure instanceof CancellationException;
+    }
+
+    @Override public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the error the future failed with, or null if it is not done or succeeded
+     */
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Adds a listener, which is called right away if the future is already done
+     */
+    public void addListener(ResponseListener<? super R> listener) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) listeners = new ArrayList<ResponseListener<? super R>>(2);
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    @Override public synchronized R get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override public synchronized R get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private R result() throws ExecutionException {
+        if (failure instanceof CancellationException) throw (CancellationException) failure;
+        if (failure != null) throw new ExecutionException(failure);
+        return response;
+    }
+
+    /* Called while holding the lock */
+    private List<ResponseListener<? super R>> takeListeners() {
+        notifyAll();
+        List<ResponseListener<? super R>> taken = listeners;
+        listeners = null;
+        return taken;
+    }
+
+    private void notifyListener(ResponseListener<? super R> listener) {
+        R r;
+        Throwable t;
+        synchronized (this) {
+            r = response;
+            t = failure;
+        }
+        try {
+            if (t == null) {
+                listener.onResponse(r);
+            } else {
+                listener.onFailure(t);
+            }
+        } catch (Exception e) {
+            Log.error("Client code threw an exception", e);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package za.co.percipio.mpl.rpc;
+
+/**
+ * Told when a {@link ResponseFuture} completes.
+ */
+public interface ResponseListener<R> {
+    /**
+     * Called with the response to the request
+     */
+    public void onResponse(R response);
+
+    /**
+     * Called when the request failed, timed out, was cancelled or its connection was lost
+     */
+    public void onFailure(Throwable error);
+}
@@ -0,0 +1,51 @@
+package za.co.percipio.mpl.rpc;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * The envelope a request is sent in by {@link za.co.percipio.mpl.connection.Connection#request}.
+ * Externalizable, so that Java serialization writes the correlation ID and the body without field
+ * descriptors.
+ */
+public final class RpcRequest implements Externalizable {
+    private static final long serialVersionUID = 4620914470932153091L;
+
+    private int    id;
+    private Object body;
+
+    /**
+     * Used by Java serialization
+     */
+    public RpcRequest() {
+    }
+
+    public RpcRequest(int id, Object body) {
+        this.id = id;
+        this.body = body;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Object getBody() {
+        return body;
+    }
+
+    @Override public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(id);
+        out.writeObject(body);
+    }
+
+    @Override public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        id = in.readInt();
+        body = in.readObject();
+    }
+
+    @Override public String toString() {
+        return "RpcRequest{id=" + id + ", body=" + body + "}";
+    }
+}
@@ -0,0 +1,87 @@
+package za.co.percipio.mpl.rpc;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The envelope the reply to an {@link RpcRequest} is sent in. A failed request carries the
+ * description of the error instead of a body, so that exceptions that can't be serialized can still
+ * be reported.
+ */
+public final class RpcResponse implements Externalizable {
+    private static final long serialVersionUID = -5190354386212869417L;
+
+    /* Longer error descriptions are cut off, so that a response can't claim an arbitrary size */
+    public static final int MAX_ERROR_LENGTH = 1024 * 1024;
+
+    private int    id;
+    private Object body;
+    private String error;
+
+    /**
+     * Used by Java serialization
+     */
+    public RpcResponse() {
+    }
+
+    public RpcResponse(int id, Object body, String error) {
+        this.id = id;
+        this.body = body;
+        this.error = error;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Object getBody() {
+        return body;
+    }
+
+    /**
+     * @return the description of the error the request failed with, or null if it succeeded
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(id);
+        if (error == null) {
+            out.writeBoolean(true);
+            out.writeObject(body);
+        } else {
+            /* writeUTF is limited to 64KB, which a message with a stack trace can exceed */
+            byte[] bytes = error.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_ERROR_LENGTH) bytes = Arrays.copyOf(bytes, MAX_ERROR_LENGTH);
+            out.writeBoolean(false);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    @Override public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        id = in.readInt();
+        if (in.readBoolean()) {
+            body = in.readObject();
+        } else {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_ERROR_LENGTH) {
+                throw new StreamCorruptedException("Invalid error length: " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            error = new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Override public String toString() {
+        return error == null ? "RpcResponse{id=" + id + ", body=" + body + "}"
+                : "RpcResponse{id=" + id + ", error=" + error + "}";
+    }
+}
@@ -0,0 +1,204 @@
+package za.co.percipio.mpl;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import za.co.percipio.mpl.connection.Connection;
+import za.co.percipio.mpl.connection.ConnectionFactory;
+import za.co.percipio.mpl.impl.ClientListener;
+import za.co.percipio.mpl.impl.ServerListener;
+import za.co.percipio.mpl.listener.RequestListener;
+import za.co.percipio.mpl.rpc.IncomingRequest;
+import za.co.percipio.mpl.rpc.ResponseFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClientPoolTest {
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    /**
+     * Never answers requests, so that they stay pending on the connection they were sent on
+     */
+    private static class SilentServer extends ServerListener implements RequestListener {
+        final CountDownLatch stopped = new CountDownLatch(1);
+
+        @Override public void onRequestReceived(Connection connection, IncomingRequest request) {
+        }
+
+        @Override public void onServerStop(MPLServer server) {
+            stopped.countDown();
+        }
+    }
+
+    private       int                     port;
+    private       MPLServer               server;
+    private       SilentServer            serverListener;
+    private       ClientPool              pool;
+    private final List<ResponseFuture<?>> requests = new ArrayList<ResponseFuture<?>>();
+
+    @Before
+    public void setUp() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+        startServer();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (ResponseFuture<?> request : requests) {
+            request.cancel(false);
+        }
+        if (pool != null) pool.close();
+        stopServer();
+    }
+
+    private void startServer() throws IOException {
+        serverListener = new SilentServer();
+        server = new MPLServer("localhost", port, serverListener, serverListener,
+                               ConnectionFactory.JAVA_CONNECTION_FACTORY, 1);
+        server.connectSynchronous();
+    }
+
+    private void stopServer() throws InterruptedException {
+        if (server == null) return;
+        server.disconnect();
+        assertTrue(serverListener.stopped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        server = null;
+    }
+
+    private ClientPool startPool(int size) throws InterruptedException {
+        return startPool(size, ConnectionFactory.JAVA_CONNECTION_FACTORY);
+    }
+
+    private ClientPool startPool(int size, ConnectionFactory factory) throws InterruptedException {
+        ClientPool pool = new ClientPool("localhost", port, size, new ClientListener(), factory, null);
+        pool.setHealthCheck(null, 50, TimeUnit.MILLISECONDS);
+        pool.start();
+        awaitConnected(pool, size);
+        return pool;
+    }
+
+    private static void awaitConnected(ClientPool pool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (pool.getConnectedCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, pool.getConnectedCount());
+    }
+
+    private void sendPendingRequest(Connection c) {
+        requests.add(c.request("ping", 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void acquiresTheLeastLoadedConnection() throws Exception {
+        pool = startPool(3);
+        Connection busy = pool.acquire();
+        sendPendingRequest(busy);
+        sendPendingRequest(busy);
+        for (int i = 0; i < 10; i++) {
+            assertNotSame(busy, pool.acquire());
+        }
+
+        /* The other two get one request each, leaving the first with the most */
+        Connection second = pool.acquire();
+        sendPendingRequest(second);
+        Connection third = pool.acquire();
+        assertNotSame(busy, third);
+        assertNotSame(second, third);
+        for (int i = 0; i < 10; i++) {
+            assertSame(third, pool.acquire());
+        }
+        sendPendingRequest(third);
+        sendPendingRequest(third);
+        sendPendingRequest(third);
+        for (int i = 0; i < 10; i++) {
+            assertSame(second, pool.acquire());
+        }
+    }
+
+    @Test
+    public void idleConnectionsTakeTurns() throws Exception {
+        pool = startPool(2);
+        Connection first = pool.acquire();
+        Connection second = pool.acquire();
+        assertNotSame(first, second);
+        assertSame(first, pool.acquire());
+    }
+
+    @Test
+    public void slowRequestsDoNotReplaceTheirConnection() throws Exception {
+        pool = startPool(1);
+        Connection c = pool.acquire();
+        sendPendingRequest(c);
+        Thread.sleep(500);
+        assertEquals(0, pool.getReplacements());
+        assertTrue(c.checkIsConnected());
+        assertFalse(requests.get(0).isDone());
+    }
+
+    @Test
+    public void replacesConnectionsThatDoNotAnswerTheProbe() throws Exception {
+        pool = startPool(1);
+        Connection c = pool.acquire();
+        pool.setHealthCheck("ping", 50, TimeUnit.MILLISECONDS);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (pool.getReplacements() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(pool.getReplacements() > 0);
+        assertFalse(c.checkIsConnected());
+    }
+
+    @Test
+    public void probeDoesNotBlockTheTimer() throws Exception {
+        ConnectionFactory factory = new ConnectionFactory(
+                ConnectionFactory.JAVA_CONNECTION_FACTORY.getCodec());
+        factory.setMaxRequestsInFlight(1);
+        pool = startPool(1, factory);
+        sendPendingRequest(pool.acquire());
+        pool.setHealthCheck("ping", 50, TimeUnit.MILLISECONDS);
+        Thread.sleep(200);
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        ConnectionFactory.getTimer().execute(new Runnable() {
+            @Override public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void replacesConnectionsLostWhenTheServerStops() throws Exception {
+        pool = startPool(3);
+        assertEquals(0, pool.getReplacements());
+
+        stopServer();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ((pool.getConnectedCount() > 0 || pool.getReplacements() < 3)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.getConnectedCount());
+        long replaced = pool.getReplacements();
+        assertTrue("replacements " + replaced, replaced >= 3);
+
+        startServer();
+        awaitConnected(pool, 3);
+        assertTrue(pool.getReplacements() >= replaced);
+        Connection c = pool.acquire();
+        assertTrue(c.checkIsConnected());
+    }
+}
@@ -0,0 +1,251 @@
+package za.co.percipio.mpl;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import za.co.percipio.mpl.connection.Connection;
+import za.co.percipio.mpl.connection.ConnectionFactory;
+import za.co.percipio.mpl.connection.ConnectionHandler;
+import za.co.percipio.mpl.connection.EventLoopGroup;
+import za.co.percipio.mpl.impl.ClientListener;
+import za.co.percipio.mpl.impl.ServerListener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MPLClientTest {
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    private static class CollectingServer extends ServerListener {
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+        final CountDownLatch        stopped  = new CountDownLatch(1);
+
+        @Override public void onMessageReceived(Connection connection, Object message) {
+            received.add(message);
+        }
+
+        @Override public void onServerStop(MPLServer server) {
+            stopped.countDown();
+        }
+    }
+
+    private static class EventListener extends ClientListener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+        @Override public void onConnect(Connection connection) {
+            events.add("connect");
+        }
+
+        @Override public void onDisconnect(Connection connection) {
+            events.add("disconnect");
+        }
+
+        @Override public void onConnectionError(Connection connection, Throwable error) {
+            events.add("error");
+        }
+    }
+
+    private       int              port;
+    private       MPLServer        server;
+    private       CollectingServer serverListener;
+    private       EventLoopGroup   group;
+    private final List<MPLClient>  clients = new ArrayList<MPLClient>();
+
+    @Before
+    public void setUp() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (MPLClient client : clients) {
+            client.disconnect();
+        }
+        if (group != null) group.shutdown();
+        stopServer();
+    }
+
+    private void startServer() throws IOException {
+        serverListener = new CollectingServer();
+        server = new MPLServer("localhost", port, serverListener, serverListener,
+                               ConnectionFactory.JAVA_CONNECTION_FACTORY, 1);
+        server.connectSynchronous();
+    }
+
+    private void stopServer() throws InterruptedException {
+        if (server == null) return;
+        server.disconnect();
+        assertTrue(serverListener.stopped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        server = null;
+    }
+
+    private MPLClient newClient(EventListener listener) {
+        MPLClient client = new MPLClient("localhost", port, listener,
+                                         ConnectionFactory.JAVA_CONNECTION_FACTORY, group);
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * Waits for the given event, skipping the ones before it such as failed reconnects
+     */
+    private static void awaitEvent(EventListener listener, String event)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        long remaining;
+        while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+            if (event.equals(listener.events.poll(remaining, TimeUnit.MILLISECONDS))) return;
+        }
+        fail("No " + event + " event");
+    }
+
+    private Object nextMessage() throws InterruptedException {
+        Object message = serverListener.received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (message == null) fail("No message received");
+        return message;
+    }
+
+    @Test
+    public void clientsShareTheHandlersOfAGroup() throws Exception {
+        startServer();
+        group = new EventLoopGroup(2);
+        List<EventListener> listeners = new ArrayList<EventListener>();
+        for (int i = 0; i < 4; i++) {
+            EventListener listener = new EventListener();
+            listeners.add(listener);
+            newClient(listener).connect();
+        }
+        for (EventListener listener : listeners) {
+            awaitEvent(listener, "connect");
+        }
+        assertEquals(4, group.getConnectionCount());
+        for (ConnectionHandler h : group.getHandlers()) {
+            assertEquals(2, h.getConnectionCount());
+        }
+
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).queueMessage(i);
+        }
+        Set<Object> received = new HashSet<Object>();
+        for (int i = 0; i < clients.size(); i++) {
+            received.add(nextMessage());
+        }
+        assertEquals(4, received.size());
+    }
+
+    @Test
+    public void failedConnectIsReported() throws Exception {
+        group = new EventLoopGroup(1);
+        EventListener listener = new EventListener();
+        MPLClient client = newClient(listener);
+        client.connect();
+        awaitEvent(listener, "error");
+        assertNull(client.getConnection());
+        assertEquals(0, group.getConnectionCount());
+    }
+
+    @Test
+    public void shutdownDisconnectsTheClientsOfTheGroup() throws Exception {
+        startServer();
+        group = new EventLoopGroup(1);
+        EventListener listener = new EventListener();
+        MPLClient client = newClient(listener);
+        client.connect();
+        awaitEvent(listener, "connect");
+
+        group.shutdown();
+        awaitEvent(listener, "disconnect");
+        /* The client gives up once the listener has been told */
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (client.isActive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(client.isActive());
+        try {
+            group.next();
+            fail("Shut down group handed out a handler");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void clientStopsWhenTheConnectionIsLostWithoutReconnecting() throws Exception {
+        startServer();
+        EventListener listener = new EventListener();
+        MPLClient client = newClient(listener);
+        client.connect();
+        awaitEvent(listener, "connect");
+
+        stopServer();
+        awaitEvent(listener, "disconnect");
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (client.isActive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(client.isActive());
+        assertFalse(client.queueMessage("dropped"));
+    }
+
+    @Test
+    public void reconnectsAndSendsBufferedMessagesInOrder() throws Exception {
+        startServer();
+        EventListener listener = new EventListener();
+        MPLClient client = newClient(listener);
+        client.setReconnecting(20, 200, TimeUnit.MILLISECONDS);
+        client.connect();
+        awaitEvent(listener, "connect");
+        client.queueMessage(0);
+        assertEquals(0, nextMessage());
+
+        stopServer();
+        awaitEvent(listener, "disconnect");
+        for (int i = 1; i <= 20; i++) {
+            assertTrue(client.queueMessage(i));
+        }
+        assertEquals(20, client.getBufferedMessageCount());
+        assertTrue(client.getBufferedByteCount() > 0);
+        assertTrue(client.isActive());
+
+        startServer();
+        awaitEvent(listener, "connect");
+        client.queueMessage(21);
+        for (int i = 1; i <= 21; i++) {
+            assertEquals(i, nextMessage());
+        }
+        assertEquals(0, client.getBufferedMessageCount());
+        assertEquals(0, client.getBufferedByteCount());
+        assertTrue(client.getReconnectAttempts() > 0);
+        assertTrue(client.getTotalOutageMillis() > 0);
+        assertEquals(0, client.getCurrentOutageMillis());
+    }
+
+    @Test
+    public void bufferLimitDropsFurtherMessages() throws Exception {
+        EventListener listener = new EventListener();
+        MPLClient client = newClient(listener);
+        client.setReconnecting(1, 1, TimeUnit.SECONDS);
+        client.setBufferLimits(3, MPLClient.DEFAULT_MAX_BUFFERED_BYTES);
+        client.connect();
+        awaitEvent(listener, "error");
+        for (int i = 0; i < 3; i++) {
+            assertTrue(client.queueMessage(i));
+        }
+        assertFalse(client.queueMessage(3));
+        assertEquals(3, client.getBufferedMessageCount());
+    }
+}
@@ -0,0 +1,297 @@
+package za.co.percipio.mpl;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import za.co.percipio.mpl.connection.Connection;
+import za.co.percipio.mpl.connection.ConnectionFactory;
+import za.co.percipio.mpl.connection.ConnectionFilter;
+import za.co.percipio.mpl.connection.ConnectionHandler;
+import za.co.percipio.mpl.connection.ConnectionRebalancer;
+import za.co.percipio.mpl.connection.HandlerSelector;
+import za.co.percipio.mpl.connection.HandlerSelectors;
+import za.co.percipio.mpl.impl.ClientListener;
+import za.co.percipio.mpl.impl.ServerListener;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MPLServerTest {
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    private static class CollectingServer extends ServerListener {
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+        final CountDownLatch        stopped  = new CountDownLatch(1);
+
+        @Override public void onMessageReceived(Connection connection, Object message) {
+            received.add(message);
+        }
+
+        @Override public void onServerStop(MPLServer server) {
+            stopped.countDown();
+        }
+    }
+
+    private static class CollectingClient extends ClientListener {
+        final BlockingQueue<Object> received  = new LinkedBlockingQueue<Object>();
+        final CountDownLatch        connected = new CountDownLatch(1);
+
+        @Override public void onConnect(Connection connection) {
+            connected.countDown();
+        }
+
+        @Override public void onMessageReceived(Connection connection, Object message) {
+            received.add(message);
+        }
+    }
+
+    private       int                    port;
+    private       MPLServer              server;
+    private       CollectingServer       serverListener;
+    private final List<MPLClient>        clients         = new ArrayList<MPLClient>();
+    private final List<CollectingClient> clientListeners = new ArrayList<CollectingClient>();
+
+    @Before
+    public void setUp() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (MPLClient client : clients) {
+            client.disconnect();
+        }
+        if (server != null) {
+            server.disconnect();
+            assertTrue(serverListener.stopped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private MPLServer createServer(int handlerCount) {
+        serverListener = new CollectingServer();
+        server = new MPLServer("localhost", port, serverListener, serverListener,
+                               ConnectionFactory.JAVA_CONNECTION_FACTORY, handlerCount);
+        return server;
+    }
+
+    private Connection connectClient() throws InterruptedException {
+        CollectingClient listener = new CollectingClient();
+        MPLClient client = new MPLClient("localhost", port, listener);
+        clients.add(client);
+        clientListeners.add(listener);
+        client.connect();
+        assertTrue(listener.connected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        return client.getConnection();
+    }
+
+    /**
+     * Waits until the server has registered the given number of connections
+     */
+    private void awaitServerConnections(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (serverConnections().size() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, serverConnections().size());
+    }
+
+    private List<Connection> serverConnections() {
+        List<Connection> connections = new ArrayList<Connection>();
+        for (ConnectionHandler h : server.getHandlers()) {
+            connections.addAll(h.getConnections());
+        }
+        return connections;
+    }
+
+    /**
+     * Waits until the handlers of the server manage the given numbers of connections
+     */
+    private void awaitConnectionCounts(int... counts) throws InterruptedException {
+        ConnectionHandler[] handlers = server.getHandlers();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!Arrays.equals(counts, connectionCounts(handlers))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertArrayEquals(counts, connectionCounts(handlers));
+    }
+
+    private static int[] connectionCounts(ConnectionHandler[] handlers) {
+        int[] counts = new int[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            counts[i] = handlers[i].getConnectionCount();
+        }
+        return counts;
+    }
+
+    /**
+     * Connects two clients, one per handler, and then drops the one of the second handler
+     */
+    private void leaveTheSecondHandlerEmpty() throws Exception {
+        connectClient();
+        connectClient();
+        awaitServerConnections(2);
+        awaitConnectionCounts(1, 1);
+        server.getHandlers()[1].getConnections().get(0).disconnect();
+        awaitConnectionCounts(1, 0);
+    }
+
+    /**
+     * Starts a server whose connections are all assigned to its first handler
+     */
+    private void startUnbalancedServer(int handlerCount) throws IOException {
+        createServer(handlerCount);
+        server.setHandlerSelector(new HandlerSelector() {
+            @Override public ConnectionHandler select(ConnectionHandler[] handlers) {
+                return handlers[0];
+            }
+        });
+        server.connectSynchronous();
+    }
+
+    private static Object next(BlockingQueue<Object> received) throws InterruptedException {
+        Object message = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (message == null) fail("No message received");
+        return message;
+    }
+
+    @Test
+    public void leastConnectionsFillsTheEmptiestHandler() throws Exception {
+        createServer(2).connectSynchronous();
+        leaveTheSecondHandlerEmpty();
+        connectClient();
+        awaitConnectionCounts(1, 1);
+    }
+
+    @Test
+    public void roundRobinIgnoresTheLoad() throws Exception {
+        createServer(2);
+        server.setHandlerSelector(HandlerSelectors.roundRobin());
+        server.connectSynchronous();
+        leaveTheSecondHandlerEmpty();
+        connectClient();
+        awaitConnectionCounts(2, 0);
+    }
+
+    @Test
+    public void rebalancerMovesConnectionsToTheEmptyHandler() throws Exception {
+        startUnbalancedServer(2);
+        List<Connection> connections = new ArrayList<Connection>();
+        for (int i = 0; i < 4; i++) {
+            connections.add(connectClient());
+        }
+        awaitServerConnections(4);
+        awaitConnectionCounts(4, 0);
+
+        ConnectionRebalancer rebalancer = new ConnectionRebalancer(server.getHandlers(), 0.25);
+        assertEquals(2.0, rebalancer.getImbalance(), 0);
+        assertEquals(2, rebalancer.rebalance());
+        awaitConnectionCounts(2, 2);
+        assertEquals(2, server.getHandlers()[0].getConnectionsMovedOut());
+        assertEquals(0, rebalancer.rebalance());
+
+        /* The moved connections still work in both directions */
+        awaitServerConnections(4);
+        for (int i = 0; i < connections.size(); i++) {
+            connections.get(i).queueMessage(i);
+        }
+        List<Object> received = new ArrayList<Object>();
+        for (int i = 0; i < connections.size(); i++) {
+            received.add(next(serverListener.received));
+        }
+        assertTrue(received.containsAll(Arrays.asList(0, 1, 2, 3)));
+        assertEquals(4, server.broadcast("moved", null));
+        for (CollectingClient listener : clientListeners) {
+            assertEquals("moved", next(listener.received));
+        }
+    }
+
+    @Test
+    public void movingConnectionsKeepsTheOrderOfMessages() throws Exception {
+        startUnbalancedServer(2);
+        final Connection c = connectClient();
+        awaitServerConnections(1);
+        final int count = 20000;
+        Thread sender = new Thread() {
+            @Override public void run() {
+                for (int i = 0; i < count; i++) {
+                    c.queueMessage(i);
+                }
+            }
+        };
+        sender.start();
+        ConnectionHandler[] handlers = server.getHandlers();
+        for (int move = 0; move < 10; move++) {
+            ConnectionHandler from = handlers[move % 2];
+            ConnectionHandler to = handlers[(move + 1) % 2];
+            awaitConnectionCounts(move % 2 == 0 ? new int[]{1, 0} : new int[]{0, 1});
+            awaitServerConnections(1);
+            from.moveConnection(from.getConnections().get(0), to);
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, next(serverListener.received));
+        }
+        sender.join();
+        assertEquals(10, handlers[0].getConnectionsMovedOut() + handlers[1].getConnectionsMovedOut());
+    }
+
+    @Test
+    public void periodicRebalancingEvensOutTheHandlers() throws Exception {
+        startUnbalancedServer(2);
+        server.setRebalancing(0.25, 50, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 6; i++) {
+            connectClient();
+        }
+        awaitConnectionCounts(3, 3);
+    }
+
+    @Test
+    public void broadcastReachesEveryConnection() throws Exception {
+        createServer(2).connectSynchronous();
+        for (int i = 0; i < 3; i++) {
+            connectClient();
+        }
+        awaitServerConnections(3);
+        assertEquals(3, server.broadcast("hello", null));
+        for (CollectingClient listener : clientListeners) {
+            assertEquals("hello", next(listener.received));
+        }
+    }
+
+    @Test
+    public void broadcastSkipsConnectionsTheFilterRejects() throws Exception {
+        createServer(2).connectSynchronous();
+        for (int i = 0; i < 3; i++) {
+            connectClient();
+        }
+        awaitServerConnections(3);
+        final Connection chosen = serverConnections().get(0);
+        assertEquals(1, server.broadcast("only", new ConnectionFilter() {
+            @Override public boolean accept(Connection connection) {
+                return connection == chosen;
+            }
+        }));
+        int receivers = 0;
+        for (CollectingClient listener : clientListeners) {
+            Object message = listener.received.poll(200, TimeUnit.MILLISECONDS);
+            if (message != null) {
+                assertEquals("only", message);
+                receivers++;
+            }
+        }
+        assertEquals(1, receivers);
+    }
+}
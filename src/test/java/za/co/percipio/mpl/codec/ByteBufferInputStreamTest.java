@@ -0,0 +1,58 @@
+package za.co.percipio.mpl.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ByteBufferInputStreamTest {
+    private static ByteBuffer buffer() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 0, 1, 2, 3, 4, 5 });
+        buffer.position(1);
+        buffer.limit(5);
+        return buffer;
+    }
+
+    @Test
+    public void readsBetweenPositionAndLimit() throws IOException {
+        ByteBuffer buffer = buffer();
+        ByteBufferInputStream in = new ByteBufferInputStream(buffer);
+        assertEquals(4, in.available());
+        assertEquals(1, in.read());
+        byte[] bytes = new byte[8];
+        assertEquals(3, in.read(bytes, 0, bytes.length));
+        assertArrayEquals(new byte[] { 2, 3, 4 }, Arrays.copyOf(bytes, 3));
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(bytes, 0, bytes.length));
+        assertEquals(1, buffer.position());
+    }
+
+    @Test
+    public void remainingBufferStartsAtTheUnreadBytes() throws IOException {
+        ByteBufferInputStream in = new ByteBufferInputStream(buffer());
+        assertEquals(2, in.skip(2));
+        ByteBuffer remaining = in.remainingBuffer();
+        assertEquals(2, remaining.remaining());
+        assertEquals(3, remaining.get());
+    }
+
+    @Test
+    public void resetReturnsToTheMark() throws IOException {
+        ByteBufferInputStream in = new ByteBufferInputStream(buffer());
+        in.read();
+        in.mark(0);
+        assertEquals(2, in.read());
+        in.reset();
+        assertEquals(2, in.read());
+    }
+
+    @Test(expected = IOException.class)
+    public void resetWithoutMarkThrowsIOException() throws IOException {
+        ByteBufferInputStream in = new ByteBufferInputStream(buffer());
+        in.read();
+        in.reset();
+    }
+}
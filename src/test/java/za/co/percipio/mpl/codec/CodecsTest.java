@@ -0,0 +1,113 @@
+package za.co.percipio.mpl.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class CodecsTest {
+    /**
+     * Decodes the way decoders written before the stream interfaces do, from the start of the array
+     */
+    private static final class ArrayDecoder implements Decoder {
+        ByteBuffer received;
+
+        @Override public Object decode(ByteBuffer buffer) {
+            received = buffer;
+            return new String(buffer.array(), 0, buffer.remaining());
+        }
+    }
+
+    /**
+     * @return a receive buffer holding "head" and then "frame", positioned at the frame
+     */
+    private static ByteBuffer receiveBuffer() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap("headframe".getBytes("US-ASCII"));
+        buffer.position(4);
+        return buffer;
+    }
+
+    @Test
+    public void legacyDecodersGetACopyOfTheFrame() throws Exception {
+        ArrayDecoder decoder = new ArrayDecoder();
+        ByteBuffer buffer = receiveBuffer();
+        Object decoded = Codecs.asStreamDecoder(decoder)
+                               .decode(new ByteBufferInputStream(buffer), buffer.remaining());
+        assertEquals("frame", decoded);
+        assertEquals(0, decoder.received.arrayOffset());
+        assertNotSame(buffer.array(), decoder.received.array());
+    }
+
+    @Test
+    public void zeroCopyDecodersGetAViewOfTheReceiveBuffer() throws Exception {
+        ArrayDecoder decoder = new ArrayDecoder();
+        ByteBuffer buffer = receiveBuffer();
+        Codecs.asStreamDecoder(decoder, true)
+              .decode(new ByteBufferInputStream(buffer), buffer.remaining());
+        assertSame(buffer.array(), decoder.received.array());
+        assertEquals(5, decoder.received.remaining());
+    }
+
+    @Test
+    public void codecsCopyUnlessCreatedForZeroCopy() throws Exception {
+        ArrayDecoder decoder = new ArrayDecoder();
+        ByteBuffer buffer = receiveBuffer();
+        Object decoded = new Codec(null, decoder).streamDecoder
+                .decode(new ByteBufferInputStream(buffer), buffer.remaining());
+        assertEquals("frame", decoded);
+    }
+
+    @Test
+    public void legacyEncodersAreAdaptedWithoutTheirLengthPrefix() throws Exception {
+        /* The length prefix is split over two buffers */
+        final ByteBuffer[] frame = {
+                ByteBuffer.wrap(new byte[] { 0, 0 }),
+                ByteBuffer.wrap(new byte[] { 0, 3, 'a', 'b' }),
+                ByteBuffer.wrap(new byte[] { 'c' }).asReadOnlyBuffer()
+        };
+        Encoder encoder = new Encoder() {
+            @Override public ByteBuffer[] encode(Object toWrite) {
+                return frame;
+            }
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Codecs.asStreamEncoder(encoder).encode("abc", out);
+        assertEquals("abc", out.toString("US-ASCII"));
+        assertEquals(0, frame[0].position());
+        assertSame(encoder, Codecs.asEncoder(Codecs.asStreamEncoder(encoder)));
+    }
+
+    @Test
+    public void streamEncodersAreAdaptedWithALengthPrefix() throws Exception {
+        StreamEncoder encoder = new StreamEncoder() {
+            @Override public void encode(Object toWrite, OutputStream out) throws IOException {
+                out.write(((String) toWrite).getBytes("US-ASCII"));
+            }
+        };
+        ByteBuffer[] frame = Codecs.asEncoder(encoder).encode("abc");
+        assertEquals(1, frame.length);
+        assertEquals(7, frame[0].remaining());
+        assertEquals(3, frame[0].getInt());
+        assertEquals('a', frame[0].get());
+    }
+
+    @Test
+    public void streamDecodersAreAdaptedToReadTheBuffer() throws Exception {
+        StreamDecoder decoder = new StreamDecoder() {
+            @Override public Object decode(InputStream in, int length) throws IOException {
+                byte[] bytes = new byte[length];
+                assertEquals(length, in.read(bytes));
+                return new String(bytes, "US-ASCII");
+            }
+        };
+        ByteBuffer buffer = receiveBuffer();
+        assertEquals("frame", Codecs.asDecoder(decoder).decode(buffer));
+        assertEquals(4, buffer.position());
+    }
+}
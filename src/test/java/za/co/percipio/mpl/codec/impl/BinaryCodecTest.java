@@ -0,0 +1,222 @@
+package za.co.percipio.mpl.codec.impl;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import za.co.percipio.mpl.rpc.RpcRequest;
+import za.co.percipio.mpl.rpc.RpcResponse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryCodecTest {
+    enum Kind { A, B }
+
+    static class Base implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        long id = -5;
+    }
+
+    static class Position implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        double x = 1.5;
+        double y = -2;
+    }
+
+    static class Status extends Base {
+        private static final long serialVersionUID = 1L;
+
+        int           seq      = 42;
+        String        name     = "node-\u00e9";
+        boolean       up       = true;
+        Kind          kind     = Kind.B;
+        Integer       boxed    = null;
+        int[]         values   = { 1, -2, 300 };
+        String[]      tags     = { "a", null };
+        Position      position = new Position();
+        Object        any      = new Position();
+        Position[]    history  = { new Position(), null };
+        char          c        = 'z';
+        float         f        = 1.25f;
+        byte[]        raw      = { 1, 2, 3 };
+        transient int skipped  = 7;
+    }
+
+    static class Node {
+        Node next;
+    }
+
+    static class Unregistered {
+    }
+
+    private TypeRegistry registry;
+    private BinaryEncode encoder;
+    private BinaryDecode decoder;
+
+    @Before
+    public void setUp() {
+        registry = new TypeRegistry();
+        registry.register(1, Status.class);
+        registry.register(2, Position.class);
+        registry.register(3, Node.class);
+        encoder = new BinaryEncode(registry);
+        decoder = new BinaryDecode(registry);
+    }
+
+    /**
+     * @return the frame without its 4 byte length prefix
+     */
+    private static ByteBuffer payload(ByteBuffer frame) {
+        assertEquals(frame.remaining() - 4, frame.getInt(frame.position()));
+        frame.position(frame.position() + 4);
+        return frame.slice();
+    }
+
+    private Object roundTrip(Object message) throws IOException {
+        return decoder.decode(payload(encoder.encode(message)[0]));
+    }
+
+    @Test
+    public void roundTripsEveryFieldType() throws IOException {
+        Status status = new Status();
+        status.skipped = 8;
+        Status decoded = (Status) roundTrip(status);
+        assertEquals(-5, decoded.id);
+        assertEquals(42, decoded.seq);
+        assertEquals("node-\u00e9", decoded.name);
+        assertTrue(decoded.up);
+        assertEquals(Kind.B, decoded.kind);
+        assertNull(decoded.boxed);
+        assertArrayEquals(new int[] { 1, -2, 300 }, decoded.values);
+        assertArrayEquals(new String[] { "a", null }, decoded.tags);
+        assertEquals(1.5, decoded.position.x, 0);
+        assertEquals(-2, ((Position) decoded.any).y, 0);
+        assertEquals(2, decoded.history.length);
+        assertNull(decoded.history[1]);
+        assertEquals('z', decoded.c);
+        assertEquals(1.25f, decoded.f, 0);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, decoded.raw);
+        assertEquals(7, decoded.skipped);
+    }
+
+    @Test
+    public void roundTripsNullFields() throws IOException {
+        Status status = new Status();
+        status.name = null;
+        status.kind = null;
+        status.values = null;
+        status.position = null;
+        status.any = null;
+        status.raw = null;
+        Status decoded = (Status) roundTrip(status);
+        assertNull(decoded.name);
+        assertNull(decoded.kind);
+        assertNull(decoded.values);
+        assertNull(decoded.position);
+        assertNull(decoded.any);
+        assertNull(decoded.raw);
+    }
+
+    @Test
+    public void smallerThanJavaSerialization() throws IOException {
+        int binary = encoder.encode(new Status())[0].remaining();
+        int java = new JavaEncode().encode(new Status())[0].remaining();
+        assertTrue("binary " + binary + " java " + java, binary * 4 < java);
+    }
+
+    @Test
+    public void roundTripsRpcEnvelopes() throws IOException {
+        registry.registerRpcTypes(4, 5);
+        RpcRequest request = (RpcRequest) roundTrip(new RpcRequest(9, new Position()));
+        assertEquals(9, request.getId());
+        assertEquals(1.5, ((Position) request.getBody()).x, 0);
+        RpcResponse response = (RpcResponse) roundTrip(new RpcResponse(9, null, "failed"));
+        assertEquals(9, response.getId());
+        assertEquals("failed", response.getError());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNullMessage() throws IOException {
+        encoder.encode(null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnregisteredType() throws IOException {
+        encoder.encode(new Unregistered());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownTypeId() throws IOException {
+        decoder.decode(ByteBuffer.wrap(new byte[] { 100 }));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTrailingBytes() throws IOException {
+        ByteBuffer message = payload(encoder.encode(new Position())[0]);
+        ByteBuffer padded = ByteBuffer.allocate(message.remaining() + 1);
+        padded.put(message);
+        padded.put((byte) 0);
+        padded.flip();
+        decoder.decode(padded);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedMessage() throws IOException {
+        ByteBuffer message = payload(encoder.encode(new Status())[0]);
+        message.limit(message.limit() - 1);
+        decoder.decode(message);
+    }
+
+    @Test
+    public void nestsUpToTheMaximumDepth() throws IOException {
+        Node head = new Node();
+        for (int i = 1; i < TypeRegistry.MAX_DEPTH; i++) {
+            Node node = new Node();
+            node.next = head;
+            head = node;
+        }
+        Node decoded = (Node) roundTrip(head);
+        int depth = 0;
+        for (Node n = decoded; n != null; n = n.next) {
+            depth++;
+        }
+        assertEquals(TypeRegistry.MAX_DEPTH, depth);
+
+        Node deeper = new Node();
+        deeper.next = head;
+        try {
+            encoder.encode(deeper);
+            fail("Encoded a graph nested deeper than the maximum");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCycles() throws IOException {
+        Node node = new Node();
+        node.next = node;
+        encoder.encode(node);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateId() {
+        registry.register(1, Unregistered.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateType() {
+        registry.register(10, Position.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveId() {
+        registry.register(0, Unregistered.class);
+    }
+}
@@ -0,0 +1,170 @@
+package za.co.percipio.mpl.codec.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.junit.Before;
+import org.junit.Test;
+import za.co.percipio.mpl.codec.ByteBufferInputStream;
+import za.co.percipio.mpl.codec.Codec;
+import za.co.percipio.mpl.codec.Decoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeflateCodecTest {
+    private static final int THRESHOLD = 1024;
+
+    private DeflateCodec deflate;
+    private Codec        codec;
+
+    @Before
+    public void setUp() {
+        deflate = new DeflateCodec(THRESHOLD, Deflater.DEFAULT_COMPRESSION,
+                                   DeflateCodec.DEFAULT_MAX_INFLATED_SIZE);
+        codec = deflate.wrap(new Codec(new JavaEncode(), new JavaDecode()));
+    }
+
+    private byte[] encode(Object message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.streamEncoder.encode(message, out);
+        return out.toByteArray();
+    }
+
+    private Object decode(byte[] payload) throws Exception {
+        return codec.streamDecoder.decode(new ByteArrayInputStream(payload), payload.length);
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(1).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void smallPayloadIsPlain() throws Exception {
+        byte[] message = { 1, 2, 3 };
+        byte[] payload = encode(message);
+        assertEquals(DeflateEncode.PLAIN, payload[0]);
+        assertArrayEquals(message, (byte[]) decode(payload));
+        assertEquals(1, deflate.getMetrics().getFramesUncompressed());
+        assertEquals(0, deflate.getMetrics().getFramesCompressed());
+    }
+
+    @Test
+    public void largePayloadIsDeflated() throws Exception {
+        byte[] message = new byte[100000];
+        message[500] = 42;
+        byte[] payload = encode(message);
+        assertEquals(DeflateEncode.DEFLATED, payload[0]);
+        assertTrue(payload.length < 1000);
+        assertArrayEquals(message, (byte[]) decode(payload));
+        assertEquals(1, deflate.getMetrics().getFramesCompressed());
+        assertEquals(1, deflate.getMetrics().getFramesInflated());
+        assertTrue(deflate.getMetrics().getCompressionRatio() < 0.01);
+    }
+
+    @Test
+    public void incompressiblePayloadIsPlain() throws Exception {
+        byte[] message = random(THRESHOLD * 4);
+        byte[] payload = encode(message);
+        assertEquals(DeflateEncode.PLAIN, payload[0]);
+        assertArrayEquals(message, (byte[]) decode(payload));
+        assertEquals(1, deflate.getMetrics().getFramesUncompressed());
+    }
+
+    @Test
+    public void decodesFromHeapAndDirectBuffers() throws Exception {
+        byte[] message = new byte[50000];
+        byte[] payload = encode(message);
+        assertEquals(DeflateEncode.DEFLATED, payload[0]);
+
+        ByteBuffer padded = ByteBuffer.allocate(payload.length + 5);
+        padded.position(5);
+        ByteBuffer heap = padded.slice();
+        heap.put(payload).flip();
+        assertArrayEquals(message, (byte[]) codec.streamDecoder.decode(
+                new ByteBufferInputStream(heap), payload.length));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+        direct.put(payload).flip();
+        assertArrayEquals(message, (byte[]) codec.streamDecoder.decode(
+                new ByteBufferInputStream(direct), payload.length));
+    }
+
+    @Test
+    public void reusableAfterLargePayloads() throws Exception {
+        /* Large enough that the per-thread state is dropped after every message */
+        byte[] large = new byte[3 * 1024 * 1024];
+        for (int i = 0; i < 3; i++) {
+            large[7] = (byte) i;
+            byte[] payload = encode(large);
+            assertEquals(DeflateEncode.DEFLATED, payload[0]);
+            assertEquals(i, ((byte[]) codec.streamDecoder.decode(
+                    new ByteArrayInputStream(payload), payload.length))[7]);
+        }
+        byte[] small = new byte[THRESHOLD * 2];
+        assertArrayEquals(small, (byte[]) decode(encode(small)));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsUnknownFlag() throws Exception {
+        byte[] payload = encode(new byte[10]);
+        payload[0] = 7;
+        decode(payload);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsEmptyFrame() throws Exception {
+        decode(new byte[0]);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsOversizedPayload() throws Exception {
+        DeflateCodec small = new DeflateCodec(THRESHOLD, Deflater.DEFAULT_COMPRESSION, 10000);
+        Codec limited = small.wrap(new Codec(new JavaEncode(), new JavaDecode()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        limited.streamEncoder.encode(new byte[20000], out);
+        byte[] payload = out.toByteArray();
+        limited.streamDecoder.decode(new ByteArrayInputStream(payload), payload.length);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsCorruptedData() throws Exception {
+        byte[] payload = encode(new byte[50000]);
+        /* Claims a larger original size than the data inflates to */
+        payload[3]++;
+        decode(payload);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsTruncatedHeader() throws Exception {
+        decode(new byte[] { DeflateEncode.DEFLATED, 0, 0 });
+    }
+
+    @Test
+    public void legacyDecodersMayKeepTheirBuffer() throws Exception {
+        /* Returns the buffer it was given, as a decoder that decodes lazily would keep it */
+        Decoder retaining = new Decoder() {
+            @Override public Object decode(ByteBuffer buffer) {
+                return buffer;
+            }
+        };
+        codec = deflate.wrap(new Codec(new JavaEncode(), retaining));
+        byte[] first = new byte[50000];
+        byte[] second = new byte[50000];
+        second[100] = 1;
+        ByteBuffer kept = (ByteBuffer) decode(encode(first));
+        byte[] before = new byte[kept.remaining()];
+        kept.duplicate().get(before);
+        decode(encode(second));
+        byte[] after = new byte[kept.remaining()];
+        kept.duplicate().get(after);
+        assertArrayEquals(before, after);
+    }
+}
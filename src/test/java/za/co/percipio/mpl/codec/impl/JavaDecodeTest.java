@@ -0,0 +1,81 @@
+package za.co.percipio.mpl.codec.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class JavaDecodeTest {
+    private static final Object MESSAGE = Arrays.asList("hello", 42, new int[] { 1, 2, 3 });
+
+    /**
+     * @return the message without the 4 byte length prefix
+     */
+    private static byte[] encodedMessage() throws Exception {
+        ByteBuffer frame = new JavaEncode().encode(MESSAGE)[0];
+        assertEquals(frame.remaining() - 4, frame.getInt(frame.position()));
+        frame.position(frame.position() + 4);
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    private static void assertDecodes(ByteBuffer buffer) throws Exception {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        @SuppressWarnings("unchecked")
+        List<Object> decoded = (List<Object>) new JavaDecode().decode(buffer);
+        assertEquals("hello", decoded.get(0));
+        assertEquals(42, decoded.get(1));
+        assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) decoded.get(2));
+        assertEquals(position, buffer.position());
+        assertEquals(limit, buffer.limit());
+    }
+
+    @Test
+    public void decodesHeapBuffer() throws Exception {
+        assertDecodes(ByteBuffer.wrap(encodedMessage()));
+    }
+
+    @Test
+    public void decodesBetweenPositionAndLimit() throws Exception {
+        byte[] message = encodedMessage();
+        byte[] padded = new byte[message.length + 20];
+        Arrays.fill(padded, (byte) 0x7F);
+        System.arraycopy(message, 0, padded, 7, message.length);
+        ByteBuffer buffer = ByteBuffer.wrap(padded);
+        buffer.position(7);
+        buffer.limit(7 + message.length);
+        assertDecodes(buffer);
+    }
+
+    @Test
+    public void decodesSlicedBuffer() throws Exception {
+        byte[] message = encodedMessage();
+        ByteBuffer buffer = ByteBuffer.allocate(message.length + 11);
+        buffer.position(11);
+        ByteBuffer slice = buffer.slice();
+        slice.put(message);
+        slice.flip();
+        assertEquals(11, slice.arrayOffset());
+        assertDecodes(slice);
+    }
+
+    @Test
+    public void decodesDirectBuffer() throws Exception {
+        byte[] message = encodedMessage();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(message.length + 3);
+        buffer.position(3);
+        buffer.put(message);
+        buffer.position(3);
+        assertDecodes(buffer);
+    }
+
+    @Test
+    public void decodesReadOnlyBuffer() throws Exception {
+        assertDecodes(ByteBuffer.wrap(encodedMessage()).asReadOnlyBuffer());
+    }
+}
@@ -0,0 +1,180 @@
+package za.co.percipio.mpl.connection;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import za.co.percipio.mpl.MPLClient;
+import za.co.percipio.mpl.MPLServer;
+import za.co.percipio.mpl.exception.ConnectionException;
+import za.co.percipio.mpl.impl.ClientListener;
+import za.co.percipio.mpl.listener.ConnectionTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlockingConnectionTest {
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    private static class StoppableListener extends BlockingConnectionListener {
+        final CountDownLatch stopped = new CountDownLatch(1);
+
+        StoppableListener(ConnectionTask task, int inboxCapacity) {
+            super(task, Executors.defaultThreadFactory(), inboxCapacity);
+        }
+
+        @Override public void onServerStop(MPLServer server) {
+            stopped.countDown();
+        }
+    }
+
+    private static class CollectingClient extends ClientListener {
+        final BlockingQueue<Object> received     = new LinkedBlockingQueue<Object>();
+        final CountDownLatch        connected    = new CountDownLatch(1);
+        final CountDownLatch        disconnected = new CountDownLatch(1);
+
+        @Override public void onConnect(Connection connection) {
+            connected.countDown();
+        }
+
+        @Override public void onMessageReceived(Connection connection, Object message) {
+            received.add(message);
+        }
+
+        @Override public void onDisconnect(Connection connection) {
+            disconnected.countDown();
+        }
+    }
+
+    private int               port;
+    private MPLServer         server;
+    private StoppableListener serverListener;
+    private MPLClient         client;
+    private CollectingClient  clientListener;
+
+    @Before
+    public void setUp() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (client != null) client.disconnect();
+        if (server != null) {
+            server.disconnect();
+            assertTrue(serverListener.stopped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private void startServer(ConnectionTask task, int inboxCapacity) throws IOException {
+        serverListener = new StoppableListener(task, inboxCapacity);
+        server = new MPLServer("localhost", port, serverListener, 1);
+        server.connectSynchronous();
+    }
+
+    private Connection connectClient() throws InterruptedException {
+        clientListener = new CollectingClient();
+        client = new MPLClient("localhost", port, clientListener);
+        client.connect();
+        assertTrue(clientListener.connected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        return client.getConnection();
+    }
+
+    private Object nextMessage() throws InterruptedException {
+        Object message = clientListener.received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (message == null) fail("No message received");
+        return message;
+    }
+
+    @Test
+    public void taskEchoesMessagesInOrder() throws Exception {
+        startServer(new ConnectionTask() {
+            @Override public void run(BlockingConnection connection) throws Exception {
+                while (true) {
+                    connection.send(connection.receive());
+                }
+            }
+        }, BlockingConnectionListener.DEFAULT_INBOX_CAPACITY);
+        Connection c = connectClient();
+        for (int i = 0; i < 1000; i++) {
+            c.queueMessage(i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, nextMessage());
+        }
+    }
+
+    @Test
+    public void connectionClosesWhenTheTaskReturns() throws Exception {
+        startServer(new ConnectionTask() {
+            @Override public void run(BlockingConnection connection) throws Exception {
+                connection.receive();
+            }
+        }, BlockingConnectionListener.DEFAULT_INBOX_CAPACITY);
+        Connection c = connectClient();
+        c.queueMessage("bye");
+        assertTrue(clientListener.disconnected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void receiveFailsOnceThePeerDisconnects() throws Exception {
+        final BlockingQueue<Object> taken = new LinkedBlockingQueue<Object>();
+        startServer(new ConnectionTask() {
+            @Override public void run(BlockingConnection connection) throws Exception {
+                try {
+                    while (true) {
+                        taken.add(connection.receive());
+                    }
+                } catch (ConnectionException e) {
+                    taken.add(e);
+                }
+            }
+        }, BlockingConnectionListener.DEFAULT_INBOX_CAPACITY);
+        Connection c = connectClient();
+        c.queueMessage("last");
+        assertEquals("last", taken.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        client.disconnect();
+        assertTrue(taken.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) instanceof ConnectionException);
+    }
+
+    @Test
+    public void fullInboxPausesReading() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final BlockingQueue<BlockingConnection> serving =
+                new LinkedBlockingQueue<BlockingConnection>();
+        startServer(new ConnectionTask() {
+            @Override public void run(BlockingConnection connection) throws Exception {
+                serving.add(connection);
+                gate.await();
+                while (true) {
+                    connection.send(connection.receive());
+                }
+            }
+        }, 8);
+        Connection c = connectClient();
+        BlockingConnection blocking = serving.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            c.queueMessage(i);
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!blocking.getConnection().isReadingPaused()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(blocking.getConnection().isReadingPaused());
+
+        gate.countDown();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, nextMessage());
+        }
+    }
+}
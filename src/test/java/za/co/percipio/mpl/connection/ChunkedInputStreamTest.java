@@ -0,0 +1,164 @@
+package za.co.percipio.mpl.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ChunkedInputStreamTest {
+    private BufferPool         pool;
+    private AtomicInteger      drained;
+    private ChunkedInputStream in;
+
+    @Before
+    public void setUp() {
+        pool = new BufferPool(false);
+        drained = new AtomicInteger();
+        in = newStream();
+    }
+
+    private ChunkedInputStream newStream() {
+        return new ChunkedInputStream(pool, 1, new Runnable() {
+            @Override public void run() {
+                drained.incrementAndGet();
+            }
+        });
+    }
+
+    private ByteBuffer chunk(int... bytes) {
+        ByteBuffer b = pool.acquire(bytes.length);
+        for (int v : bytes) {
+            b.put((byte) v);
+        }
+        b.flip();
+        return b;
+    }
+
+    @Test
+    public void readsAcrossChunks() throws IOException {
+        assertEquals(1, in.add(chunk(1, 2, 3)));
+        assertEquals(2, in.add(chunk(4, 5)));
+        in.end();
+        assertEquals(5, in.available());
+
+        byte[] b = new byte[4];
+        assertEquals(3, in.read(b));
+        assertEquals(1, in.read(b, 3, 1));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, b);
+        assertEquals(5, in.read());
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(b));
+        assertEquals(0, in.read(b, 0, 0));
+    }
+
+    @Test
+    public void runsDrainedTaskAtLowWaterMark() throws IOException {
+        in.add(chunk(1));
+        in.add(chunk(2));
+        in.add(chunk(3));
+        in.end();
+        in.read();
+        assertEquals(0, drained.get());
+        in.read();
+        assertEquals(1, drained.get());
+        in.read();
+        assertEquals(-1, in.read());
+        assertEquals(1, drained.get());
+    }
+
+    @Test
+    public void reportsFailureAfterTheDataReceived() throws IOException {
+        IOException failure = new IOException("aborted");
+        in.add(chunk(1));
+        in.fail(failure);
+        assertEquals(1, in.read());
+        try {
+            in.read();
+            fail("The stream did not fail");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void failureAfterEndIsIgnored() throws IOException {
+        in.end();
+        in.fail(new IOException("aborted"));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void chunksAfterEndOrCloseAreDropped() throws IOException {
+        in.end();
+        assertEquals(0, in.add(chunk(1)));
+        assertEquals(-1, in.read());
+
+        ChunkedInputStream closed = newStream();
+        closed.close();
+        assertEquals(0, closed.add(chunk(1)));
+    }
+
+    @Test
+    public void closeRunsDrainedTaskIfChunksWereWaiting() {
+        in.add(chunk(1));
+        in.close();
+        assertEquals(1, drained.get());
+        in.close();
+        assertEquals(1, drained.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void readAfterCloseFails() throws IOException {
+        in.close();
+        in.read();
+    }
+
+    @Test
+    public void readerWaitsForChunks() throws Exception {
+        final int[] result = new int[3];
+        Thread reader = new Thread() {
+            @Override public void run() {
+                try {
+                    result[0] = in.read();
+                    result[1] = in.read();
+                    result[2] = in.read();
+                } catch (IOException e) {
+                    result[0] = -2;
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(50);
+        in.add(chunk(7));
+        Thread.sleep(50);
+        in.add(chunk(8));
+        in.end();
+        reader.join(5000);
+        assertArrayEquals(new int[] { 7, 8, -1 }, result);
+    }
+
+    @Test
+    public void closeWakesWaitingReader() throws Exception {
+        final IOException[] error = new IOException[1];
+        Thread reader = new Thread() {
+            @Override public void run() {
+                try {
+                    in.read();
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(50);
+        in.close();
+        reader.join(5000);
+        assertEquals("Stream closed", error[0].getMessage());
+    }
+}
@@ -0,0 +1,162 @@
+package za.co.percipio.mpl.connection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import za.co.percipio.mpl.MPLClient;
+import za.co.percipio.mpl.MPLServer;
+import za.co.percipio.mpl.codec.Codec;
+import za.co.percipio.mpl.codec.impl.JavaDecode;
+import za.co.percipio.mpl.codec.impl.JavaEncode;
+import za.co.percipio.mpl.impl.ClientListener;
+import za.co.percipio.mpl.impl.ServerListener;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChunkedMessageTest {
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    /**
+     * Collects the messages it receives
+     */
+    private static class CollectingServer extends ServerListener {
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+        final CountDownLatch        stopped  = new CountDownLatch(1);
+
+        @Override public void onMessageReceived(Connection connection, Object message) {
+            received.add(message);
+        }
+
+        @Override public void onServerStop(MPLServer server) {
+            stopped.countDown();
+        }
+    }
+
+    private int               port;
+    private ConnectionFactory factory;
+    private MPLServer         server;
+    private CollectingServer  serverListener;
+    private MPLClient         client;
+    private Socket            socket;
+
+    @Before
+    public void setUp() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        port = s.getLocalPort();
+        s.close();
+        factory = new ConnectionFactory(new Codec(new JavaEncode(), new JavaDecode()));
+        factory.setMaxFrameSize(ConnectionFactory.MIN_FRAME_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) client.disconnect();
+        if (socket != null) socket.close();
+        if (server != null) {
+            server.disconnect();
+            assertTrue(serverListener.stopped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private void startServer() throws IOException {
+        serverListener = new CollectingServer();
+        server = new MPLServer("localhost", port, serverListener, serverListener, factory, 1);
+        server.connectSynchronous();
+    }
+
+    private Connection connectClient() throws InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        client = new MPLClient("localhost", port, new ClientListener() {
+            @Override public void onConnect(Connection connection) {
+                connected.countDown();
+            }
+        }, factory);
+        client.connect();
+        assertTrue(connected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        return client.getConnection();
+    }
+
+    private Object nextMessage() throws InterruptedException {
+        Object message = serverListener.received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (message == null) fail("No message received");
+        return message;
+    }
+
+    /**
+     * Writes the header of the first chunk of a stream, the chunk itself holds no data
+     */
+    private void writeChunkStart(int flags, int streamId, int messageLength) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(Framing.MAX_CHUNK_HEADER_LENGTH);
+        int start = Framing.writeChunkHeader(FrameFormat.FIXED, b, b.capacity(), 0,
+                                             Framing.CHUNK_START | flags, streamId, messageLength);
+        OutputStream out = socket.getOutputStream();
+        out.write(b.array(), start, b.capacity() - start);
+        out.flush();
+    }
+
+    private void assertClosedByServer() throws IOException {
+        socket.setSoTimeout((int) TIMEOUT_MILLIS);
+        try {
+            assertEquals(-1, socket.getInputStream().read());
+        } catch (SocketTimeoutException e) {
+            fail("The server kept the connection open");
+        } catch (IOException e) {
+            /* Reset by the server */
+        }
+    }
+
+    @Test
+    public void messagesLargerThanAFrameArriveInOrder() throws Exception {
+        startServer();
+        Connection c = connectClient();
+        byte[] large = new byte[ConnectionFactory.MIN_FRAME_SIZE * 5 + 17];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        c.queueMessage(large);
+        c.queueMessage("small");
+        assertArrayEquals(large, (byte[]) nextMessage());
+        assertEquals("small", nextMessage());
+    }
+
+    @Test
+    public void negativeMessageLengthClosesTheConnection() throws Exception {
+        startServer();
+        socket = new Socket("localhost", port);
+        writeChunkStart(Framing.CHUNK_MESSAGE, 1, -1);
+        assertClosedByServer();
+    }
+
+    @Test
+    public void messageLengthAboveTheMaximumClosesTheConnection() throws Exception {
+        factory.setMaxMessageSize(1024 * 1024);
+        startServer();
+        socket = new Socket("localhost", port);
+        writeChunkStart(Framing.CHUNK_MESSAGE, 1, 1024 * 1024 + 1);
+        assertClosedByServer();
+    }
+
+    @Test
+    public void tooManyStreamsCloseTheConnection() throws Exception {
+        factory.setMaxInboundStreams(2);
+        startServer();
+        socket = new Socket("localhost", port);
+        for (int id = 1; id <= 3; id++) {
+            writeChunkStart(Framing.CHUNK_MESSAGE, id, 1024);
+        }
+        assertClosedByServer();
+    }
+}
@@ -0,0 +1,469 @@
+package za.co.percipio.mpl.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import za.co.percipio.mpl.MPLClient;
+import za.co.percipio.mpl.MPLServer;
+import za.co.percipio.mpl.codec.Codec;
+import za.co.percipio.mpl.codec.StreamDecoder;
+import za.co.percipio.mpl.codec.StreamEncoder;
+import za.co.percipio.mpl.codec.impl.JavaDecode;
+import za.co.percipio.mpl.codec.impl.JavaEncode;
+import za.co.percipio.mpl.exception.WriteBufferFullException;
+import za.co.percipio.mpl.impl.ClientListener;
+import za.co.percipio.mpl.impl.ServerListener;
+import za.co.percipio.mpl.listener.RequestListener;
+import za.co.percipio.mpl.listener.WritabilityListener;
+import za.co.percipio.mpl.rpc.IncomingRequest;
+import za.co.percipio.mpl.rpc.ResponseFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionTest {
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    private static class LatchListener extends ClientListener implements WritabilityListener {
+        final CountDownLatch          connected    = new CountDownLatch(1);
+        final CountDownLatch          disconnected = new CountDownLatch(1);
+        final BlockingDeque<Boolean>  writability  = new LinkedBlockingDeque<Boolean>();
+
+        @Override public void onConnect(Connection connection) {
+            connected.countDown();
+        }
+
+        @Override public void onDisconnect(Connection connection) {
+            disconnected.countDown();
+        }
+
+        @Override public void onWritabilityChanged(Connection connection, boolean writable) {
+            writability.add(writable);
+        }
+    }
+
+    /**
+     * Collects the messages it receives and echoes requests. Delivery waits while a gate is set.
+     */
+    private static class CollectingServer extends ServerListener implements RequestListener {
+        final    BlockingQueue<Connection> connections = new LinkedBlockingQueue<Connection>();
+        final    BlockingQueue<Object>     received    = new LinkedBlockingQueue<Object>();
+        final    CountDownLatch            stopped     = new CountDownLatch(1);
+        volatile CountDownLatch            gate;
+        volatile Thread                    deliveredOn;
+
+        @Override public void onConnect(Connection connection) {
+            connections.add(connection);
+        }
+
+        @Override public void onMessageReceived(Connection connection, Object message) {
+            CountDownLatch g = gate;
+            try {
+                if (g != null) g.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            deliveredOn = Thread.currentThread();
+            received.add(message);
+        }
+
+        @Override public void onRequestReceived(Connection connection, IncomingRequest request) {
+            request.respond(request.getBody());
+        }
+
+        @Override public void onServerStop(MPLServer server) {
+            stopped.countDown();
+        }
+    }
+
+    private int               port;
+    private ConnectionFactory factory;
+    private ServerSocket      peerServer;
+    private Socket            peer;
+    private MPLServer         server;
+    private CollectingServer  serverListener;
+    private MPLClient         client;
+    private ExecutorService   executor;
+
+    @Before
+    public void setUp() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        port = s.getLocalPort();
+        s.close();
+        factory = new ConnectionFactory(new Codec(new JavaEncode(), new JavaDecode()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) client.disconnect();
+        if (peer != null) peer.close();
+        if (peerServer != null) peerServer.close();
+        if (server != null) {
+            server.disconnect();
+            assertTrue(serverListener.stopped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+        if (executor != null) executor.shutdown();
+    }
+
+    private void startServer() throws IOException {
+        serverListener = new CollectingServer();
+        server = new MPLServer("localhost", port, serverListener, serverListener, factory, 1);
+        server.connectSynchronous();
+    }
+
+    private Connection connectClient(LatchListener listener) throws InterruptedException {
+        client = new MPLClient("localhost", port, listener, factory);
+        client.connect();
+        assertTrue(listener.connected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        return client.getConnection();
+    }
+
+    /**
+     * Connects a client to a peer that never reads what it is sent
+     */
+    private Connection connectToSilentPeer(LatchListener listener) throws Exception {
+        peerServer = new ServerSocket(port);
+        client = new MPLClient("localhost", port, listener, factory);
+        client.connect();
+        peer = peerServer.accept();
+        assertTrue(listener.connected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        return client.getConnection();
+    }
+
+    /**
+     * Queues messages until the socket buffers are full and the connection stays unwritable
+     */
+    private static void fillUntilUnwritable(Connection c) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (c.isWritable()) {
+                try {
+                    c.queueMessage(new byte[64 * 1024]);
+                } catch (WriteBufferFullException e) {
+                    /* Became unwritable after the check */
+                }
+                continue;
+            }
+            /* The handler may still move the pending bytes into the socket buffer */
+            Thread.sleep(50);
+            if (!c.isWritable()) return;
+        }
+        fail("The connection stayed writable");
+    }
+
+    /**
+     * Waits for the writability to be reported as the given value
+     */
+    private static void awaitWritability(LatchListener listener, boolean writable)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!Boolean.valueOf(writable).equals(listener.writability.peekLast())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(writable, listener.writability.peekLast());
+    }
+
+    /**
+     * Reads and discards everything the peer receives
+     */
+    private void drainPeer() {
+        new Thread() {
+            @Override public void run() {
+                byte[] b = new byte[64 * 1024];
+                try {
+                    InputStream in = peer.getInputStream();
+                    while (in.read(b) >= 0) {
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        }.start();
+    }
+
+    private Connection nextServerConnection() throws InterruptedException {
+        Connection c = serverListener.connections.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (c == null) fail("No connection accepted");
+        return c;
+    }
+
+    private Object nextMessage() throws InterruptedException {
+        Object message = serverListener.received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (message == null) fail("No message received");
+        return message;
+    }
+
+    @Test
+    public void concurrentProducersKeepTheirOrder() throws Exception {
+        startServer();
+        final Connection c = connectClient(new LatchListener());
+        final int producers = 4;
+        final int count = 2000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                @Override public void run() {
+                    for (int i = 0; i < count; i++) {
+                        c.queueMessage(new int[] { producer, i });
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        int[] next = new int[producers];
+        for (int i = 0; i < producers * count; i++) {
+            int[] message = (int[]) nextMessage();
+            assertEquals(next[message[0]]++, message[1]);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    /**
+     * @return a message of the given size that carries its sequence number
+     */
+    private static byte[] numbered(int number, int size) {
+        byte[] message = new byte[size];
+        message[0] = (byte) (number >> 8);
+        message[1] = (byte) number;
+        message[size - 1] = (byte) number;
+        return message;
+    }
+
+    private static int numberOf(byte[] message) {
+        assertEquals(message[1], message[message.length - 1]);
+        return (message[0] & 0xFF) << 8 | message[1] & 0xFF;
+    }
+
+    @Test
+    public void directWritesKeepTheOrderWhenTheChannelIsFull() throws Exception {
+        factory.setDirectWrite(true);
+        startServer();
+        Connection c = connectClient(new LatchListener());
+        /* Every tenth message is too large to be written at once */
+        int count = 500;
+        for (int i = 0; i < count; i++) {
+            c.queueMessage(numbered(i, i % 10 == 0 ? 512 * 1024 : 16));
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, numberOf((byte[]) nextMessage()));
+        }
+    }
+
+    @Test
+    public void directWritesAnswerRequests() throws Exception {
+        factory.setDirectWrite(true);
+        startServer();
+        Connection c = connectClient(new LatchListener());
+        for (int i = 0; i < 100; i++) {
+            ResponseFuture<Integer> response = c.request(i);
+            assertEquals(Integer.valueOf(i), response.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void pausedConnectionsHoldTheirMessages() throws Exception {
+        startServer();
+        Connection c = connectClient(new LatchListener());
+        Connection accepted = nextServerConnection();
+        accepted.pauseReading();
+        assertTrue(accepted.isReadingPaused());
+        for (int i = 0; i < 10; i++) {
+            c.queueMessage(i);
+        }
+        assertNull(serverListener.received.poll(200, TimeUnit.MILLISECONDS));
+        accepted.resumeReading();
+        assertFalse(accepted.isReadingPaused());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, nextMessage());
+        }
+    }
+
+    @Test
+    public void readingPausesWhileMessagesAreNotDelivered() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+        factory.setDecodeExecutor(executor);
+        factory.setUndeliveredMessageWaterMarks(2, 8);
+        startServer();
+        Connection c = connectClient(new LatchListener());
+        Connection accepted = nextServerConnection();
+        CountDownLatch gate = new CountDownLatch(1);
+        serverListener.gate = gate;
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            c.queueMessage(i);
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!accepted.isReadingPaused() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(accepted.isReadingPaused());
+        assertTrue(accepted.getUndeliveredMessageCount() <= 9);
+
+        gate.countDown();
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, nextMessage());
+        }
+        assertFalse(accepted.isReadingPaused());
+    }
+
+    @Test
+    public void streamCodecsExchangeMessages() throws Exception {
+        factory = new ConnectionFactory(Codec.fromStreams(new StreamEncoder() {
+            @Override public void encode(Object toWrite, OutputStream out) throws IOException {
+                out.write(((String) toWrite).getBytes("UTF-8"));
+            }
+        }, new StreamDecoder() {
+            @Override public Object decode(InputStream in, int length) throws IOException {
+                byte[] bytes = new byte[length];
+                int read = 0;
+                while (read < length) {
+                    int count = in.read(bytes, read, length - read);
+                    if (count < 0) throw new IOException("Frame ended unexpectedly");
+                    read += count;
+                }
+                return new String(bytes, "UTF-8");
+            }
+        }));
+        startServer();
+        Connection c = connectClient(new LatchListener());
+        /* Larger than the receive buffer and the pooled encode buffers */
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 4 * ConnectionFactory.DEFAULT_RECEIVE_BUFFER_SIZE) {
+            large.append("large message ");
+        }
+        c.queueMessage("small");
+        c.queueMessage(large.toString());
+        c.queueMessage("");
+        assertEquals("small", nextMessage());
+        assertEquals(large.toString(), nextMessage());
+        assertEquals("", nextMessage());
+    }
+
+    @Test
+    public void decodeExecutorDeliversInOrder() throws Exception {
+        executor = Executors.newFixedThreadPool(4, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                return new Thread(r, "Decode Thread");
+            }
+        });
+        factory.setDecodeExecutor(executor);
+        startServer();
+        Connection c = connectClient(new LatchListener());
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            c.queueMessage(i);
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, nextMessage());
+        }
+        assertEquals("Decode Thread", serverListener.deliveredOn.getName());
+    }
+
+    @Test
+    public void decodeExecutorAnswersRequests() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        factory.setDecodeExecutor(executor);
+        startServer();
+        Connection c = connectClient(new LatchListener());
+        List<ResponseFuture<Integer>> responses = new ArrayList<ResponseFuture<Integer>>();
+        for (int i = 0; i < 100; i++) {
+            responses.add(c.<Integer>request(i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i),
+                         responses.get(i).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void disconnectFromAnotherThreadIsReported() throws Exception {
+        startServer();
+        LatchListener listener = new LatchListener();
+        Connection c = connectClient(listener);
+        c.queueMessage("before");
+        assertEquals("before", nextMessage());
+        c.disconnect();
+        assertTrue(listener.disconnected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(c.checkIsConnected());
+    }
+
+    @Test
+    public void writabilityFlipsAtTheWatermarks() throws Exception {
+        factory.setWriteBufferWaterMarks(64 * 1024, 256 * 1024);
+        LatchListener listener = new LatchListener();
+        Connection c = connectToSilentPeer(listener);
+        fillUntilUnwritable(c);
+        awaitWritability(listener, false);
+
+        drainPeer();
+        awaitWritability(listener, true);
+        assertTrue(c.isWritable());
+        assertTrue(c.getPendingByteCount() <= 64 * 1024);
+        /* Flips the socket buffer absorbed may be merged, but are reported alternately */
+        boolean expected = false;
+        for (Boolean writable : listener.writability) {
+            assertEquals(expected, writable);
+            expected = !expected;
+        }
+    }
+
+    @Test(expected = WriteBufferFullException.class)
+    public void failPolicyRejectsMessagesWhileNotWritable() throws Exception {
+        factory.setWriteBufferWaterMarks(64 * 1024, 256 * 1024);
+        factory.setOverflowPolicy(OverflowPolicy.FAIL);
+        Connection c = connectToSilentPeer(new LatchListener());
+        fillUntilUnwritable(c);
+        c.queueMessage("rejected");
+    }
+
+    @Test
+    public void dropPolicyDropsMessagesWhileNotWritable() throws Exception {
+        factory.setWriteBufferWaterMarks(64 * 1024, 256 * 1024);
+        factory.setOverflowPolicy(OverflowPolicy.DROP);
+        Connection c = connectToSilentPeer(new LatchListener());
+        fillUntilUnwritable(c);
+        int queued = c.getQueuedMessageCount();
+        assertFalse(c.queueMessage("dropped"));
+        assertTrue(c.getQueuedMessageCount() <= queued);
+    }
+
+    @Test
+    public void disconnectDropsThePendingByteCount() throws Exception {
+        LatchListener listener = new LatchListener();
+        Connection c = connectToSilentPeer(listener);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (c.getPendingByteCount() == 0 && System.currentTimeMillis() < deadline) {
+            c.queueMessage(new byte[64 * 1024]);
+            Thread.sleep(1);
+        }
+        assertTrue(c.getPendingByteCount() > 0);
+
+        /* Reset rather than close, so that the client fails instead of draining */
+        peer.setSoLinger(true, 0);
+        peer.close();
+        assertTrue(listener.disconnected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(0, c.getPendingByteCount());
+    }
+}
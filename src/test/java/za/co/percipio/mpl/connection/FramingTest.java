@@ -0,0 +1,130 @@
+package za.co.percipio.mpl.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class FramingTest {
+    private static final int[] SIZES = { 0, 1, 31, 32, 127, 128, 4095, 4096, 1 << 20, Integer.MAX_VALUE };
+
+    @Test
+    public void varintHeaderRoundTrip() throws IOException {
+        for (int kind = Framing.KIND_MESSAGE; kind <= Framing.KIND_CHUNK; kind++) {
+            for (int size : SIZES) {
+                ByteBuffer b = ByteBuffer.allocate(16);
+                int start = Framing.writeVarintHeader(b, 10, size, kind);
+                assertEquals(10 - Framing.varintHeaderLength(size, kind), start);
+                long header = Framing.readHeader(FrameFormat.VARINT, b, start);
+                assertEquals(10 - start, Framing.headerLength(header));
+                assertEquals(size, Framing.frameSize(header));
+                assertEquals(kind, Framing.frameKind(header));
+                assertEquals(0, b.position());
+            }
+        }
+    }
+
+    @Test
+    public void varintHeaderLengths() {
+        assertEquals(1, Framing.varintHeaderLength(31, Framing.KIND_MESSAGE));
+        assertEquals(2, Framing.varintHeaderLength(32, Framing.KIND_MESSAGE));
+        assertEquals(Framing.MAX_VARINT_HEADER_LENGTH,
+                     Framing.varintHeaderLength(Integer.MAX_VALUE, Framing.KIND_CHUNK));
+    }
+
+    @Test
+    public void incompleteVarintHeader() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        int start = Framing.writeVarintHeader(b, 3, 4096, Framing.KIND_MESSAGE);
+        for (int limit = start; limit < 3; limit++) {
+            b.limit(limit);
+            assertEquals(-1, Framing.readHeader(FrameFormat.VARINT, b, start));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void varintHeaderTooLong() throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(new byte[] { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                                                    (byte) 0x80, 0 });
+        Framing.readHeader(FrameFormat.VARINT, b, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void varintSizeTooLarge() throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                                                    0x7F });
+        Framing.readHeader(FrameFormat.VARINT, b, 0);
+    }
+
+    @Test
+    public void fixedHeader() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        b.putInt(2, 12345);
+        long header = Framing.readHeader(FrameFormat.FIXED, b, 2);
+        assertEquals(Framing.FIXED_HEADER_LENGTH, Framing.headerLength(header));
+        assertEquals(12345, Framing.frameSize(header));
+        assertEquals(Framing.KIND_MESSAGE, Framing.frameKind(header));
+
+        b.limit(5);
+        assertEquals(-1, Framing.readHeader(FrameFormat.FIXED, b, 2));
+    }
+
+    @Test
+    public void chunkHeaderRoundTrip() throws IOException {
+        for (FrameFormat format : FrameFormat.values()) {
+            int[][] cases = {
+                    { Framing.CHUNK_START | Framing.CHUNK_MESSAGE, 9 },
+                    { Framing.CHUNK_MESSAGE | Framing.CHUNK_END, 5 },
+                    { Framing.CHUNK_START, 5 },
+                    { Framing.CHUNK_END | Framing.CHUNK_ABORT, 5 }
+            };
+            for (int[] c : cases) {
+                int flags = c[0];
+                ByteBuffer b = ByteBuffer.allocate(Framing.MAX_CHUNK_HEADER_LENGTH);
+                int end = Framing.MAX_CHUNK_HEADER_LENGTH;
+                int start = Framing.writeChunkHeader(format, b, end, 1000, flags, 77, 123456);
+                long header = Framing.readHeader(format, b, start);
+                assertEquals(Framing.KIND_CHUNK, Framing.frameKind(header));
+                assertEquals(c[1] + 1000, Framing.frameSize(header));
+
+                int payload = start + Framing.headerLength(header);
+                assertEquals(end - c[1], payload);
+                assertEquals(flags, b.get(payload));
+                assertEquals(77, b.getInt(payload + 1));
+                if (c[1] == 9) assertEquals(123456, b.getInt(payload + 5));
+            }
+        }
+    }
+
+    @Test
+    public void toVarintFrameSkipsTheFixedHeader() throws IOException {
+        ByteBuffer first = ByteBuffer.allocate(6);
+        first.putInt(10).put((byte) 1).put((byte) 2).flip();
+        ByteBuffer second = ByteBuffer.wrap(new byte[] { 3, 4, 5, 6, 7, 8, 9, 10 });
+        ByteBuffer[] frame = Framing.toVarintFrame(new ByteBuffer[] { first, second });
+
+        assertEquals(3, frame.length);
+        long header = Framing.readHeader(FrameFormat.VARINT, frame[0], 0);
+        assertEquals(frame[0].remaining(), Framing.headerLength(header));
+        assertEquals(10, Framing.frameSize(header));
+        assertEquals(Framing.KIND_MESSAGE, Framing.frameKind(header));
+        assertEquals(2, frame[1].remaining());
+        assertEquals(1, frame[1].get(frame[1].position()));
+        assertEquals(8, frame[2].remaining());
+        /* The given buffers are left untouched */
+        assertEquals(0, first.position());
+    }
+
+    @Test
+    public void toVarintFrameWithHeaderSplitAcrossBuffers() throws IOException {
+        ByteBuffer first = ByteBuffer.wrap(new byte[] { 0, 0 });
+        ByteBuffer second = ByteBuffer.wrap(new byte[] { 0, 3, 1, 2, 3 });
+        ByteBuffer[] frame = Framing.toVarintFrame(new ByteBuffer[] { first, second });
+
+        assertEquals(3, Framing.frameSize(Framing.readHeader(FrameFormat.VARINT, frame[0], 0)));
+        assertEquals(0, frame[1].remaining());
+        assertEquals(3, frame[2].remaining());
+        assertEquals(1, frame[2].get(frame[2].position()));
+    }
+}
@@ -0,0 +1,90 @@
+package za.co.percipio.mpl.connection;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import za.co.percipio.mpl.impl.ClientListener;
+
+import static org.junit.Assert.assertSame;
+
+/**
+ * Runs the selectors against handlers that are not started, so that their loads stay as set up
+ */
+public class HandlerSelectorsTest {
+    private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+    private       ConnectionHandler[] handlers;
+
+    @Before
+    public void setUp() {
+        handlers = new ConnectionHandler[3];
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i] = new ConnectionHandler(ConnectionFactory.JAVA_CONNECTION_FACTORY);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Assigns sockets that are never registered, which count as connections of the handler
+     */
+    private void assign(ConnectionHandler handler, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            SocketChannel channel = SocketChannel.open();
+            channels.add(channel);
+            handler.manageSocketChannel(channel, new ClientListener(),
+                                        ConnectionFactory.JAVA_CONNECTION_FACTORY);
+        }
+    }
+
+    @Test
+    public void roundRobinTakesTurns() throws IOException {
+        assign(handlers[1], 5);
+        HandlerSelector selector = HandlerSelectors.roundRobin();
+        for (int round = 0; round < 2; round++) {
+            for (ConnectionHandler handler : handlers) {
+                assertSame(handler, selector.select(handlers));
+            }
+        }
+    }
+
+    @Test
+    public void leastConnectionsPicksTheEmptiestHandler() throws IOException {
+        assign(handlers[0], 2);
+        assign(handlers[1], 3);
+        assign(handlers[2], 1);
+        assertSame(handlers[2], HandlerSelectors.leastConnections().select(handlers));
+    }
+
+    @Test
+    public void leastPendingBytesBreaksTiesByConnections() throws IOException {
+        assign(handlers[0], 2);
+        assign(handlers[2], 1);
+        assertSame(handlers[1], HandlerSelectors.leastPendingBytes().select(handlers));
+    }
+
+    @Test
+    public void powerOfTwoChoicesPicksTheLessLoadedOfTwo() throws IOException {
+        /* Both handlers are equally busy, so the connection counts decide */
+        ConnectionHandler[] two = { handlers[0], handlers[1] };
+        assign(handlers[0], 1);
+        HandlerSelector selector = HandlerSelectors.powerOfTwoChoices();
+        for (int i = 0; i < 10; i++) {
+            assertSame(handlers[1], selector.select(two));
+        }
+    }
+
+    @Test
+    public void powerOfTwoChoicesWithASingleHandler() {
+        ConnectionHandler[] one = { handlers[0] };
+        assertSame(handlers[0], HandlerSelectors.powerOfTwoChoices().select(one));
+    }
+}
@@ -0,0 +1,95 @@
+package za.co.percipio.mpl.connection;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MpscQueueTest {
+
+    @Test
+    public void emptyQueue() {
+        MpscQueue<String> queue = new MpscQueue<String>();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void pollsInOfferOrder() {
+        MpscQueue<Integer> queue = new MpscQueue<Integer>();
+        for (int i = 0; i < 100; i++) {
+            queue.offer(i);
+        }
+        assertFalse(queue.isEmpty());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), queue.peek());
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void reusableAfterDraining() {
+        MpscQueue<String> queue = new MpscQueue<String>();
+        queue.offer("a");
+        assertEquals("a", queue.poll());
+        assertTrue(queue.isEmpty());
+        queue.offer("b");
+        assertFalse(queue.isEmpty());
+        assertEquals("b", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNull() {
+        new MpscQueue<String>().offer(null);
+    }
+
+    @Test
+    public void keepsTheOrderOfEveryProducer() throws InterruptedException {
+        final int producers = 8;
+        final int perProducer = 100000;
+        final MpscQueue<long[]> queue = new MpscQueue<long[]>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                @Override public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.offer(new long[] { producer, i });
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        start.countDown();
+
+        int[] next = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            long[] value = queue.poll();
+            if (value == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[(int) value[0]]++, value[1]);
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,163 @@
+package za.co.percipio.mpl.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResponseFutureTest {
+
+    /**
+     * Records the calls it receives
+     */
+    private static class RecordingListener implements ResponseListener<String> {
+        final List<Object> calls = new ArrayList<Object>();
+
+        @Override public void onResponse(String response) {
+            calls.add(response);
+        }
+
+        @Override public void onFailure(Throwable error) {
+            calls.add(error);
+        }
+    }
+
+    @Test
+    public void completes() throws Exception {
+        ResponseFuture<String> future = new ResponseFuture<String>();
+        RecordingListener listener = new RecordingListener();
+        future.addListener(listener);
+        assertFalse(future.isDone());
+
+        assertTrue(future.complete("ok"));
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+        assertNull(future.getFailure());
+        assertEquals("ok", future.get());
+        assertEquals("ok", future.get(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, listener.calls.size());
+        assertEquals("ok", listener.calls.get(0));
+    }
+
+    @Test
+    public void completesOnce() throws Exception {
+        ResponseFuture<String> future = new ResponseFuture<String>();
+        RecordingListener listener = new RecordingListener();
+        future.addListener(listener);
+        assertTrue(future.complete("first"));
+        assertFalse(future.complete("second"));
+        assertFalse(future.fail(new IllegalStateException()));
+        assertFalse(future.cancel(false));
+        assertEquals("first", future.get());
+        assertEquals(1, listener.calls.size());
+    }
+
+    @Test
+    public void fails() throws Exception {
+        ResponseFuture<String> future = new ResponseFuture<String>();
+        RecordingListener listener = new RecordingListener();
+        future.addListener(listener);
+        IllegalStateException error = new IllegalStateException("failed");
+
+        assertTrue(future.fail(error));
+        assertFalse(future.complete("late"));
+        assertTrue(future.isDone());
+        assertSame(error, future.getFailure());
+        try {
+            future.get();
+            fail("The future did not fail");
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+        assertEquals(1, listener.calls.size());
+        assertSame(error, listener.calls.get(0));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNullFailure() {
+        new ResponseFuture<String>().fail(null);
+    }
+
+    @Test
+    public void cancels() throws Exception {
+        ResponseFuture<String> future = new ResponseFuture<String>();
+        RecordingListener listener = new RecordingListener();
+        future.addListener(listener);
+
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        assertFalse(future.complete("late"));
+        try {
+            future.get();
+            fail("The future was not cancelled");
+        } catch (CancellationException expected) {
+        }
+        assertTrue(listener.calls.get(0) instanceof CancellationException);
+    }
+
+    @Test
+    public void listenerAddedAfterCompletionIsCalledRightAway() {
+        ResponseFuture<String> future = new ResponseFuture<String>();
+        future.complete(null);
+        RecordingListener listener = new RecordingListener();
+        future.addListener(listener);
+        assertEquals(1, listener.calls.size());
+        assertNull(listener.calls.get(0));
+    }
+
+    @Test
+    public void throwingListenerDoesNotStopOthers() {
+        ResponseFuture<String> future = new ResponseFuture<String>();
+        future.addListener(new ResponseListener<String>() {
+            @Override public void onResponse(String response) {
+                throw new RuntimeException("listener failed");
+            }
+
+            @Override public void onFailure(Throwable error) {
+            }
+        });
+        RecordingListener listener = new RecordingListener();
+        future.addListener(listener);
+        assertTrue(future.complete("ok"));
+        assertEquals(1, listener.calls.size());
+    }
+
+    @Test
+    public void getTimesOut() throws Exception {
+        ResponseFuture<String> future = new ResponseFuture<String>();
+        long start = System.nanoTime();
+        try {
+            future.get(50, TimeUnit.MILLISECONDS);
+            fail("get did not time out");
+        } catch (TimeoutException expected) {
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertFalse(future.isDone());
+    }
+
+    @Test
+    public void getWaitsForCompletion() throws Exception {
+        final ResponseFuture<String> future = new ResponseFuture<String>();
+        new Thread() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                future.complete("late");
+            }
+        }.start();
+        assertEquals("late", future.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,75 @@
+package za.co.percipio.mpl.rpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RpcResponseTest {
+
+    private static RpcResponse roundTrip(RpcResponse response) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(response);
+        out.close();
+        return (RpcResponse) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void roundTripsBody() throws Exception {
+        RpcResponse response = roundTrip(new RpcResponse(3, "body", null));
+        assertEquals(3, response.getId());
+        assertEquals("body", response.getBody());
+        assertNull(response.getError());
+    }
+
+    @Test
+    public void roundTripsErrorLongerThanWriteUtf() throws Exception {
+        String error = repeat('\u00e9', 100000);
+        RpcResponse response = roundTrip(new RpcResponse(4, null, error));
+        assertEquals(error, response.getError());
+        assertNull(response.getBody());
+    }
+
+    @Test
+    public void cutsOffOverlongError() throws Exception {
+        String error = repeat('x', RpcResponse.MAX_ERROR_LENGTH + 10);
+        RpcResponse response = roundTrip(new RpcResponse(5, null, error));
+        assertEquals(RpcResponse.MAX_ERROR_LENGTH, response.getError().length());
+    }
+
+    private static void readError(int length) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeInt(6);
+        out.writeBoolean(false);
+        out.writeInt(length);
+        out.close();
+        new RpcResponse().readExternal(new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsNegativeErrorLength() throws Exception {
+        readError(-1);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsHugeErrorLength() throws Exception {
+        readError(Integer.MAX_VALUE);
+    }
+}